@@ -0,0 +1,64 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.smpp.Receiver;
+import org.smpp.ServerPDUEvent;
+import org.smpp.ServerPDUEventListener;
+
+
+/**
+ * A session's listener handling a request it answers automatically: the
+ * PDU is logged, counted and answered, and the response is logged. The
+ * response goes to a connection that discards it and the log discards
+ * what it formats.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class AutoResponseBenchmark
+{
+    /**
+     * Request type. A DELIVER_SM is a mobile originated message, as a
+     * receipt would also be matched against the submits, and none are sent.
+     */
+    @Param( { "DELIVER_SM", "ENQUIRE_LINK" } )
+    public String type;
+
+    private ServerPDUEventListener listener;
+    private ServerPDUEvent event;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        NullConnection connection = new NullConnection();
+        BatchRunner runner = new BatchRunner( new Batch(), new BatchEventLog() );
+        listener = runner.openSession( connection );
+        // The receiver is only the source of the event, it isn't started
+        final Batch.CommandID id = Batch.CommandID.valueOf( type );
+        event = new ServerPDUEvent( new Receiver( connection ), connection,
+                                    id == Batch.CommandID.DELIVER_SM ?
+                                        PDUSamples.moDeliverSM() :
+                                        PDUSamples.pdu( id ) );
+    }
+
+    @Benchmark
+    public void handleEvent()
+    {
+        listener.handleEvent( event );
+    }
+}
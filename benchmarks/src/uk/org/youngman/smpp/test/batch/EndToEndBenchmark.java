@@ -0,0 +1,631 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ *
+ * The end to end benchmark runs a generated batch of SUBMIT_SMs through
+ * the batch runner against an SMSC simulator on the loopback interface,
+ * so the sockets, the receiver threads and the event log are all measured
+ * together. It needs no network access and no input, so it can be run
+ * unattended to track performance from one release to the next.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import org.smpp.Data;
+import uk.org.youngman.smpp.test.smsc.SmscSimulator;
+
+
+/**
+ * Runs N SUBMIT_SMs through a BatchRunner connected to an in-process
+ * SmscSimulator and prints the sustained rate, the response latency
+ * percentiles, and the CPU time and memory allocated per message by the
+ * client's threads. The results are printed as name=value lines, which
+ * are easy to compare between runs.
+ * <p>
+ * A smaller warm up run is made first, so that the measured run isn't
+ * slowed down by class loading and compilation. The simulator's own
+ * threads are left out of the CPU and allocation figures, and so is the
+ * JVM's garbage collection.
+ * <p>
+ * The simulator's reports and the batch tool's event summaries go to
+ * System.out, which is discarded while the benchmark runs. If there is a
+ * console the event summaries go there instead, so the output should be
+ * redirected, as "ant endtoend" does.
+ */
+public class EndToEndBenchmark
+{
+    /**
+     * Percentiles reported
+     */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /**
+     * Time between samples of the threads' CPU time and allocation
+     */
+    private static final long SAMPLE_MILLIS = 10;
+
+    /**
+     * Longest time to wait for the simulator to start listening
+     */
+    private static final long LISTEN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Number of messages in the measured run
+     */
+    private int messages = 100000;
+
+    /**
+     * Number of messages in the warm up run
+     */
+    private int warmup = 20000;
+
+    /**
+     * Maximum requests awaiting a response on each session
+     */
+    private int window = 1000;
+
+    /**
+     * Number of sessions to send on
+     */
+    private int sessions = 1;
+
+    /**
+     * Connection engine, or null for the OpenSMPP default
+     */
+    private String engine = null;
+
+    /**
+     * Ask for delivery receipts, and wait for them all to arrive
+     */
+    private boolean receipts = false;
+
+    /**
+     * Log file for the measured run, or null to discard the log
+     */
+    private File logFile = null;
+
+    /**
+     * Port the simulator is listening on
+     */
+    private int port;
+
+
+    /**
+     * Start the simulator, make the warm up run and the measured run, and
+     * print the results of the measured run
+     * @throws IOException The simulator or the batch file couldn't be set up
+     */
+    void run() throws IOException
+    {
+        final PrintStream out = System.out;
+        System.setOut( new PrintStream( new OutputStream()
+        {
+            public void write( int b )
+            {
+            }
+
+            public void write( byte[] b, int off, int len )
+            {
+            }
+        } ) );
+        try
+        {
+            startSimulator();
+            if( warmup > 0 )
+            {
+                runBatch( warmup, null );
+            }
+            Result result = runBatch( messages, logFile );
+            if( result != null )
+            {
+                result.print( out );
+            }
+        }
+        finally
+        {
+            System.setOut( out );
+        }
+    }
+
+    /**
+     * Start the simulator on a free port, on a daemon thread so that it
+     * ends with the benchmark, and wait until it is listening
+     * @throws IOException The simulator didn't start listening
+     */
+    private void startSimulator() throws IOException
+    {
+        ServerSocket free = new ServerSocket( 0 );
+        port = free.getLocalPort();
+        free.close();
+
+        final SmscSimulator simulator = new SmscSimulator( port );
+        simulator.setReceipts( receipts );
+        Thread thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    simulator.run();
+                }
+                catch( IOException e )
+                {
+                    System.err.println( "SMSC simulator stopped: " + e.getMessage() );
+                }
+            }
+        }, "SmscSimulator" );
+        thread.setDaemon( true );
+        thread.start();
+
+        final long deadline = System.currentTimeMillis() + LISTEN_TIMEOUT_MILLIS;
+        while( true )
+        {
+            try
+            {
+                // The simulator ignores a connection closed without a PDU
+                new Socket( "127.0.0.1", port ).close();
+                return;
+            }
+            catch( IOException e )
+            {
+                if( !thread.isAlive() || System.currentTimeMillis() > deadline )
+                {
+                    throw new IOException( "SMSC simulator not listening on port " + port );
+                }
+            }
+            try
+            {
+                Thread.sleep( 10 );
+            }
+            catch( InterruptedException e )
+            {
+                throw new IOException( "Interrupted starting the SMSC simulator" );
+            }
+        }
+    }
+
+    /**
+     * Run a batch of SUBMIT_SMs
+     * @param count Number of messages to send
+     * @param log   Log file, or null to use a temporary file
+     * @return Measurements of the run, or null if the batch couldn't be read
+     * @throws IOException The batch file couldn't be written
+     */
+    private Result runBatch( int count, File log ) throws IOException
+    {
+        File batchFile = File.createTempFile( "benchmark", ".xml" );
+        File runLog = log == null ? File.createTempFile( "benchmark", ".log" ) : log;
+        try
+        {
+            writeBatch( batchFile, count );
+            Batch batch = new BatchReader( batchFile ).read();
+            if( batch == null )
+            {
+                System.err.println( "Error reading generated batch. Benchmark not run." );
+                return null;
+            }
+            BatchRunner runner =
+                new BatchRunner( batch, new BatchEventLog( runLog ) );
+
+            ThreadUsage usage = new ThreadUsage();
+            Thread sampler = new Thread( usage, "BenchmarkSampler" );
+            sampler.setDaemon( true );
+            sampler.start();
+            final long startNanos = System.nanoTime();
+            runner.run();
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            usage.stop();
+            try
+            {
+                sampler.join();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return new Result( count, elapsedNanos,
+                               runner.getLatencies().getByCommandId( Data.SUBMIT_SM ),
+                               usage );
+        }
+        finally
+        {
+            batchFile.delete();
+            if( log == null )
+            {
+                runLog.delete();
+            }
+        }
+    }
+
+    /**
+     * Write a batch that binds, sends the messages as fast as the window
+     * allows, waits for the responses (and receipts) and unbinds
+     * @param file  File to write
+     * @param count Number of messages
+     * @throws IOException The file couldn't be written
+     */
+    private void writeBatch( File file, int count ) throws IOException
+    {
+        PrintWriter writer = new PrintWriter(
+            new OutputStreamWriter( new FileOutputStream( file ), "US-ASCII" ) );
+        writer.println( "<Batch>" );
+        writer.println( "    <Connect sessions=\"" + sessions + "\"" +
+                        ( engine == null ? "" : " engine=\"" + engine + "\"" ) + ">" );
+        writer.println( "        <Server port=\"" + port + "\">127.0.0.1</Server>" );
+        writer.println( "    </Connect>" );
+        writer.println( "    <Settings window=\"" + window + "\"/>" );
+        writer.println( "    <Pdu type=\"BIND_TRANSCEIVER\">" );
+        writer.println( "        <SystemId>benchmark</SystemId>" );
+        writer.println( "        <Password>secret</Password>" );
+        writer.println( "    </Pdu>" );
+        writer.println( "    <WaitFor type=\"BIND_TRANSCEIVER_RESP\" count=\"" + sessions +
+                        "\" timeoutMillis=\"10000\"/>" );
+        writer.println( "    <Repeat count=\"" + count + "\">" );
+        writer.println( "        <Pdu type=\"SUBMIT_SM\">" );
+        writer.println( "            <SourceAddr>447700900000</SourceAddr>" );
+        writer.println( "            <DestinationAddr>${msisdn:447700900001+i}</DestinationAddr>" );
+        if( receipts )
+        {
+            writer.println( "            <RegisteredDelivery>1</RegisteredDelivery>" );
+        }
+        writer.println( "            <ShortMessage>" );
+        writer.println( "                <line>Benchmark message ${seq}</line>" );
+        writer.println( "            </ShortMessage>" );
+        writer.println( "        </Pdu>" );
+        writer.println( "    </Repeat>" );
+        writer.println( "    <WaitFor outstanding=\"0\"/>" );
+        if( receipts )
+        {
+            writer.println( "    <WaitFor type=\"DELIVER_SM\" count=\"" + count + "\"/>" );
+        }
+        writer.println( "    <Pdu type=\"UNBIND\"/>" );
+        writer.println( "    <WaitFor type=\"UNBIND_RESP\" count=\"" + sessions +
+                        "\" timeoutMillis=\"10000\"/>" );
+        writer.println( "</Batch>" );
+        writer.close();
+        if( writer.checkError() )
+        {
+            throw new IOException( "Error writing " + file );
+        }
+    }
+
+
+    /**
+     * CPU time and allocation of the client's threads during a run. As
+     * threads' figures can only be read while they are alive, each thread
+     * is sampled at intervals and its last sample is used, so a thread that
+     * ends during the run loses up to SAMPLE_MILLIS of work.
+     */
+    private static class ThreadUsage implements Runnable
+    {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        /**
+         * Allocation counters, or null if the JVM doesn't have them
+         */
+        private final com.sun.management.ThreadMXBean allocation;
+
+        /**
+         * CPU nanoseconds and bytes allocated by each thread at the start
+         * of the run, and at the latest sample, indexed by thread id, or
+         * null for threads that aren't counted
+         */
+        private final Map<Long, long[]> usage = new HashMap<Long, long[]>();
+
+        private volatile boolean running = true;
+
+        /**
+         * Take the starting figures for the threads that already exist
+         */
+        ThreadUsage()
+        {
+            if( threads.isThreadCpuTimeSupported() )
+            {
+                threads.setThreadCpuTimeEnabled( true );
+            }
+            if( threads instanceof com.sun.management.ThreadMXBean &&
+                ( (com.sun.management.ThreadMXBean)threads ).isThreadAllocatedMemorySupported() )
+            {
+                allocation = (com.sun.management.ThreadMXBean)threads;
+                allocation.setThreadAllocatedMemoryEnabled( true );
+            }
+            else
+            {
+                allocation = null;
+            }
+            sample( true );
+        }
+
+        public void run()
+        {
+            // Leave out the sampler's own work
+            usage.put( Thread.currentThread().getId(), null );
+            while( running )
+            {
+                try
+                {
+                    Thread.sleep( SAMPLE_MILLIS );
+                }
+                catch( InterruptedException e )
+                {
+                    break;
+                }
+                sample( false );
+            }
+            sample( false );
+        }
+
+        /**
+         * End sampling after the next sample
+         */
+        void stop()
+        {
+            running = false;
+        }
+
+        /**
+         * Record the figures for every live thread
+         * @param start true for the starting figures
+         */
+        private void sample( boolean start )
+        {
+            for( long id: threads.getAllThreadIds() )
+            {
+                long[] figures = usage.get( id );
+                if( figures == null )
+                {
+                    if( usage.containsKey( id ) )
+                    {
+                        continue;
+                    }
+                    ThreadInfo info = threads.getThreadInfo( id );
+                    // The simulator's threads aren't part of the client
+                    if( info == null || info.getThreadName().startsWith( "Smsc" ) )
+                    {
+                        usage.put( id, null );
+                        continue;
+                    }
+                    // Threads started during the run start from nothing
+                    figures = new long[4];
+                    usage.put( id, figures );
+                }
+                final long cpu = threads.getThreadCpuTime( id );
+                final long allocated =
+                    allocation == null ? -1 : allocation.getThreadAllocatedBytes( id );
+                if( start )
+                {
+                    figures[0] = Math.max( cpu, 0 );
+                    figures[1] = Math.max( allocated, 0 );
+                }
+                // -1 if the thread has ended since its id was read
+                if( cpu >= 0 )
+                {
+                    figures[2] = cpu;
+                }
+                if( allocated >= 0 )
+                {
+                    figures[3] = allocated;
+                }
+            }
+        }
+
+        /**
+         * @return CPU time used by the counted threads in nanoseconds, or
+         *         -1 if it can't be measured
+         */
+        long getCpuNanos()
+        {
+            if( !threads.isThreadCpuTimeSupported() )
+            {
+                return -1;
+            }
+            return total( 0 );
+        }
+
+        /**
+         * @return Bytes allocated by the counted threads, or -1 if it can't
+         *         be measured
+         */
+        long getAllocatedBytes()
+        {
+            if( allocation == null )
+            {
+                return -1;
+            }
+            return total( 1 );
+        }
+
+        /**
+         * @param index 0 for CPU time, 1 for allocation
+         * @return Total of the difference between the last and starting
+         *         figures of the counted threads
+         */
+        private long total( int index )
+        {
+            long total = 0;
+            for( long[] figures: usage.values() )
+            {
+                if( figures != null )
+                {
+                    total += figures[index + 2] - figures[index];
+                }
+            }
+            return total;
+        }
+    }
+
+
+    /**
+     * Measurements of one run
+     */
+    private static class Result
+    {
+        private final int messages;
+        private final long elapsedNanos;
+
+        /**
+         * SUBMIT_SM response latencies, or null if there were no responses
+         */
+        private final LatencyHistogram latencies;
+
+        private final long cpuNanos;
+        private final long allocatedBytes;
+
+        /**
+         * Constructor
+         * @param messages     Number of messages sent
+         * @param elapsedNanos Time from starting the batch to its end
+         * @param latencies    SUBMIT_SM response latencies, or null
+         * @param usage        CPU time and allocation of the client
+         */
+        Result( int messages, long elapsedNanos, LatencyHistogram latencies,
+                ThreadUsage usage )
+        {
+            this.messages = messages;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.cpuNanos = usage.getCpuNanos();
+            this.allocatedBytes = usage.getAllocatedBytes();
+        }
+
+        /**
+         * Print the results as name=value lines
+         * @param out Stream to print to
+         */
+        void print( PrintStream out )
+        {
+            final long responses = latencies == null ? 0 : latencies.getCount();
+            out.println( "messages=" + messages );
+            out.println( "responses=" + responses );
+            out.println( "elapsedMillis=" + format( elapsedNanos / 1e6 ) );
+            out.println( "tps=" + Math.round( responses * 1e9 / elapsedNanos ) );
+            if( latencies != null )
+            {
+                for( double percentile: PERCENTILES )
+                {
+                    out.println(
+                        "latencyP" +
+                            ( percentile == Math.floor( percentile ) ?
+                                  String.valueOf( (long)percentile ) :
+                                  String.valueOf( percentile ).replace( '.', '_' ) ) +
+                            "Millis=" +
+                            format( latencies.getPercentile( percentile ) / 1000.0 ) );
+                }
+                out.println( "latencyMaxMillis=" +
+                             format( latencies.getMax() / 1000.0 ) );
+            }
+            if( cpuNanos >= 0 )
+            {
+                out.println( "cpuMillis=" + format( cpuNanos / 1e6 ) );
+                out.println( "cpuMicrosPerMessage=" +
+                             format( cpuNanos / 1e3 / messages ) );
+            }
+            if( allocatedBytes >= 0 )
+            {
+                out.println( "allocatedMegabytes=" +
+                             format( allocatedBytes / 1048576.0 ) );
+                out.println( "allocatedBytesPerMessage=" + allocatedBytes / messages );
+            }
+        }
+
+        /**
+         * @param value Value to print
+         * @return Value to 3 decimal places
+         */
+        private static String format( double value )
+        {
+            return String.format( "%.3f", value );
+        }
+    }
+
+
+    /**
+     * Arguments are all optional:
+     * -messages N (default 100000), -warmup N (default 20000), -window N
+     * (default 1000), -sessions N (default 1), -engine nio, -receipts and
+     * -log log_file to keep the log of the measured run.
+     * @param args calling arguments
+     */
+    public static void main( String args[] )
+    {
+        EndToEndBenchmark benchmark = new EndToEndBenchmark();
+        try
+        {
+            for( int arg = 0; arg < args.length; arg++ )
+            {
+                if( args[arg].equals( "-receipts" ) )
+                {
+                    benchmark.receipts = true;
+                }
+                else if( arg + 1 >= args.length )
+                {
+                    throw new IllegalArgumentException();
+                }
+                else if( args[arg].equals( "-messages" ) )
+                {
+                    benchmark.messages = Integer.parseInt( args[++arg] );
+                }
+                else if( args[arg].equals( "-warmup" ) )
+                {
+                    benchmark.warmup = Integer.parseInt( args[++arg] );
+                }
+                else if( args[arg].equals( "-window" ) )
+                {
+                    benchmark.window = Integer.parseInt( args[++arg] );
+                }
+                else if( args[arg].equals( "-sessions" ) )
+                {
+                    benchmark.sessions = Integer.parseInt( args[++arg] );
+                }
+                else if( args[arg].equals( "-engine" ) )
+                {
+                    benchmark.engine = args[++arg];
+                }
+                else if( args[arg].equals( "-log" ) )
+                {
+                    benchmark.logFile = new File( args[++arg] );
+                }
+                else
+                {
+                    throw new IllegalArgumentException();
+                }
+            }
+            if( benchmark.messages <= 0 || benchmark.warmup < 0 ||
+                benchmark.window < 0 || benchmark.sessions <= 0 )
+            {
+                throw new IllegalArgumentException();
+            }
+        }
+        catch( IllegalArgumentException e )
+        {
+            System.err.println(
+                "Usage: java EndToEndBenchmark [-messages N] [-warmup N] [-window N]" +
+                " [-sessions N] [-engine nio] [-receipts] [-log log_file]" );
+            return;
+        }
+
+        try
+        {
+            benchmark.run();
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Benchmark failed: " + e.getMessage() );
+        }
+    }
+}
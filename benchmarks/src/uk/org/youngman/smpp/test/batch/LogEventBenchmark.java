@@ -0,0 +1,41 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.Date;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.smpp.pdu.PDU;
+import uk.org.youngman.smpp.test.SMPPEvent;
+
+
+/**
+ * Formatting a PDU for the event log. The log discards what it formats, so
+ * only the formatting done on the sending and receiving threads is
+ * measured, not the file and console output.
+ */
+public class LogEventBenchmark extends PDUTypeBenchmark
+{
+    private BatchEventLog eventLog;
+    private PDU pdu;
+    private String message;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        eventLog = new BatchEventLog();
+        pdu = PDUSamples.pdu( getType() );
+        message = "Received PDU, seq=" + pdu.getSequenceNumber() + ", type=" + type;
+    }
+
+    @Benchmark
+    public void logEvent()
+    {
+        eventLog.logEvent( new Date(), SMPPEvent.EventType.RECEIVED_PDU, pdu, message );
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.io.IOException;
+import org.smpp.Connection;
+import org.smpp.util.ByteBuffer;
+
+
+/**
+ * Connection that is always open, discards everything sent on it and
+ * never receives anything
+ */
+class NullConnection extends Connection
+{
+    /**
+     * Number of PDUs sent, so the sends can't be optimised away
+     */
+    private long sent = 0;
+
+
+    public void open() throws IOException
+    {
+    }
+
+    public void close() throws IOException
+    {
+    }
+
+    public boolean isOpened()
+    {
+        return true;
+    }
+
+    public void send( ByteBuffer data ) throws IOException
+    {
+        sent++;
+    }
+
+    public ByteBuffer receive() throws IOException
+    {
+        return null;
+    }
+
+    public Connection accept() throws IOException
+    {
+        throw new IOException( "Null connection can't accept connections" );
+    }
+
+    /**
+     * @return Number of PDUs sent
+     */
+    long getSent()
+    {
+        return sent;
+    }
+}
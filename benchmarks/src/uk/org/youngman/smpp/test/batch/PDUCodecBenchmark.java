@@ -0,0 +1,48 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.smpp.pdu.PDU;
+import org.smpp.util.ByteBuffer;
+
+
+/**
+ * Encoding a PDU with PDU.getData(), as the runner does for each PDU it
+ * can't send pre-encoded, and decoding one from the bytes read off the
+ * connection, as the receiver does for every PDU received
+ */
+public class PDUCodecBenchmark extends PDUTypeBenchmark
+{
+    private PDU pdu;
+
+    /**
+     * The encoded PDU, which decoding doesn't change
+     */
+    private byte[] encoded;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        pdu = PDUSamples.pdu( getType() );
+        encoded = pdu.getData().getBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Exception
+    {
+        return pdu.getData();
+    }
+
+    @Benchmark
+    public PDU decode() throws Exception
+    {
+        return PDU.createPDU( new ByteBuffer( encoded ) );
+    }
+}
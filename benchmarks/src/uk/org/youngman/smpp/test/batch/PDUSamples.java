@@ -0,0 +1,140 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.io.StringReader;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.smpp.pdu.PDU;
+
+
+/**
+ * Typical <Pdu> elements for the benchmarks, one for each PDU type that
+ * BatchReader can build. SUBMIT_MULTI_RESP and ALERT_NOTIFICATION are
+ * missing because BatchReader doesn't support them.
+ */
+class PDUSamples
+{
+    /**
+     * Not instantiated
+     */
+    private PDUSamples()
+    {
+    }
+
+    /**
+     * @param type PDU type
+     * @return Parsed <Pdu> element for the type
+     * @throws Exception The sample can't be parsed
+     */
+    static Element element( Batch.CommandID type ) throws Exception
+    {
+        return new SAXBuilder().build(
+            new StringReader( "<Pdu type=\"" + type + "\">" + fields( type ) + "</Pdu>" ) )
+            .getRootElement();
+    }
+
+    /**
+     * @param type PDU type
+     * @return PDU built from the sample for the type
+     * @throws Exception The sample can't be built
+     */
+    static PDU pdu( Batch.CommandID type ) throws Exception
+    {
+        PDU pdu = new BatchReader( null ).readPDU( element( type ) );
+        if( pdu == null )
+        {
+            throw new IllegalArgumentException( "No sample for " + type );
+        }
+        return pdu;
+    }
+
+    /**
+     * The DELIVER_SM sample is a delivery receipt. This is a message from a
+     * mobile, which a session answers without matching it to a submit.
+     * @return DELIVER_SM carrying a mobile originated message
+     * @throws Exception The sample can't be built
+     */
+    static PDU moDeliverSM() throws Exception
+    {
+        return new BatchReader( null ).readPDU( new SAXBuilder().build(
+            new StringReader( "<Pdu type=\"DELIVER_SM\">" +
+                              "<SourceAddr>447700900123</SourceAddr>" +
+                              "<DestinationAddr>80001</DestinationAddr>" +
+                              "<SequenceNumber>42</SequenceNumber>" +
+                              "<ShortMessage><line>This is a reply of typical length" +
+                              " from a mobile.</line></ShortMessage></Pdu>" ) )
+            .getRootElement() );
+    }
+
+    /**
+     * @param type PDU type
+     * @return Child elements of the sample for the type
+     */
+    private static String fields( Batch.CommandID type )
+    {
+        switch( type )
+        {
+        case GENERIC_NACK:
+            return "<CommandStatus>3</CommandStatus><SequenceNumber>17</SequenceNumber>";
+        case BIND_RECEIVER:
+        case BIND_TRANSMITTER:
+        case BIND_TRANSCEIVER:
+            return "<SystemId>EXAMPLE</SystemId><SystemType>TESTSMSC</SystemType>" +
+                "<Password>NOTVALID</Password><SequenceNumber>1</SequenceNumber>";
+        case BIND_RECEIVER_RESP:
+        case BIND_TRANSMITTER_RESP:
+        case BIND_TRANSCEIVER_RESP:
+            return "<SystemId>SMSC</SystemId><SequenceNumber>1</SequenceNumber>";
+        case OUTBIND:
+            return "<SystemId>SMSC</SystemId><Password>NOTVALID</Password>";
+        case SUBMIT_SM:
+            return "<ServiceType>voice</ServiceType><SourceAddr>447700900123</SourceAddr>" +
+                "<DestinationAddr>07700900001</DestinationAddr>" +
+                "<RegisteredDelivery>1</RegisteredDelivery><SequenceNumber>42</SequenceNumber>" +
+                "<ShortMessage><line>This is a load test message of typical length.</line>" +
+                "</ShortMessage>";
+        case SUBMIT_MULTI:
+            return "<ServiceType>voice</ServiceType><SourceAddr>447700900123</SourceAddr>" +
+                "<DestinationAddresses>" +
+                "<Destination><DestAddr>07700900001</DestAddr></Destination>" +
+                "<Destination><DestAddr>07700900002</DestAddr></Destination>" +
+                "</DestinationAddresses><SequenceNumber>42</SequenceNumber>" +
+                "<ShortMessage><line>This is a load test message of typical length.</line>" +
+                "</ShortMessage>";
+        case DELIVER_SM:
+            return "<SourceAddr>07700900001</SourceAddr>" +
+                "<DestinationAddr>447700900123</DestinationAddr><EsmClass>4</EsmClass>" +
+                "<SequenceNumber>42</SequenceNumber>" +
+                "<ShortMessage><line>id:1a2b3c sub:001 dlvrd:001 submit date:2601011200" +
+                " done date:2601011201 stat:DELIVRD err:000 text:</line></ShortMessage>" +
+                "<ReceiptedMessageId>1a2b3c</ReceiptedMessageId><MessageState>2</MessageState>";
+        case DATA_SM:
+            return "<ServiceType>voice</ServiceType><SourceAddr>447700900123</SourceAddr>" +
+                "<DestinationAddr>07700900001</DestinationAddr>" +
+                "<RegisteredDelivery>1</RegisteredDelivery><SequenceNumber>42</SequenceNumber>" +
+                "<MessagePayload><line>This is a load test message of typical length.</line>" +
+                "</MessagePayload>";
+        case SUBMIT_SM_RESP:
+        case DATA_SM_RESP:
+            return "<MessageId>1a2b3c</MessageId><SequenceNumber>42</SequenceNumber>";
+        case QUERY_SM:
+        case CANCEL_SM:
+            return "<MessageId>1a2b3c</MessageId><SourceAddr>447700900123</SourceAddr>" +
+                "<SequenceNumber>42</SequenceNumber>";
+        case QUERY_SM_RESP:
+            return "<MessageId>1a2b3c</MessageId><FinalDate>260101120100000+</FinalDate>" +
+                "<MessageState>2</MessageState><SequenceNumber>42</SequenceNumber>";
+        case REPLACE_SM:
+            return "<MessageId>1a2b3c</MessageId><SourceAddr>447700900123</SourceAddr>" +
+                "<SequenceNumber>42</SequenceNumber>" +
+                "<ShortMessage><line>This is a replacement message.</line></ShortMessage>";
+        default:
+            return "<SequenceNumber>42</SequenceNumber>";
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Benchmarks run once for each PDU type that PDUSamples has a sample of
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public abstract class PDUTypeBenchmark
+{
+    @Param( { "GENERIC_NACK", "BIND_RECEIVER", "BIND_RECEIVER_RESP",
+              "BIND_TRANSMITTER", "BIND_TRANSMITTER_RESP", "QUERY_SM", "QUERY_SM_RESP",
+              "SUBMIT_SM", "SUBMIT_SM_RESP", "DELIVER_SM", "DELIVER_SM_RESP",
+              "UNBIND", "UNBIND_RESP", "REPLACE_SM", "REPLACE_SM_RESP",
+              "CANCEL_SM", "CANCEL_SM_RESP", "BIND_TRANSCEIVER", "BIND_TRANSCEIVER_RESP",
+              "OUTBIND", "ENQUIRE_LINK", "ENQUIRE_LINK_RESP", "SUBMIT_MULTI",
+              "DATA_SM", "DATA_SM_RESP" } )
+    public String type;
+
+
+    /**
+     * @return PDU type being measured
+     */
+    protected Batch.CommandID getType()
+    {
+        return Batch.CommandID.valueOf( type );
+    }
+}
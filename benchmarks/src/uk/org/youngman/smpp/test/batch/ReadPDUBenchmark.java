@@ -0,0 +1,37 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import org.jdom.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.smpp.pdu.PDU;
+
+
+/**
+ * Building a PDU from its <Pdu> element, which is done for every PDU of a
+ * template with placeholders
+ */
+public class ReadPDUBenchmark extends PDUTypeBenchmark
+{
+    private BatchReader reader;
+    private Element element;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        reader = new BatchReader( null );
+        element = PDUSamples.element( getType() );
+    }
+
+    @Benchmark
+    public PDU readPDU() throws Exception
+    {
+        return reader.readPDU( element );
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import uk.org.youngman.smpp.test.batch.Batch.CommandID;
+import uk.org.youngman.smpp.test.batch.Batch.CommandStatus;
+
+
+/**
+ * Counts the PDUs sent and received by a test tool, and publishes the
+ * counts through JMX once registered. The counters are striped, so the
+ * threads sending and receiving PDUs don't contend with each other or with
+ * JMX clients reading the counts.
+ */
+public class SMPPStats
+    implements SMPPStatsMXBean
+{
+    /**
+     * JMX domain of the registered beans
+     */
+    private static final String DOMAIN = "uk.org.youngman.smpp.test";
+
+    /**
+     * Shortest interval the TPS is measured over
+     */
+    private static final long TPS_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * CommandId values in ascending order, and the CommandID.ordinal() of
+     * each, as Batch.CommandID.find() needs the Batch class to have been
+     * loaded
+     */
+    private static final CommandID[] COMMAND_IDS = CommandID.values();
+    private static final int[] IDS = new int[COMMAND_IDS.length];
+    private static final int[] ID_ORDINALS = new int[COMMAND_IDS.length];
+
+    /**
+     * CommandStatus values in ascending order, and the ordinal() of each
+     */
+    private static final CommandStatus[] COMMAND_STATUSES = CommandStatus.values();
+    private static final int[] STATUSES = new int[COMMAND_STATUSES.length];
+    private static final int[] STATUS_ORDINALS = new int[COMMAND_STATUSES.length];
+
+    static
+    {
+        for( int i = 0; i < COMMAND_IDS.length; i++ )
+        {
+            IDS[i] = COMMAND_IDS[i].getId();
+        }
+        Arrays.sort( IDS );
+        for( CommandID id: COMMAND_IDS )
+        {
+            ID_ORDINALS[Arrays.binarySearch( IDS, id.getId() )] = id.ordinal();
+        }
+
+        for( int i = 0; i < COMMAND_STATUSES.length; i++ )
+        {
+            STATUSES[i] = COMMAND_STATUSES[i].getStatus();
+        }
+        Arrays.sort( STATUSES );
+        for( CommandStatus status: COMMAND_STATUSES )
+        {
+            STATUS_ORDINALS[Arrays.binarySearch( STATUSES, status.getStatus() )] =
+                status.ordinal();
+        }
+    }
+
+    /**
+     * Offsets of the groups of counters. Each group has a counter for each
+     * CommandID or CommandStatus, by ordinal, followed by one for
+     * unrecognised values.
+     */
+    private static final int SENT = 0;
+    private static final int RECEIVED = SENT + COMMAND_IDS.length + 1;
+    private static final int RESPONSES = RECEIVED + COMMAND_IDS.length + 1;
+
+    /**
+     * Offsets of the single counters
+     */
+    private static final int BYTES_SENT = RESPONSES + COMMAND_STATUSES.length + 1;
+    private static final int BYTES_RECEIVED = BYTES_SENT + 1;
+    private static final int REQUESTS_SENT = BYTES_RECEIVED + 1;
+    private static final int RESPONSES_RECEIVED = REQUESTS_SENT + 1;
+    private static final int REQUESTS_ABANDONED = RESPONSES_RECEIVED + 1;
+    private static final int COUNTERS = REQUESTS_ABANDONED + 1;
+
+    private final StripedCounters counters = new StripedCounters( COUNTERS );
+
+    /**
+     * Sessions open. These change rarely, so aren't striped.
+     */
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * Time and request count when the TPS was last measured, and the rate
+     */
+    private long tpsNanos = System.nanoTime();
+    private long tpsRequests = 0;
+    private double tps = 0;
+
+    /**
+     * Name registered with the platform MBean server, or null
+     */
+    private ObjectName objectName = null;
+
+
+    /**
+     * Count a PDU sent
+     * @param commandId CommandId of the PDU
+     * @param length    Length of the PDU in octets
+     */
+    public void sent( int commandId, int length )
+    {
+        counters.add( SENT + idIndex( commandId ), 1 );
+        counters.add( BYTES_SENT, length );
+        if( !isResponse( commandId ) )
+        {
+            counters.add( REQUESTS_SENT, 1 );
+        }
+    }
+
+    /**
+     * Count a PDU received
+     * @param commandId     CommandId of the PDU
+     * @param commandStatus CommandStatus of the PDU
+     * @param length        Length of the PDU in octets
+     */
+    public void received( int commandId, int commandStatus, int length )
+    {
+        counters.add( RECEIVED + idIndex( commandId ), 1 );
+        counters.add( BYTES_RECEIVED, length );
+        if( isResponse( commandId ) )
+        {
+            counters.add( RESPONSES + statusIndex( commandStatus ), 1 );
+            counters.add( RESPONSES_RECEIVED, 1 );
+        }
+    }
+
+    /**
+     * Stop counting requests as outstanding when they won't be waited for
+     * any longer
+     * @param requests Number of requests given up on
+     */
+    public void abandoned( int requests )
+    {
+        counters.add( REQUESTS_ABANDONED, requests );
+    }
+
+    /**
+     * Count a session that has connected
+     */
+    public void sessionOpened()
+    {
+        sessions.incrementAndGet();
+    }
+
+    /**
+     * Count a session that has disconnected
+     */
+    public void sessionClosed()
+    {
+        sessions.decrementAndGet();
+    }
+
+    /**
+     * @param id PDU type
+     * @return Number of PDUs of that type sent
+     */
+    public long getSent( CommandID id )
+    {
+        return counters.get( SENT + id.ordinal() );
+    }
+
+    /**
+     * @param id PDU type
+     * @return Number of PDUs of that type received
+     */
+    public long getReceived( CommandID id )
+    {
+        return counters.get( RECEIVED + id.ordinal() );
+    }
+
+    /**
+     * @param status Response status
+     * @return Number of responses received with that status
+     */
+    public long getResponses( CommandStatus status )
+    {
+        return counters.get( RESPONSES + status.ordinal() );
+    }
+
+    public Map<String, Long> getSentPDUs()
+    {
+        return idCounts( SENT );
+    }
+
+    public Map<String, Long> getReceivedPDUs()
+    {
+        return idCounts( RECEIVED );
+    }
+
+    public Map<String, Long> getResponseStatuses()
+    {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for( CommandStatus status: COMMAND_STATUSES )
+        {
+            put( counts, status.name(), getResponses( status ) );
+        }
+        put( counts, "UNKNOWN", counters.get( RESPONSES + COMMAND_STATUSES.length ) );
+        return counts;
+    }
+
+    public long getOutstandingRequests()
+    {
+        // Read the responses first, so a response to a request sent while
+        // reading can't make this negative
+        final long responses = counters.get( RESPONSES_RECEIVED ) +
+                               counters.get( REQUESTS_ABANDONED );
+        return Math.max( 0, counters.get( REQUESTS_SENT ) - responses );
+    }
+
+    public int getSessions()
+    {
+        return sessions.get();
+    }
+
+    public long getBytesSent()
+    {
+        return counters.get( BYTES_SENT );
+    }
+
+    public long getBytesReceived()
+    {
+        return counters.get( BYTES_RECEIVED );
+    }
+
+    public synchronized double getTps()
+    {
+        final long now = System.nanoTime();
+        if( now - tpsNanos >= TPS_INTERVAL_NANOS )
+        {
+            final long requests = counters.get( REQUESTS_SENT );
+            tps = ( requests - tpsRequests ) * 1e9 / ( now - tpsNanos );
+            tpsNanos = now;
+            tpsRequests = requests;
+        }
+        return tps;
+    }
+
+    /**
+     * Publish these counts with the platform MBean server. Failure is
+     * reported, but the tool carries on without JMX.
+     * @param name Name of the tool, used in the ObjectName
+     */
+    public void register( String name )
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName( DOMAIN + ":type=SMPPStats,name=" + name );
+            server.registerMBean( this, objectName );
+            this.objectName = objectName;
+        }
+        catch( JMException e )
+        {
+            System.err.println( "Exception registering JMX statistics: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Stop publishing these counts, if they were registered
+     */
+    public void unregister()
+    {
+        if( objectName == null )
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+        }
+        catch( JMException e )
+        {
+            System.err.println( "Exception unregistering JMX statistics: " + e.getMessage() );
+        }
+        objectName = null;
+    }
+
+    /**
+     * @param offset Offset of the group of counters
+     * @return Counts of the PDU types seen, by name
+     */
+    private Map<String, Long> idCounts( int offset )
+    {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for( CommandID id: COMMAND_IDS )
+        {
+            put( counts, id.name(), counters.get( offset + id.ordinal() ) );
+        }
+        put( counts, "UNKNOWN", counters.get( offset + COMMAND_IDS.length ) );
+        return counts;
+    }
+
+    /**
+     * Add a count to a map if it isn't 0
+     * @param counts Map to add to
+     * @param name   Name of the count
+     * @param count  The count
+     */
+    private static void put( Map<String, Long> counts, String name, long count )
+    {
+        if( count != 0 )
+        {
+            counts.put( name, count );
+        }
+    }
+
+    /**
+     * @param commandId CommandId of a PDU
+     * @return true if the PDU is a response
+     */
+    private static boolean isResponse( int commandId )
+    {
+        return ( commandId & 0x80000000 ) != 0;
+    }
+
+    /**
+     * @param commandId CommandId of a PDU
+     * @return CommandID.ordinal(), or the number of CommandIDs if the
+     *         CommandId isn't recognised
+     */
+    private static int idIndex( int commandId )
+    {
+        final int index = Arrays.binarySearch( IDS, commandId );
+        return index < 0 ? COMMAND_IDS.length : ID_ORDINALS[index];
+    }
+
+    /**
+     * @param commandStatus CommandStatus of a response
+     * @return CommandStatus.ordinal(), or the number of CommandStatuses if
+     *         the status isn't recognised
+     */
+    private static int statusIndex( int commandStatus )
+    {
+        final int index = Arrays.binarySearch( STATUSES, commandStatus );
+        return index < 0 ? COMMAND_STATUSES.length : STATUS_ORDINALS[index];
+    }
+}
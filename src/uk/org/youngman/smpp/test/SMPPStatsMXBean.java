@@ -0,0 +1,60 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test;
+
+
+import java.util.Map;
+
+
+/**
+ * Live counts of the PDUs sent and received by a test tool, for JMX
+ * clients such as jconsole. PDU types are named as in Batch.CommandID and
+ * response statuses as in Batch.CommandStatus. Types and statuses that
+ * haven't been seen are left out.
+ */
+public interface SMPPStatsMXBean
+{
+    /**
+     * @return PDUs sent, by type
+     */
+    Map<String, Long> getSentPDUs();
+
+    /**
+     * @return PDUs received, by type
+     */
+    Map<String, Long> getReceivedPDUs();
+
+    /**
+     * @return Responses received, by status
+     */
+    Map<String, Long> getResponseStatuses();
+
+    /**
+     * @return Requests sent that have had no response yet
+     */
+    long getOutstandingRequests();
+
+    /**
+     * @return Sessions connected to the SMSC
+     */
+    int getSessions();
+
+    /**
+     * @return Total length of the PDUs sent
+     */
+    long getBytesSent();
+
+    /**
+     * @return Total length of the PDUs received
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Requests sent per second since the rate was last read, or
+     *         over the last second if it was read less than a second ago
+     */
+    double getTps();
+}
@@ -0,0 +1,109 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A set of counters that many threads can add to without contending with
+ * each other. Each counter is split into a number of stripes, and each
+ * thread adds to the stripe chosen by its thread id, so threads rarely
+ * share a stripe. Reading a counter adds up its stripes, so reads are
+ * slower than updates and may miss updates made while they are in
+ * progress.
+ * <p>
+ * A stripe holds one of each counter, followed by padding so that threads
+ * adding to neighbouring stripes don't share cache lines.
+ */
+class StripedCounters
+{
+    /**
+     * Longs of padding after each stripe, enough to fill a cache line
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Most stripes used, however many processors there are
+     */
+    private static final int MAX_STRIPES = 64;
+
+    private final int counters;
+
+    /**
+     * Offset from the start of one stripe to the next
+     */
+    private final int stride;
+
+    /**
+     * stripes - 1, where the number of stripes is a power of 2
+     */
+    private final int mask;
+
+    private final AtomicLongArray values;
+
+
+    /**
+     * Constructor
+     * @param counters Number of counters
+     */
+    StripedCounters( int counters )
+    {
+        this.counters = counters;
+        this.stride = counters + PADDING;
+        int stripes = 1;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        while( stripes < 2 * processors && stripes < MAX_STRIPES )
+        {
+            stripes <<= 1;
+        }
+        this.mask = stripes - 1;
+        this.values = new AtomicLongArray( stripes * stride );
+    }
+
+    /**
+     * @return Number of counters
+     */
+    int size()
+    {
+        return counters;
+    }
+
+    /**
+     * Add to a counter
+     * @param counter Index of the counter
+     * @param delta   Amount to add
+     */
+    void add( int counter, long delta )
+    {
+        values.getAndAdd( stripe() * stride + counter, delta );
+    }
+
+    /**
+     * @param counter Index of the counter
+     * @return Total of the counter's stripes
+     */
+    long get( int counter )
+    {
+        long total = 0;
+        for( int offset = counter; offset < values.length(); offset += stride )
+        {
+            total += values.get( offset );
+        }
+        return total;
+    }
+
+    /**
+     * @return Stripe for the calling thread
+     */
+    private int stripe()
+    {
+        // Spread consecutive thread ids over the stripes
+        final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int)( id >>> 32 ) & mask;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Adjusts a send rate to what the SMSC will accept, in the way real ESMEs
+ * do (additive increase, multiplicative decrease). When the SMSC answers
+ * with ESME_RTHROTTLED or ESME_RMSGQFUL the rate is cut by a factor. After
+ * each interval with only clean responses it is raised by a fixed step.
+ * Only one cut is made per interval, as a burst of throttled responses
+ * usually comes from a single episode of congestion.
+ * <p>
+ * Responses are reported by the receiving threads. The rate is only
+ * changed by the sending thread, when it calls update().
+ */
+class AdaptiveRate
+{
+    /**
+     * Time between rate increases, and the shortest time between cuts
+     */
+    static final long INTERVAL_MILLIS = 100;
+
+    /**
+     * Default factor the rate is multiplied by when throttled
+     */
+    static final double DEFAULT_DECREASE = 0.5;
+
+    /**
+     * Default step as a fraction of the starting rate
+     */
+    private static final double DEFAULT_STEP_FRACTION = 0.05;
+
+    private double rate;
+    private double minRate;
+    private double maxRate;
+    private double step;
+    private double decrease;
+
+    /**
+     * Time of the last change to the rate, from System.nanoTime()
+     */
+    private long lastChangeNanos;
+
+    /**
+     * Responses since the last update()
+     */
+    private AtomicLong throttled = new AtomicLong();
+    private AtomicLong clean = new AtomicLong();
+
+    /**
+     * Throttled responses over the whole load
+     */
+    private AtomicLong totalThrottled = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param rate     Starting rate, per second
+     * @param minRate  Lowest rate, per second
+     * @param maxRate  Highest rate, per second
+     * @param step     Increase per interval, per second, or 0 for the default
+     * @param decrease Factor to cut the rate by, or 0 for the default
+     */
+    AdaptiveRate( double rate, double minRate, double maxRate,
+                  double step, double decrease )
+    {
+        if( minRate <= 0 || maxRate < minRate )
+        {
+            throw new IllegalArgumentException( "Invalid adaptive rate range" );
+        }
+        if( decrease < 0 || decrease >= 1 )
+        {
+            throw new IllegalArgumentException( "Rate decrease must be between 0 and 1" );
+        }
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.rate = Math.max( minRate, Math.min( maxRate, rate ) );
+        this.step = step > 0 ? step : Math.max( 1, rate * DEFAULT_STEP_FRACTION );
+        this.decrease = decrease > 0 ? decrease : DEFAULT_DECREASE;
+        this.lastChangeNanos = System.nanoTime();
+    }
+
+    /**
+     * Record a response
+     * @param commandStatus CommandStatus of the response
+     */
+    void response( int commandStatus )
+    {
+        if( isThrottled( commandStatus ) )
+        {
+            throttled.incrementAndGet();
+            totalThrottled.incrementAndGet();
+        }
+        else
+        {
+            clean.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param commandStatus CommandStatus of a response
+     * @return true if the status asks the ESME to send more slowly
+     */
+    static boolean isThrottled( int commandStatus )
+    {
+        return commandStatus == Batch.CommandStatus.ESME_RTHROTTLED.getStatus() ||
+               commandStatus == Batch.CommandStatus.ESME_RMSGQFUL.getStatus();
+    }
+
+    /**
+     * Adjust the rate for the responses received since the last change
+     * @param nowNanos Current time, from System.nanoTime()
+     * @return true if the rate has changed
+     */
+    boolean update( long nowNanos )
+    {
+        if( nowNanos - lastChangeNanos < INTERVAL_MILLIS * 1000000L )
+        {
+            return false;
+        }
+
+        final double previous = rate;
+        if( throttled.getAndSet( 0 ) > 0 )
+        {
+            rate = Math.max( minRate, rate * decrease );
+            clean.set( 0 );
+        }
+        else if( clean.getAndSet( 0 ) > 0 )
+        {
+            rate = Math.min( maxRate, rate + step );
+        }
+        lastChangeNanos = nowNanos;
+        return rate != previous;
+    }
+
+    /**
+     * @return Current rate, per second
+     */
+    double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * @return Number of throttled responses since the load started
+     */
+    long getTotalThrottled()
+    {
+        return totalThrottled.get();
+    }
+}
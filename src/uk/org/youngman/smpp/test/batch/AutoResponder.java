@@ -0,0 +1,191 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import org.smpp.pdu.PDU;
+import org.smpp.pdu.Request;
+import org.smpp.util.ByteBuffer;
+
+
+/**
+ * Generates ESME_ROK responses to received requests, for the request types
+ * that have automatic responses enabled. Every response is encoded once,
+ * when the class is loaded, and each responder keeps its own copy of the
+ * encoded bytes, so answering a request only means patching its sequence
+ * number into the copy. Request types are looked up in tables indexed by
+ * CommandId, so there is no locking or boxing on the receive path.
+ * <p>
+ * A responder must only be used by one receiving thread, as the same bytes
+ * are reused for every response of a type. Connection.send() has written
+ * the bytes out, and CoalescingWriter.send() and NioConnection.send() have
+ * copied anything they still need, by the time they return. Responses may
+ * be enabled and disabled from any thread.
+ */
+class AutoResponder
+{
+    /**
+     * Size of the tables. All request CommandIds are below this.
+     */
+    private static final int TABLE_SIZE = 0x200;
+
+    /**
+     * Offset of the sequence_number field in the PDU header
+     */
+    private static final int SEQUENCE_NUMBER_OFFSET = 12;
+
+    /**
+     * Bit set in the CommandId of every response
+     */
+    private static final int RESPONSE_BIT = 0x80000000;
+
+    /**
+     * Encoded ESME_ROK response to each request type, indexed by the
+     * request's CommandId, or null if the request type has no response
+     */
+    private static final byte[][] TEMPLATES = new byte[TABLE_SIZE][];
+
+    static
+    {
+        for( Batch.CommandID type: Batch.CommandID.values() )
+        {
+            final int id = type.getId();
+            if( id < 0 || id >= TABLE_SIZE )
+            {
+                // Responses and GENERIC_NACK
+                continue;
+            }
+            PDU request = PDU.createPDU( id );
+            if( !( request instanceof Request ) || !request.canResponse() )
+            {
+                // OUTBIND and ALERT_NOTIFICATION
+                continue;
+            }
+            try
+            {
+                TEMPLATES[id] = ((Request)request).getResponse().getData().getBuffer();
+            }
+            catch( Exception e )
+            {
+                System.err.println( "Could not encode response to " + type );
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Request types with automatic responses enabled, indexed by CommandId.
+     * Replaced rather than changed, so the receiving thread always sees a
+     * complete table.
+     */
+    private volatile boolean[] enabled = new boolean[TABLE_SIZE];
+
+    /**
+     * This responder's copies of the encoded responses, created as they are
+     * first needed. Only used on the receiving thread.
+     */
+    private final ByteBuffer[] responses = new ByteBuffer[TABLE_SIZE];
+
+    /**
+     * This responder's response PDUs, for logging the responses sent,
+     * created as they are first needed. Only used on the receiving thread.
+     */
+    private final PDU[] responsePdus = new PDU[TABLE_SIZE];
+
+
+    /**
+     * @param commandId CommandId of a request
+     * @return true if automatic responses can be generated for the request
+     */
+    static boolean canRespond( int commandId )
+    {
+        return commandId >= 0 && commandId < TABLE_SIZE &&
+               TEMPLATES[commandId] != null;
+    }
+
+    /**
+     * @param commandId CommandId of a request
+     * @return CommandId of the response to the request
+     */
+    static int responseId( int commandId )
+    {
+        return commandId | RESPONSE_BIT;
+    }
+
+    /**
+     * Enable or disable automatic responses to a request type
+     * @param commandId CommandId of the request type
+     * @param enable    Enable or disable
+     * @return true if the request type can have automatic responses
+     */
+    synchronized boolean setEnabled( int commandId, boolean enable )
+    {
+        if( !canRespond( commandId ) )
+        {
+            return false;
+        }
+        boolean[] updated = enabled.clone();
+        updated[commandId] = enable;
+        enabled = updated;
+        return true;
+    }
+
+    /**
+     * @param commandId CommandId of a request type
+     * @return true if automatic responses to the request type are enabled
+     */
+    boolean isEnabled( int commandId )
+    {
+        return commandId >= 0 && commandId < TABLE_SIZE && enabled[commandId];
+    }
+
+    /**
+     * Get the response to a received PDU
+     * @param commandId      CommandId of the received PDU
+     * @param sequenceNumber Sequence number of the received PDU
+     * @return Encoded response, valid until the next call, or null if no
+     *         response should be sent
+     */
+    ByteBuffer respond( int commandId, int sequenceNumber )
+    {
+        if( !isEnabled( commandId ) )
+        {
+            return null;
+        }
+        ByteBuffer response = responses[commandId];
+        if( response == null )
+        {
+            response = new ByteBuffer( TEMPLATES[commandId].clone() );
+            responses[commandId] = response;
+        }
+        final byte[] bytes = response.getBuffer();
+        bytes[SEQUENCE_NUMBER_OFFSET] = (byte)( sequenceNumber >>> 24 );
+        bytes[SEQUENCE_NUMBER_OFFSET + 1] = (byte)( sequenceNumber >>> 16 );
+        bytes[SEQUENCE_NUMBER_OFFSET + 2] = (byte)( sequenceNumber >>> 8 );
+        bytes[SEQUENCE_NUMBER_OFFSET + 3] = (byte)sequenceNumber;
+        return response;
+    }
+
+    /**
+     * Get a PDU matching the response sent by respond(), so the response can
+     * be logged with the same detail as other PDUs
+     * @param commandId      CommandId of the received request
+     * @param sequenceNumber Sequence number of the received request
+     * @return Response PDU, valid until the next call for the same request
+     *         type
+     */
+    PDU responsePDU( int commandId, int sequenceNumber )
+    {
+        PDU response = responsePdus[commandId];
+        if( response == null )
+        {
+            response = ((Request)PDU.createPDU( commandId )).getResponse();
+            responsePdus[commandId] = response;
+        }
+        response.setSequenceNumber( sequenceNumber );
+        return response;
+    }
+}
@@ -8,7 +8,10 @@ package uk.org.youngman.smpp.test.batch;
 
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import org.jdom.Element;
 import org.smpp.Data;
 import org.smpp.pdu.PDU;
 
@@ -27,15 +30,24 @@ public class Batch
      */
     protected static class PDUEvent implements Event
     {
-        private PDU pdu;
+        private EncodedPDU encoded;
 
         /**
-         * Constructor
+         * Constructor. The PDU is encoded straight away.
          * @param pdu SMPP PDU to send.
          */
         public PDUEvent( PDU pdu )
         {
-            this.pdu = pdu;
+            this( new EncodedPDU( pdu ) );
+        }
+
+        /**
+         * Constructor
+         * @param encoded SMPP PDU to send, already encoded.
+         */
+        PDUEvent( EncodedPDU encoded )
+        {
+            this.encoded = encoded;
         }
 
         /**
@@ -43,7 +55,15 @@ public class Batch
          */
         public PDU getPdu()
         {
-            return pdu;
+            return encoded.getPdu();
+        }
+
+        /**
+         * @return SMPP PDU to send, with its encoded form
+         */
+        EncodedPDU getEncoded()
+        {
+            return encoded;
         }
     }
 
@@ -72,6 +92,84 @@ public class Batch
         }
     }
 
+    /**
+     * Event representing a wait until a fixed time after the start of the run
+     */
+    protected static class AtEvent implements Event
+    {
+        private long offsetMillis;
+
+        /**
+         * Constructor
+         * @param offsetMillis Time from the start of the run in milliseconds
+         */
+        public AtEvent( long offsetMillis )
+        {
+            this.offsetMillis = offsetMillis;
+        }
+
+        /**
+         * @return Time from the start of the run in milliseconds
+         */
+        public long getOffsetMillis()
+        {
+            return offsetMillis;
+        }
+    }
+
+    /**
+     * Event representing a wait for PDUs to be received. Waits either for a
+     * number of PDUs of one type, or for the number of requests awaiting a
+     * response to fall to a limit.
+     */
+    protected static class WaitForEvent implements Event
+    {
+        private CommandID pduType;
+        private long count;
+        private long timeoutMillis;
+
+        /**
+         * Constructor
+         * @param pduType       Type of PDU to wait for, or null to wait for
+         *                      outstanding requests
+         * @param count         Number of PDUs to wait for, or the number of
+         *                      requests that may still be outstanding
+         * @param timeoutMillis Maximum time to wait
+         */
+        public WaitForEvent( CommandID pduType, long count, long timeoutMillis )
+        {
+            this.pduType = pduType;
+            this.count = count;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * @return Type of PDU to wait for, or null to wait for outstanding
+         *         requests
+         */
+        public CommandID getPduType()
+        {
+            return pduType;
+        }
+
+        /**
+         * @return Number of PDUs to wait for, or the number of requests that
+         *         may still be outstanding
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return Maximum time to wait
+         */
+        public long getTimeoutMillis()
+        {
+            return timeoutMillis;
+        }
+    }
+
     /**
      * Event representing disconnection from the SMSC
      */
@@ -116,6 +214,292 @@ public class Batch
         }
     }
 
+    /**
+     * Event representing a change to the window of outstanding requests
+     */
+    protected static class WindowSettingEvent implements Event
+    {
+        /**
+         * Default time to wait for a free slot in the window of outstanding
+         * requests
+         */
+        static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+        private int window;
+        private long timeoutMillis;
+
+        /**
+         * Constructor
+         * @param window        Maximum number of outstanding requests, or 0 for no limit
+         * @param timeoutMillis Time to wait for a free slot before discarding old requests
+         */
+        public WindowSettingEvent( int window, long timeoutMillis )
+        {
+            this.window = window;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * @return Maximum number of outstanding requests, or 0 for no limit
+         */
+        public int getWindow()
+        {
+            return window;
+        }
+
+        /**
+         * @return Time to wait for a free slot before discarding old requests
+         */
+        public long getTimeoutMillis()
+        {
+            return timeoutMillis;
+        }
+    }
+
+    /**
+     * Event representing a change to the time to wait for delivery receipts
+     */
+    protected static class ReceiptTimeoutSettingEvent implements Event
+    {
+        private long timeoutMillis;
+
+        /**
+         * Constructor
+         * @param timeoutMillis Time after which a missing receipt is no longer expected
+         */
+        public ReceiptTimeoutSettingEvent( long timeoutMillis )
+        {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * @return Time after which a missing receipt is no longer expected
+         */
+        public long getTimeoutMillis()
+        {
+            return timeoutMillis;
+        }
+    }
+
+    /**
+     * Event representing a PDU to be built from a template when it is sent.
+     * Only found within a RepeatEvent.
+     */
+    protected static class TemplateEvent implements Event
+    {
+        private PDUTemplate template;
+
+        /**
+         * Constructor
+         * @param template Template for the PDU
+         */
+        public TemplateEvent( PDUTemplate template )
+        {
+            this.template = template;
+        }
+
+        /**
+         * @return Template for the PDU
+         */
+        public PDUTemplate getTemplate()
+        {
+            return template;
+        }
+    }
+
+    /**
+     * Event representing a sequence of events to be repeated
+     */
+    protected static class RepeatEvent implements Event
+    {
+        private long count;
+        private List<Event> events;
+
+        /**
+         * Constructor
+         * @param count  Number of times to repeat the events
+         * @param events Events to repeat, i.e. templates and pauses
+         */
+        public RepeatEvent( long count, List<Event> events )
+        {
+            this.count = count;
+            this.events = events;
+        }
+
+        /**
+         * @return Number of times to repeat the events
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return Events to repeat
+         */
+        public List<Event> getEvents()
+        {
+            return events;
+        }
+    }
+
+    /**
+     * Event representing a script run by several independent lanes at once,
+     * each with its own sessions
+     */
+    protected static class LanesEvent implements Event
+    {
+        private int count;
+        private boolean virtual;
+        private BatchReader reader;
+        private List<Element> elements;
+
+        /**
+         * Constructor
+         * @param count    Number of lanes
+         * @param virtual  Run lanes on virtual threads, if available
+         * @param reader   Reader to build each lane's batch
+         * @param elements Elements of the script each lane runs
+         */
+        public LanesEvent( int count, boolean virtual, BatchReader reader,
+                           List<Element> elements )
+        {
+            this.count = count;
+            this.virtual = virtual;
+            this.reader = reader;
+            this.elements = elements;
+        }
+
+        /**
+         * @return Number of lanes
+         */
+        public int getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return true to run lanes on virtual threads, if available
+         */
+        public boolean isVirtual()
+        {
+            return virtual;
+        }
+
+        /**
+         * Build the batch for one lane. Each lane has its own PDUs, so lanes
+         * can number and send them independently.
+         * @param lane Lane number, counting from 1
+         * @return Batch for the lane, or null if it could not be built
+         */
+        public Batch readLane( int lane )
+        {
+            return reader.readLane( elements, lane );
+        }
+    }
+
+    /**
+     * Event representing a stream of PDUs sent at a fixed rate
+     */
+    protected static class LoadEvent implements Event
+    {
+        private PDUTemplate template;
+        private double tps;
+        private long durationMillis;
+        private boolean openLoop;
+
+        /**
+         * Adaptive rate settings, used if adaptive is set
+         */
+        private boolean adaptive = false;
+        private double minTps;
+        private double maxTps;
+        private double stepTps;
+        private double decrease;
+
+        /**
+         * Constructor
+         * @param template       Template for the PDUs to send
+         * @param tps            Number of PDUs to send per second
+         * @param durationMillis Time to keep sending in milliseconds
+         * @param openLoop       Measure latency from the scheduled send time
+         */
+        public LoadEvent( PDUTemplate template, double tps, long durationMillis,
+                          boolean openLoop )
+        {
+            this.template = template;
+            this.tps = tps;
+            this.durationMillis = durationMillis;
+            this.openLoop = openLoop;
+        }
+
+        /**
+         * @return Template for the PDUs to send
+         */
+        public PDUTemplate getTemplate()
+        {
+            return template;
+        }
+
+        /**
+         * @return Number of PDUs to send per second
+         */
+        public double getTps()
+        {
+            return tps;
+        }
+
+        /**
+         * @return Time to keep sending in milliseconds
+         */
+        public long getDurationMillis()
+        {
+            return durationMillis;
+        }
+
+        /**
+         * @return true if latency is measured from the scheduled send time,
+         *         rather than the time the PDU was actually sent
+         */
+        public boolean isOpenLoop()
+        {
+            return openLoop;
+        }
+
+        /**
+         * Adjust the rate to the SMSC's throttling responses, starting at tps
+         * @param minTps   Lowest rate
+         * @param maxTps   Highest rate
+         * @param stepTps  Increase per interval without throttling, or 0 for the default
+         * @param decrease Factor to cut the rate by when throttled, or 0 for the default
+         */
+        public void setAdaptive( double minTps, double maxTps, double stepTps,
+                                 double decrease )
+        {
+            this.adaptive = true;
+            this.minTps = minTps;
+            this.maxTps = maxTps;
+            this.stepTps = stepTps;
+            this.decrease = decrease;
+        }
+
+        /**
+         * @return true if the rate is adjusted to throttling responses
+         */
+        public boolean isAdaptive()
+        {
+            return adaptive;
+        }
+
+        /**
+         * @return Controller for an adaptive rate, new for each run of the load
+         */
+        AdaptiveRate createAdaptiveRate()
+        {
+            return new AdaptiveRate( tps, minTps, maxTps, stepTps, decrease );
+        }
+    }
+
     /**
      * Enumeration representing PDU types
      */
@@ -335,7 +719,7 @@ public class Batch
         /**
          * @return Value of CommandStatus field corresponding to this enumeration value
          */
-        private int getStatus()
+        public int getStatus()
         {
             return status;
         }
@@ -384,7 +768,20 @@ public class Batch
     {
         if( pdu != null )
         {
-            events.add( new PDUEvent( pdu ) );
+            addEvent( new PDUEvent( pdu ) );
+        }
+    }
+
+    /**
+     * Add a PDU that has already been encoded, which may be the first of a
+     * chain of segments
+     * @param encoded Encoded PDU
+     */
+    void addPDU( EncodedPDU encoded )
+    {
+        if( encoded != null )
+        {
+            addEvent( new PDUEvent( encoded ) );
         }
     }
 
@@ -396,7 +793,7 @@ public class Batch
     {
         if( connectionEvent != null )
         {
-            events.add( connectionEvent );
+            addEvent( connectionEvent );
         }
     }
 
@@ -408,7 +805,7 @@ public class Batch
     {
         if( event != null )
         {
-            events.add( event );
+            addEvent( event );
         }
     }
 
@@ -423,7 +820,56 @@ public class Batch
             throw new IllegalArgumentException( "Pause given a negative value" );
         }
 
-        events.add( new PauseEvent( millis ) );
+        addEvent( new PauseEvent( millis ) );
+    }
+
+    /**
+     * Add an event to wait until a fixed time after the start of the run
+     * @param offsetMillis Time from the start of the run in milliseconds
+     */
+    public void addAt( long offsetMillis )
+    {
+        if( offsetMillis < 0 )
+        {
+            throw new IllegalArgumentException( "At given a negative offset" );
+        }
+
+        addEvent( new AtEvent( offsetMillis ) );
+    }
+
+    /**
+     * Add an event to wait for PDUs to be received
+     * @param pduType       Name of the PDU type to wait for, or null to wait
+     *                      for outstanding requests
+     * @param count         Number of PDUs to wait for, or the number of
+     *                      requests that may still be outstanding
+     * @param timeoutMillis Maximum time to wait
+     */
+    public void addWaitFor( String pduType, long count, long timeoutMillis )
+    {
+        CommandID type = null;
+        if( pduType != null )
+        {
+            try
+            {
+                type = CommandID.valueOf( pduType );
+            }
+            catch( IllegalArgumentException e )
+            {
+                throw new IllegalArgumentException(
+                    "Did not recognise PDU type\"" + pduType + "\"", e );
+            }
+        }
+        if( count < 0 )
+        {
+            throw new IllegalArgumentException( "WaitFor given a negative count" );
+        }
+        if( timeoutMillis < 1 )
+        {
+            throw new IllegalArgumentException( "WaitFor timeout must be positive" );
+        }
+
+        addEvent( new WaitForEvent( type, count, timeoutMillis ) );
     }
 
     /**
@@ -450,16 +896,260 @@ public class Batch
                 throw new IllegalArgumentException(
                     "Did not recognise PDU type\"" + typeName + "\"", e );
             }
-            events.add( new AutoResponseSettingEvent( type, enable ) );
+            if( !AutoResponder.canRespond( type.getId() ) )
+            {
+                throw new IllegalArgumentException(
+                    "PDU type \"" + typeName + "\" has no response" );
+            }
+            addEvent( new AutoResponseSettingEvent( type, enable ) );
+        }
+    }
+
+    /**
+     * Add an event to change the window of outstanding requests
+     * @param window        Maximum number of outstanding requests, or 0 for no limit
+     * @param timeoutMillis Time to wait for a free slot before discarding old requests
+     */
+    public void addWindowSetting( int window, long timeoutMillis )
+    {
+        if( window < 0 )
+        {
+            throw new IllegalArgumentException( "Window given a negative value" );
+        }
+        if( timeoutMillis < 1 )
+        {
+            throw new IllegalArgumentException( "Window timeout must be positive" );
+        }
+
+        addEvent( new WindowSettingEvent( window, timeoutMillis ) );
+    }
+
+    /**
+     * Add an event to change the time to wait for delivery receipts
+     * @param timeoutMillis Time after which a missing receipt is no longer expected
+     */
+    public void addReceiptTimeoutSetting( long timeoutMillis )
+    {
+        if( timeoutMillis < 1 )
+        {
+            throw new IllegalArgumentException( "Receipt timeout must be positive" );
+        }
+
+        addEvent( new ReceiptTimeoutSettingEvent( timeoutMillis ) );
+    }
+
+    /**
+     * Add a load event
+     * @param template       Template for the PDUs to send
+     * @param tps            Number of PDUs to send per second
+     * @param durationMillis Time to keep sending in milliseconds
+     * @param openLoop       Measure latency from the scheduled send time
+     */
+    public void addLoad( PDUTemplate template, double tps, long durationMillis,
+                         boolean openLoop )
+    {
+        addLoad( new LoadEvent( template, tps, durationMillis, openLoop ) );
+    }
+
+    /**
+     * Add a load event
+     * @param load Event details
+     */
+    public void addLoad( LoadEvent load )
+    {
+        if( load.getTps() <= 0 )
+        {
+            throw new IllegalArgumentException( "Load given a non-positive tps" );
+        }
+        if( load.getDurationMillis() < 1 )
+        {
+            throw new IllegalArgumentException( "Load given a non-positive duration" );
+        }
+        if( load.isAdaptive() )
+        {
+            // Reports errors in the adaptive settings
+            load.createAdaptiveRate();
+        }
+
+        addEvent( load );
+    }
+
+    /**
+     * Add a repeat event
+     * @param count    Number of times to repeat the events
+     * @param repeated Events to repeat, i.e. templates and pauses
+     */
+    public void addRepeat( long count, List<Event> repeated )
+    {
+        if( count < 0 )
+        {
+            throw new IllegalArgumentException( "Repeat given a negative count" );
+        }
+        if( repeated.isEmpty() )
+        {
+            throw new IllegalArgumentException( "Nothing to repeat" );
+        }
+
+        addEvent( new RepeatEvent( count, repeated ) );
+    }
+
+    /**
+     * Add a lanes event
+     * @param count    Number of lanes
+     * @param virtual  Run lanes on virtual threads, if available
+     * @param reader   Reader to build each lane's batch
+     * @param elements Elements of the script each lane runs
+     */
+    public void addLanes( int count, boolean virtual, BatchReader reader,
+                          List<Element> elements )
+    {
+        if( count < 1 )
+        {
+            throw new IllegalArgumentException( "Lanes needs a count of at least 1" );
+        }
+        if( elements.isEmpty() )
+        {
+            throw new IllegalArgumentException( "Nothing for lanes to run" );
         }
+
+        addEvent( new LanesEvent( count, virtual, reader, elements ) );
+    }
+
+    /**
+     * Add an event to the end of the batch
+     * @param event Event to add
+     */
+    protected void addEvent( Event event )
+    {
+        events.add( event );
+    }
+
+    /**
+     * @return Iterator over the events as added, with repeats unexpanded
+     */
+    protected Iterator<Event> rawEvents()
+    {
+        return events.iterator();
+    }
+
+    /**
+     * List the events in this batch. Repeats are expanded as the list is
+     * read, so repeated PDUs are only built when they are needed.
+     * @return Events to run
+     */
+    public Iterable<Event> getEvents()
+    {
+        return new Iterable<Event>()
+        {
+            public Iterator<Event> iterator()
+            {
+                return new EventIterator( rawEvents() );
+            }
+        };
     }
 
     /**
-     * List the events in this batch
-     * @return List of events
+     * Iterates over events, expanding repeats into the events they contain
      */
-    public List<Event> getEvents()
+    private static class EventIterator implements Iterator<Event>
     {
-        return events;
+        private Iterator<Event> events;
+
+        /**
+         * Repeat being expanded, or null
+         */
+        private RepeatEvent repeat = null;
+        private long iteration;
+        private int child;
+
+        /**
+         * Next event to return, or null if not yet found
+         */
+        private Event next = null;
+
+        /**
+         * Constructor
+         * @param events Events to iterate over
+         */
+        EventIterator( Iterator<Event> events )
+        {
+            this.events = events;
+        }
+
+        public boolean hasNext()
+        {
+            if( next == null )
+            {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        public Event next()
+        {
+            if( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            Event event = next;
+            next = null;
+            return event;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return The next event, or null if there are no more
+         */
+        private Event advance()
+        {
+            while( true )
+            {
+                if( repeat != null )
+                {
+                    if( child >= repeat.getEvents().size() )
+                    {
+                        child = 0;
+                        iteration++;
+                    }
+                    if( iteration >= repeat.getCount() )
+                    {
+                        repeat = null;
+                        continue;
+                    }
+                    Event event = repeat.getEvents().get( child++ );
+                    if( event instanceof TemplateEvent )
+                    {
+                        EncodedPDU pdu = ((TemplateEvent)event).getTemplate().
+                            encodedInstance( iteration );
+                        if( pdu == null )
+                        {
+                            System.err.println( "Could not build PDU " +
+                                                ( iteration + 1 ) + " of repeat" );
+                            continue;
+                        }
+                        return new PDUEvent( pdu );
+                    }
+                    return event;
+                }
+
+                if( !events.hasNext() )
+                {
+                    return null;
+                }
+                Event event = events.next();
+                if( event instanceof RepeatEvent )
+                {
+                    repeat = (RepeatEvent)event;
+                    iteration = 0;
+                    child = 0;
+                    continue;
+                }
+                return event;
+            }
+        }
     }
 }
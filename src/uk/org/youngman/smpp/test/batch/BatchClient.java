@@ -13,6 +13,8 @@
 package uk.org.youngman.smpp.test.batch;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 
 
 public class BatchClient
@@ -24,24 +26,74 @@ public class BatchClient
     }
 
     /**
-     * The expected arguments are a batch file and a log file
+     * Number of events the streaming reader may read ahead of the run
+     */
+    private static final int STREAM_QUEUE_SIZE = 1000;
+
+    /**
+     * Address the metrics listener uses if only a port is given
+     */
+    private static final String LOOPBACK = "127.0.0.1";
+
+    /**
+     * The expected arguments are a batch file and a log file, optionally
+     * preceded by -stream to run the batch while it is being read and
+     * -metrics [address:]port to serve Prometheus metrics during the run.
      * @param args calling arguments
      */
     public static void main(String args[])
     {
-        if( args.length != 2 )
+        boolean stream = false;
+        InetSocketAddress metricsAddress = null;
+        int arg = 0;
+        try
+        {
+            while( arg < args.length - 2 )
+            {
+                if( args[arg].equals( "-stream" ) )
+                {
+                    stream = true;
+                    arg++;
+                }
+                else if( args[arg].equals( "-metrics" ) )
+                {
+                    metricsAddress = parseAddress( args[arg + 1] );
+                    arg += 2;
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch( IllegalArgumentException e )
         {
-            System.err.println( "Usage: java BatchClient batch_file log_file" );
+            arg = -1;
+        }
+
+        if( arg < 0 || args.length - arg != 2 )
+        {
+            System.err.println(
+                "Usage: java BatchClient [-stream] [-metrics [address:]port]" +
+                " batch_file log_file" );
             return;
         }
 
-        final File batchFile = new File( args[0] );
-        final File logFile = new File( args[1] );
+        final File batchFile = new File( args[arg] );
+        final File logFile = new File( args[arg + 1] );
 
 //        SmppObject.getDebug().activate();
 
         final BatchReader reader = new BatchReader( batchFile );
-        final Batch batch = reader.read();
+        final Batch batch;
+        if( stream )
+        {
+            batch = reader.readStreaming( STREAM_QUEUE_SIZE );
+        }
+        else
+        {
+            batch = reader.read();
+        }
         if( batch == null )
         {
             System.err.println( "Error reading batch. Batch not run." );
@@ -49,6 +101,48 @@ public class BatchClient
         }
 
         final BatchRunner runner = new BatchRunner( batch, logFile );
+        runner.getStats().register( "BatchClient" );
+        MetricsServer metrics = null;
+        if( metricsAddress != null )
+        {
+            try
+            {
+                metrics = new MetricsServer( runner, metricsAddress );
+                metrics.start();
+            }
+            catch( IOException e )
+            {
+                System.err.println( "Exception starting metrics server: " + e.getMessage() );
+            }
+        }
         runner.run();
+        if( metrics != null )
+        {
+            metrics.stop();
+        }
+        runner.getStats().unregister();
+
+        if( batch instanceof StreamingBatch && ((StreamingBatch)batch).isFailed() )
+        {
+            System.err.println( "Error reading batch. Batch stopped early." );
+        }
+    }
+
+    /**
+     * @param address Port, or address and port separated by a colon
+     * @return Socket address, on the loopback interface if only a port is
+     *         given. The metrics are only exposed to other hosts if an
+     *         address such as 0.0.0.0 is given.
+     * @throws IllegalArgumentException The port isn't valid
+     */
+    private static InetSocketAddress parseAddress( String address )
+    {
+        final int colon = address.lastIndexOf( ':' );
+        if( colon < 0 )
+        {
+            return new InetSocketAddress( LOOPBACK, Integer.parseInt( address ) );
+        }
+        return new InetSocketAddress( address.substring( 0, colon ),
+                                      Integer.parseInt( address.substring( colon + 1 ) ) );
     }
 }
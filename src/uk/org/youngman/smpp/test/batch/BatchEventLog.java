@@ -14,25 +14,156 @@ import org.smpp.util.NotEnoughDataInByteBufferException;
 import org.smpp.util.TerminatingZeroNotFoundException;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * Log of batch events. Events are formatted by the calling thread and
+ * queued for a background thread to write, so that sending and receiving
+ * PDUs isn't held up by file and console output.
+ * <p>
+ * If the writer thread falls so far behind that the queue fills, the
+ * calling thread writes the oldest WRITE_BATCH events itself to make
+ * room, rather than waiting for the writer thread. Events are only
+ * written WRITE_BATCH at a time, by either thread, so a caller is never
+ * held up for longer than that. Only if the queue is still full does the
+ * caller write its own event straight away, ahead of the queued ones. The
+ * writer thread isn't a daemon, so queued events are never lost when the
+ * batch ends; close() stops it.
+ */
 public class BatchEventLog
 {
+    /**
+     * Maximum number of formatted events waiting to be written
+     */
+    private static final int QUEUE_SIZE = 10000;
+
+    /**
+     * Longest time the writer thread waits for an event before checking
+     * whether the log has been closed
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Most events written while holding writeLock
+     */
+    private static final int WRITE_BATCH = 100;
+
+    /**
+     * esm_class flag for a user data header
+     */
+    private static final int ESM_CLASS_UDHI = 0x40;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     private Console console = System.console();
-    private PrintWriter logWriter;
+    private PrintWriter fileWriter;
+
+    /**
+     * Formatted events waiting to be written
+     */
+    private BlockingQueue<LogRecord> queue =
+        new ArrayBlockingQueue<LogRecord>( QUEUE_SIZE );
+
+    /**
+     * Held while writing events, so that events written by a caller when
+     * the queue is full aren't mixed up with the writer thread's. Fair, so
+     * such a caller gets it as soon as the writer thread lets go.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock( true );
+
+    /**
+     * Event the writer thread has taken from the queue but not yet written.
+     * Whichever thread next holds writeLock writes it first, so that it
+     * isn't overtaken by later events.
+     */
+    private final AtomicReference<LogRecord> taken = new AtomicReference<LogRecord>();
+
+    /**
+     * Events being written, guarded by writeLock
+     */
+    private final List<LogRecord> batch = new ArrayList<LogRecord>( WRITE_BATCH );
+
+    /**
+     * Set when the log is closed, to stop the writer thread
+     */
+    private volatile boolean closed = false;
+
+    private Thread writerThread;
 
 
     BatchEventLog( File file )
     {
         try
         {
-            logWriter = new PrintWriter( file );
+            fileWriter = new PrintWriter( file );
         }
         catch( FileNotFoundException e )
         {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
         }
+        writerThread = new Thread( new LogWriter(), "BatchEventLog" );
+        writerThread.start();
+    }
+
+
+    /**
+     * Constructor for a log that formats events and then discards them, so
+     * that formatting can be measured on its own
+     */
+    BatchEventLog()
+    {
+    }
+
+
+    /**
+     * Write any queued events, stop the writer thread and close the log file
+     */
+    void close()
+    {
+        if( writerThread == null )
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            writerThread.join();
+        }
+        catch( InterruptedException e )
+        {
+            System.err.println( "Interrupted closing event log" );
+        }
+        // Anything logged while the writer thread was stopping
+        writeLock.lock();
+        try
+        {
+            writeQueued();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        if( fileWriter != null )
+        {
+            fileWriter.close();
+        }
+    }
+
+
+    /**
+     * @return Number of formatted events waiting to be written
+     */
+    int getQueueDepth()
+    {
+        return queue.size();
     }
 
 
@@ -45,21 +176,19 @@ public class BatchEventLog
      */
     void logEvent( Date time, SMPPEvent.EventType type, PDU pdu, String message )
     {
-        StringBuilder line = new StringBuilder(
-            SMPPEvent.TIMESTAMP_FORMAT.format( time ) ).
-            append( " " ).append( message );
-        logWriter.println( line );
-        logWriter.flush();
-
-        // Most IDEs don't support System.console().
-        if( console == null )
+        StringBuilder line;
+        // SimpleDateFormat isn't thread safe and PDUs are logged from both
+        // the batch runner and the receiver
+        synchronized( SMPPEvent.TIMESTAMP_FORMAT )
         {
-            System.out.println( line );
-        }
-        else
-        {
-            console.writer().println( line );
+            line = new StringBuilder(
+                SMPPEvent.TIMESTAMP_FORMAT.format( time ) );
         }
+        line.append( " " ).append( message );
+
+        StringWriter text = new StringWriter();
+        PrintWriter logWriter = new PrintWriter( text );
+        logWriter.println( line );
 
         if( pdu != null )
         {
@@ -170,8 +299,8 @@ public class BatchEventLog
                     logWriter.println(
                         "    DataCoding=" + submitSM.getDataCoding() );
                     logWriter.println( "    SmDefaultMsgID=" + submitSM.getSmDefaultMsgId() );
-                    logWriter.println(
-                        "    ShortMessage=" + submitSM.getShortMessage( Data.ENC_UTF8) );
+                    logText( logWriter, "ShortMessage", submitSM.getShortMessageData(),
+                             submitSM.getDataCoding(), submitSM.getEsmClass() );
                     break;
                 case Data.SUBMIT_SM_RESP:
                     SubmitSMResp submitSMResp = (SubmitSMResp)pdu;
@@ -212,8 +341,8 @@ public class BatchEventLog
                     logWriter.println(
                         "    DataCoding=" + submitMultiSM.getDataCoding() );
                     logWriter.println( "    SmDefaultMsgID=" + submitMultiSM.getSmDefaultMsgId() );
-                    logWriter.println( "    ShortMessage=" +
-                                        submitMultiSM.getShortMessage( Data.ENC_UTF8 ) );
+                    logText( logWriter, "ShortMessage", submitMultiSM.getShortMessageData(),
+                             submitMultiSM.getDataCoding(), submitMultiSM.getEsmClass() );
                     break;
                 case Data.SUBMIT_MULTI_RESP:
                     SubmitMultiSMResp submitMultiSMResp = (SubmitMultiSMResp)pdu;
@@ -254,8 +383,8 @@ public class BatchEventLog
                                        deliverSM.getRegisteredDelivery() );
                     logWriter.println(
                         "    DataCoding=" + deliverSM.getDataCoding() );
-                    logWriter.println(
-                        "    ShortMessage=" + deliverSM.getShortMessage( Data.ENC_UTF8 ) );
+                    logText( logWriter, "ShortMessage", deliverSM.getShortMessageData(),
+                             deliverSM.getDataCoding(), deliverSM.getEsmClass() );
                     break;
                 case Data.DELIVER_SM_RESP:
                     DeliverSMResp deliverSMResp = (DeliverSMResp)pdu;
@@ -405,10 +534,8 @@ public class BatchEventLog
                     }
                     if( submitSM.hasMessagePayload() )
                     {
-                        logWriter.println(
-                            "    MessagePayload=" +
-                            submitSM.getMessagePayload().removeString(
-                                submitSM.getMessagePayload().length(), Data.ENC_UTF8 ) );
+                        logText( logWriter, "MessagePayload", submitSM.getMessagePayload(),
+                                 submitSM.getDataCoding(), submitSM.getEsmClass() );
                     }
                     if( submitSM.hasPrivacyIndicator() )
                     {
@@ -537,11 +664,8 @@ public class BatchEventLog
                     }
                     if( submitMultiSM.hasMessagePayload() )
                     {
-                        logWriter.println(
-                            submitMultiSM +
-                            submitMultiSM.getMessagePayload().removeString(
-                                submitMultiSM.getMessagePayload().length(),
-                                Data.ENC_ASCII ) ); // TODO: encodings
+                        logText( logWriter, "MessagePayload", submitMultiSM.getMessagePayload(),
+                                 submitMultiSM.getDataCoding(), submitMultiSM.getEsmClass() );
                     }
                     if( submitMultiSM.hasPrivacyIndicator() )
                     {
@@ -651,11 +775,8 @@ public class BatchEventLog
                     }
                     if( deliverSM.hasMessagePayload() )
                     {
-                        logWriter.println(
-                            deliverSM +
-                            deliverSM.getMessagePayload().removeString(
-                                deliverSM.getMessagePayload().length(),
-                                Data.ENC_ASCII ) ); // TODO: encodings
+                        logText( logWriter, "MessagePayload", deliverSM.getMessagePayload(),
+                                 deliverSM.getDataCoding(), deliverSM.getEsmClass() );
                     }
                     if( deliverSM.hasCallbackNum() )
                     {
@@ -790,10 +911,8 @@ public class BatchEventLog
                     }
                     if( dataSM.hasMessagePayload() )
                     {
-                        logWriter.println(
-                            dataSM +
-                            dataSM.getMessagePayload().removeString(
-                                dataSM.getMessagePayload().length(), Data.ENC_UTF8 ) );
+                        logText( logWriter, "MessagePayload", dataSM.getMessagePayload(),
+                                 dataSM.getDataCoding(), dataSM.getEsmClass() );
                     }
                     if( dataSM.hasSetDpf() )
                     {
@@ -880,7 +999,7 @@ public class BatchEventLog
                     {
                         logWriter.println( "    NumberOfMessages=" + dataSM.getNumberOfMessages() );
                     }
-                    if( dataSM.getAlertOnMsgDelivery() )
+                    if( dataSM.hasAlertOnMsgDelivery() && dataSM.getAlertOnMsgDelivery() )
                     {
                         logWriter.println( "Alert on messgae delivery is set" );
                     }
@@ -930,6 +1049,170 @@ public class BatchEventLog
                 ex.printStackTrace();
             }
         }
+
+        logWriter.flush();
+        if( writerThread == null )
+        {
+            return;
+        }
+        LogRecord record = new LogRecord( line.toString(), text.toString() );
+        if( !queue.offer( record ) )
+        {
+            // The writer thread is behind, so write a batch of the queued
+            // events to make room, rather than waiting for it
+            writeLock.lock();
+            try
+            {
+                writeBatch();
+                if( !queue.offer( record ) )
+                {
+                    write( record );
+                }
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Write the event the writer thread has taken, if any, then up to
+     * WRITE_BATCH - 1 queued events. Called with writeLock held.
+     */
+    private void writeBatch()
+    {
+        final LogRecord first = taken.getAndSet( null );
+        if( first != null )
+        {
+            batch.add( first );
+        }
+        queue.drainTo( batch, WRITE_BATCH - batch.size() );
+        for( LogRecord record: batch )
+        {
+            write( record );
+        }
+        batch.clear();
+        if( queue.isEmpty() )
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Write all the queued events. Called with writeLock held.
+     */
+    private void writeQueued()
+    {
+        LogRecord record;
+        while( ( record = queue.poll() ) != null )
+        {
+            write( record );
+        }
+        flush();
+    }
+
+
+    /**
+     * Write an event to the log file and the console. Called with
+     * writeLock held.
+     * @param record Event to write
+     */
+    private void write( LogRecord record )
+    {
+        if( fileWriter != null )
+        {
+            fileWriter.print( record.text );
+        }
+
+        // Most IDEs don't support System.console().
+        if( console == null )
+        {
+            System.out.println( record.line );
+        }
+        else
+        {
+            console.writer().println( record.line );
+        }
+    }
+
+
+    /**
+     * Flush the log file. Called with writeLock held.
+     */
+    private void flush()
+    {
+        if( fileWriter != null )
+        {
+            fileWriter.flush();
+        }
+    }
+
+
+    /**
+     * An event formatted for the console and the log file
+     */
+    private static class LogRecord
+    {
+        private String line;
+        private String text;
+
+        /**
+         * Constructor
+         * @param line Summary line for the console
+         * @param text Full text for the log file
+         */
+        LogRecord( String line, String text )
+        {
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+
+    /**
+     * Writes queued events to the log file and the console, flushing the
+     * log file whenever the queue is empty, until the log is closed. It
+     * waits for events without holding writeLock, and holds it only to
+     * write one batch, so a caller writing events itself isn't kept waiting
+     * for long.
+     */
+    private class LogWriter implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                while( true )
+                {
+                    LogRecord record = queue.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+                    if( record == null )
+                    {
+                        if( closed )
+                        {
+                            return;
+                        }
+                        continue;
+                    }
+                    taken.set( record );
+
+                    writeLock.lock();
+                    try
+                    {
+                        writeBatch();
+                    }
+                    finally
+                    {
+                        writeLock.unlock();
+                    }
+                }
+            }
+            catch( InterruptedException e )
+            {
+                System.err.println( "Event log writer interrupted" );
+            }
+        }
     }
 
 
@@ -973,4 +1256,39 @@ public class BatchEventLog
         short len = data.removeShort();
         return data.removeString( len, Data.ENC_ASCII ); // TODO: encodings
     }
+
+
+    /**
+     * Log message text, decoded according to the data_coding of the PDU.
+     * A user data header is logged in hex before the text.
+     * @param logWriter  Where to log
+     * @param name       Name of the field
+     * @param data       Encoded text
+     * @param dataCoding data_coding of the PDU
+     * @param esmClass   esm_class of the PDU
+     */
+    private static void logText( PrintWriter logWriter, String name,
+                                 ByteBuffer data, byte dataCoding, byte esmClass )
+    {
+        final byte[] octets = data.getBuffer();
+        final int length = data.length();
+        int start = 0;
+        if( ( esmClass & ESM_CLASS_UDHI ) != 0 && length > 0 )
+        {
+            start = Math.min( length, ( octets[0] & 0xFF ) + 1 );
+            logWriter.print( "    UserDataHeader=" );
+            for( int i = 0; i < start; i++ )
+            {
+                logWriter.print( HEX_DIGITS[( octets[i] >>> 4 ) & 0x0F] );
+                logWriter.print( HEX_DIGITS[octets[i] & 0x0F] );
+            }
+            logWriter.println();
+        }
+        logWriter.print( "    " );
+        logWriter.print( name );
+        logWriter.print( '=' );
+        ShortMessageCodec.forThread().decode(
+            logWriter, octets, start, length - start, dataCoding & 0xFF );
+        logWriter.println();
+    }
 }
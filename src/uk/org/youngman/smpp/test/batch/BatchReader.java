@@ -6,12 +6,23 @@
 package uk.org.youngman.smpp.test.batch;
 
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
+import org.jdom.Text;
 import org.jdom.input.SAXBuilder;
 import org.smpp.Data;
 import org.smpp.pdu.*;
@@ -23,8 +34,17 @@ import org.smpp.util.ByteBuffer;
 
 public class BatchReader
 {
+    /**
+     * Default time to wait in <WaitFor>
+     */
+    private static final long DEFAULT_WAIT_TIMEOUT = 60000;
+
+    /**
+     * Replaced by the lane number in the script for each lane of <Lanes>
+     */
+    private static final String LANE_PLACEHOLDER = "${lane}";
+
     private File batchFile;
-    private int lastSeq = 0;
 
     /**
      * Main constructor
@@ -55,70 +75,548 @@ public class BatchReader
              */
             for( Element element : elements )
             {
-                if( element.getName().equalsIgnoreCase( "PDU" ) )
+                if( !readEvent( element, batch ) )
                 {
-                    PDU pdu = readPDU( element );
-                    if( pdu == null )
-                    {
-                        return null;
-                    }
-                    else
+                    return null;
+                }
+            }
+        }
+        catch( Exception e )
+        {
+            e.printStackTrace();
+            return null;
+        }
+
+        return batch;
+    }
+
+
+    /**
+     * Reads the batch file in a background thread, one top level element at
+     * a time, passing events to the batch through a queue of limited size.
+     * The batch can be run while it is being read, so the run starts
+     * straight away and memory use doesn't depend on the size of the file.
+     * Errors in the file will only be found when they are reached, after
+     * earlier events have run.
+     * @param queueSize Maximum number of events read ahead of the run
+     * @return Batch that can be run once
+     */
+    public Batch readStreaming( int queueSize )
+    {
+        final StreamingBatch batch = new StreamingBatch( queueSize );
+        Thread thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                stream( batch );
+            }
+        }, "BatchReader" );
+        thread.setDaemon( true );
+        thread.start();
+        return batch;
+    }
+
+
+    /**
+     * Parse the batch file with StAX, building a small JDOM tree for each
+     * top level element and adding its events to the batch.
+     * @param batch Batch to add events to
+     */
+    private void stream( StreamingBatch batch )
+    {
+        InputStream input = null;
+        try
+        {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                                 Boolean.FALSE );
+            // Deliver each run of text in one piece, so placeholders aren't
+            // split where the parser's buffer happens to end
+            factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+            input = new BufferedInputStream( new FileInputStream( batchFile ) );
+            XMLStreamReader xml = factory.createXMLStreamReader( input );
+
+            // Skip to the root element
+            while( xml.hasNext() && xml.next() != XMLStreamConstants.START_ELEMENT )
+            {
+            }
+
+            while( xml.hasNext() )
+            {
+                int event = xml.next();
+                if( event == XMLStreamConstants.START_ELEMENT )
+                {
+                    if( !readEvent( readElement( xml ), batch ) )
                     {
-                        batch.addPDU( pdu );
+                        batch.setFailed();
+                        break;
                     }
                 }
-                else if( element.getName().equalsIgnoreCase( "Connect" ) )
+                else if( event == XMLStreamConstants.END_ELEMENT )
                 {
-                    batch.addConnection( readConnection( element ) );
+                    // End of the root element
+                    break;
                 }
-                else if( element.getName().equalsIgnoreCase( "Disconnect" ) )
+            }
+            xml.close();
+        }
+        catch( Exception e )
+        {
+            e.printStackTrace();
+            batch.setFailed();
+        }
+        finally
+        {
+            batch.finish();
+            if( input != null )
+            {
+                try
+                {
+                    input.close();
+                }
+                catch( IOException e )
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Build a JDOM element from the current StAX start element and its
+     * contents. On return the reader is at the matching end element.
+     * Adjacent text, such as text either side of a CDATA section or a
+     * comment, is joined into a single Text node, as PDUTemplate looks for
+     * placeholders in one Text node at a time.
+     * @param xml StAX reader positioned at a start element
+     * @return JDOM element
+     * @throws XMLStreamException Parse error
+     */
+    private Element readElement( XMLStreamReader xml ) throws XMLStreamException
+    {
+        Element element = new Element( xml.getLocalName() );
+        for( int i = 0; i < xml.getAttributeCount(); i++ )
+        {
+            element.setAttribute( xml.getAttributeLocalName( i ),
+                                  xml.getAttributeValue( i ) );
+        }
+        StringBuilder text = new StringBuilder();
+        while( xml.hasNext() )
+        {
+            switch( xml.next() )
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                addText( element, text );
+                element.addContent( readElement( xml ) );
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                text.append( xml.getTextCharacters(), xml.getTextStart(),
+                             xml.getTextLength() );
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                addText( element, text );
+                return element;
+            default:
+                // Comments and processing instructions are ignored
+                break;
+            }
+        }
+        addText( element, text );
+        return element;
+    }
+
+    /**
+     * Add the text collected so far to an element, if there is any
+     * @param element Element being built
+     * @param text    Text collected since the last child element, which is
+     *                emptied
+     */
+    private static void addText( Element element, StringBuilder text )
+    {
+        if( text.length() > 0 )
+        {
+            element.addContent( text.toString() );
+            text.setLength( 0 );
+        }
+    }
+
+
+    /**
+     * Process a top level element of the batch file and add suitable
+     * events to the batch.
+     * @param element Element to process
+     * @param batch   Batch to add events to
+     * @return false if the element contains an error
+     * @throws Exception Error in the element
+     */
+    private boolean readEvent( Element element, Batch batch ) throws Exception
+    {
+        if( element.getName().equalsIgnoreCase( "PDU" ) )
+        {
+            EncodedPDU pdu = readEncodedPDU( element );
+            if( pdu == null )
+            {
+                return false;
+            }
+            else
+            {
+                batch.addPDU( pdu );
+            }
+        }
+        else if( element.getName().equalsIgnoreCase( "Connect" ) )
+        {
+            batch.addConnection( readConnection( element ) );
+        }
+        else if( element.getName().equalsIgnoreCase( "Disconnect" ) )
+        {
+            batch.addDisconnection( new Batch.DisconnectEvent() );
+        }
+        else if( element.getName().equalsIgnoreCase( "Pause" ) )
+        {
+            String millis = element.getAttributeValue( "millis" );
+            if( millis == null || millis.length() == 0 )
+            {
+                System.err.println( "No millis=n attribute in <Pause>" );
+                throw new IllegalArgumentException( "No millis=n attribute in <Pause>" );
+            }
+            batch.addPause( Long.parseLong( millis ) );
+        }
+        else if( element.getName().equalsIgnoreCase( "WaitFor" ) )
+        {
+            String type = element.getAttributeValue( "type" );
+            String count = element.getAttributeValue( "count" );
+            String outstanding = element.getAttributeValue( "outstanding" );
+            String timeout = element.getAttributeValue( "timeoutMillis" );
+            if( type != null && outstanding != null )
+            {
+                System.err.println( "<WaitFor> can't have both type and outstanding" );
+                throw new IllegalArgumentException(
+                    "<WaitFor> can't have both type and outstanding" );
+            }
+            long number;
+            if( type != null )
+            {
+                number = count == null ? 1 : Long.parseLong( count );
+            }
+            else
+            {
+                number = outstanding == null ? 0 : Long.parseLong( outstanding );
+            }
+            batch.addWaitFor( type, number,
+                              timeout == null || timeout.length() == 0 ?
+                                  DEFAULT_WAIT_TIMEOUT :
+                                  Long.parseLong( timeout ) );
+        }
+        else if( element.getName().equalsIgnoreCase( "At" ) )
+        {
+            String offset = element.getAttributeValue( "offsetMillis" );
+            if( offset == null || offset.length() == 0 )
+            {
+                System.err.println( "No offsetMillis=n attribute in <At>" );
+                throw new IllegalArgumentException( "No offsetMillis=n attribute in <At>" );
+            }
+            batch.addAt( Long.parseLong( offset ) );
+        }
+        else if( element.getName().equalsIgnoreCase( "Load" ) )
+        {
+            String tps = element.getAttributeValue( "tps" );
+            String duration = element.getAttributeValue( "duration" );
+            if( tps == null || tps.length() == 0 ||
+                duration == null || duration.length() == 0 )
+            {
+                System.err.println(
+                    "<Load> needs tps=n and duration=millis attributes" );
+                throw new IllegalArgumentException(
+                    "<Load> needs tps=n and duration=millis attributes" );
+            }
+            Element template = element.getChild( "Pdu" );
+            if( template == null )
+            {
+                System.err.println( "No <Pdu> template in <Load>" );
+                throw new IllegalArgumentException( "No <Pdu> template in <Load>" );
+            }
+            PDUTemplate pduTemplate = readTemplate( template );
+            if( pduTemplate == null )
+            {
+                return false;
+            }
+            Batch.LoadEvent load = new Batch.LoadEvent(
+                pduTemplate, Double.parseDouble( tps ),
+                Long.parseLong( duration ),
+                Boolean.parseBoolean( element.getAttributeValue( "openLoop" ) ) );
+            if( Boolean.parseBoolean( element.getAttributeValue( "adaptive" ) ) )
+            {
+                String minTps = element.getAttributeValue( "minTps" );
+                String maxTps = element.getAttributeValue( "maxTps" );
+                String stepTps = element.getAttributeValue( "stepTps" );
+                String decrease = element.getAttributeValue( "decrease" );
+                load.setAdaptive(
+                    minTps == null ? 1 : Double.parseDouble( minTps ),
+                    maxTps == null ? load.getTps() * 10 : Double.parseDouble( maxTps ),
+                    stepTps == null ? 0 : Double.parseDouble( stepTps ),
+                    decrease == null ? 0 : Double.parseDouble( decrease ) );
+            }
+            batch.addLoad( load );
+        }
+        else if( element.getName().equalsIgnoreCase( "Repeat" ) )
+        {
+            String count = element.getAttributeValue( "count" );
+            if( count == null || count.length() == 0 )
+            {
+                System.err.println( "No count=n attribute in <Repeat>" );
+                throw new IllegalArgumentException( "No count=n attribute in <Repeat>" );
+            }
+            List<Batch.Event> repeated = new ArrayList<Batch.Event>();
+            for( Object child: element.getChildren() )
+            {
+                Element childElement = (Element)child;
+                if( childElement.getName().equalsIgnoreCase( "PDU" ) )
                 {
-                    batch.addDisconnection( new Batch.DisconnectEvent() );
+                    PDUTemplate pduTemplate = readTemplate( childElement );
+                    if( pduTemplate == null )
+                    {
+                        return false;
+                    }
+                    repeated.add( new Batch.TemplateEvent( pduTemplate ) );
                 }
-                else if( element.getName().equalsIgnoreCase( "Pause" ) )
+                else if( childElement.getName().equalsIgnoreCase( "Pause" ) )
                 {
-                    String millis = element.getAttributeValue( "millis" );
+                    String millis = childElement.getAttributeValue( "millis" );
                     if( millis == null || millis.length() == 0 )
                     {
                         System.err.println( "No millis=n attribute in <Pause>" );
                         throw new IllegalArgumentException( "No millis=n attribute in <Pause>" );
                     }
-                    batch.addPause( Long.parseLong( millis ) );
+                    repeated.add( new Batch.PauseEvent( Long.parseLong( millis ) ) );
                 }
-                else if( element.getName().equalsIgnoreCase( "Settings" ) )
+                else
+                {
+                    System.err.println(
+                        "Expected <PDU> or <Pause> in <Repeat>: Found <" +
+                        childElement.getName() + ">");
+                }
+            }
+            batch.addRepeat( Long.parseLong( count ), repeated );
+        }
+        else if( element.getName().equalsIgnoreCase( "Lanes" ) )
+        {
+            String count = element.getAttributeValue( "count" );
+            if( count == null || count.length() == 0 )
+            {
+                System.err.println( "No count=n attribute in <Lanes>" );
+                throw new IllegalArgumentException( "No count=n attribute in <Lanes>" );
+            }
+            String threads = element.getAttributeValue( "threads" );
+            boolean virtual = true;
+            if( threads != null && threads.equalsIgnoreCase( "platform" ) )
+            {
+                virtual = false;
+            }
+            else if( threads != null && !threads.equalsIgnoreCase( "virtual" ) )
+            {
+                System.err.println( "<Lanes> threads must be virtual or platform" );
+                throw new IllegalArgumentException(
+                    "<Lanes> threads must be virtual or platform" );
+            }
+            List<Element> elements = new ArrayList<Element>();
+            for( Object child: element.getChildren() )
+            {
+                Element childElement = (Element)child;
+                if( childElement.getName().equalsIgnoreCase( "Lanes" ) )
                 {
-                    String auto = element.getAttributeValue( "autoResponse" );
-                    if( auto != null && auto.length() > 0 )
+                    System.err.println( "<Lanes> can't contain <Lanes>" );
+                    throw new IllegalArgumentException( "<Lanes> can't contain <Lanes>" );
+                }
+                elements.add( (Element)childElement.clone() );
+            }
+            if( readLane( elements, 1 ) == null )
+            {
+                return false;
+            }
+            batch.addLanes( Integer.parseInt( count ), virtual, this, elements );
+        }
+        else if( element.getName().equalsIgnoreCase( "Settings" ) )
+        {
+            String auto = element.getAttributeValue( "autoResponse" );
+            if( auto != null && auto.length() > 0 )
+            {
+                String[] pdus = auto.split( "," );
+                batch.addAutoResponseSettings( pdus, true );
+            }
+            String noAuto = element.getAttributeValue( "noAutoResponse" );
+            if( noAuto != null && noAuto.length() > 0 )
+            {
+                String[] pdus = noAuto.split( "," );
+                batch.addAutoResponseSettings( pdus, false );
+            }
+            String window = element.getAttributeValue( "window" );
+            if( window != null && window.length() > 0 )
+            {
+                String timeout =
+                    element.getAttributeValue( "windowTimeoutMillis" );
+                batch.addWindowSetting(
+                    Integer.parseInt( window ),
+                    timeout == null || timeout.length() == 0 ?
+                        Batch.WindowSettingEvent.DEFAULT_TIMEOUT_MILLIS :
+                        Long.parseLong( timeout ) );
+            }
+            String receiptTimeout =
+                element.getAttributeValue( "receiptTimeoutMillis" );
+            if( receiptTimeout != null && receiptTimeout.length() > 0 )
+            {
+                batch.addReceiptTimeoutSetting( Long.parseLong( receiptTimeout ) );
+            }
+        }
+        else
+        {
+            System.err.println(
+                "Expected <PDU>, <Connection> or <Pause>: Found <" +
+                element.getName() + ">");
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Build the batch run by one lane of a <Lanes> element. "${lane}" in
+     * text or attribute values is replaced by the lane number.
+     * @param elements Elements within the <Lanes> element
+     * @param lane     Lane number, counting from 1
+     * @return Batch for the lane, or null if there is an error
+     */
+    Batch readLane( List<Element> elements, int lane )
+    {
+        final String number = Integer.toString( lane );
+        Batch batch = new Batch();
+        try
+        {
+            for( Element original: elements )
+            {
+                Element element = (Element)original.clone();
+                replaceLane( element, number );
+                Iterator<?> descendants = element.getDescendants();
+                while( descendants.hasNext() )
+                {
+                    Object node = descendants.next();
+                    if( node instanceof Element )
                     {
-                        String[] pdus = auto.split( "," );
-                        batch.addAutoResponseSettings( pdus, true );
+                        replaceLane( (Element)node, number );
                     }
-                    String noAuto = element.getAttributeValue( "noAutoResponse" );
-                    if( noAuto != null && noAuto.length() > 0 )
+                    else if( node instanceof Text )
                     {
-                        String[] pdus = noAuto.split( "," );
-                        batch.addAutoResponseSettings( pdus, false );
+                        Text text = (Text)node;
+                        if( text.getText().contains( LANE_PLACEHOLDER ) )
+                        {
+                            text.setText( text.getText().replace( LANE_PLACEHOLDER,
+                                                                  number ) );
+                        }
                     }
                 }
-                else
+                if( !readEvent( element, batch ) )
                 {
-                    System.err.println(
-                        "Expected <PDU>, <Connection> or <Pause>: Found <" +
-                        element.getName() + ">");
+                    return null;
                 }
             }
         }
         catch( Exception e )
         {
+            System.err.println( "Error in <Lanes> for lane " + lane );
             e.printStackTrace();
             return null;
         }
-
         return batch;
     }
 
+    /**
+     * Replace "${lane}" in the attribute values of an element
+     * @param element Element to update
+     * @param number  Lane number
+     */
+    private static void replaceLane( Element element, String number )
+    {
+        for( Object object: element.getAttributes() )
+        {
+            Attribute attribute = (Attribute)object;
+            if( attribute.getValue().contains( LANE_PLACEHOLDER ) )
+            {
+                attribute.setValue( attribute.getValue().replace( LANE_PLACEHOLDER,
+                                                                  number ) );
+            }
+        }
+    }
+
+    /**
+     * Read a <Pdu> element to be used as a template, checking that a PDU
+     * can be built from it.
+     * @param element <Pdu> element
+     * @return Template, or null if no PDU could be built from it
+     */
+    private PDUTemplate readTemplate( Element element )
+    {
+        PDUTemplate template = new PDUTemplate( this, element );
+        if( template.instance( 0 ) == null )
+        {
+            return null;
+        }
+        return template;
+    }
+
+
+    /**
+     * Read a <Pdu> element and encode the PDU. A SUBMIT_SM or DELIVER_SM
+     * whose <ShortMessage segment="auto"> text is too long for one message
+     * becomes a chain of segments.
+     * @param element <Pdu> element
+     * @return Encoded PDU, or null if the PDU type wasn't recognised
+     * @throws Exception Error in the element
+     */
+    EncodedPDU readEncodedPDU( Element element ) throws Exception
+    {
+        PDU pdu = readPDU( element );
+        if( pdu == null )
+        {
+            return null;
+        }
+        Element shortMessage = element.getChild( "ShortMessage" );
+        if( shortMessage == null || !isSegmented( shortMessage ) )
+        {
+            return new EncodedPDU( pdu );
+        }
+
+        StringBuilder text = new StringBuilder();
+        for( Object line: shortMessage.getChildren( "line" ) )
+        {
+            text.append( ((Element)line).getText() ).append( "\n" );
+        }
+        String dataCoding = element.getChildTextTrim( "DataCoding" );
+        String refBits = shortMessage.getAttributeValue( "refBits" );
+        if( refBits != null && !refBits.equals( "8" ) && !refBits.equals( "16" ) )
+        {
+            System.err.println( "refBits must be 8 or 16 in <ShortMessage>" );
+            throw new IllegalArgumentException( "refBits must be 8 or 16 in <ShortMessage>" );
+        }
+        String ref = shortMessage.getAttributeValue( "ref" );
+        return Segmenter.segment( pdu, text.toString(),
+                                  dataCoding == null ? -1 : Integer.parseInt( dataCoding ),
+                                  "16".equals( refBits ),
+                                  ref == null ? -1 : Integer.parseInt( ref ),
+                                  ShortMessageCodec.forThread() );
+    }
+
+    /**
+     * @param shortMessage <ShortMessage> element
+     * @return true if the message should be split into segments as needed
+     */
+    private static boolean isSegmented( Element shortMessage )
+    {
+        return "auto".equalsIgnoreCase( shortMessage.getAttributeValue( "segment" ) );
+    }
 
-    private PDU readPDU( Element element )
+    PDU readPDU( Element element )
         throws WrongLengthOfStringException, WrongDateFormatException,
         IntegerOutOfRangeException, TLVException
     {
@@ -139,6 +637,7 @@ public class BatchReader
 
         pdu = PDU.createPDU( type.getId() );
 
+        // Without a sequence number, one is allocated when the PDU is sent
         String sequenceNumber = element.getChildTextTrim( "SequenceNumber" );
         if( sequenceNumber != null )
         {
@@ -146,7 +645,7 @@ public class BatchReader
         }
         else
         {
-            pdu.setSequenceNumber( ++lastSeq );
+            pdu.setSequenceNumber( 0 );
         }
         String commandStatus = element.getChildTextTrim( "CommandStatus" );
         if( commandStatus == null )
@@ -377,7 +876,7 @@ public class BatchReader
                         Byte.parseByte( smDefaultMsgID ) );
                 }
                 Element shortMessage = element.getChild( "ShortMessage" );
-                if( shortMessage != null )
+                if( shortMessage != null && !isSegmented( shortMessage ) )
                 {
                     Element userDataHeader = shortMessage.getChild( "UserDataHeader" );
                     short udhSeqRef = 0;
@@ -402,25 +901,18 @@ public class BatchReader
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
+                    byte[] header = null;
                     if( udhSeqIndex != 0 &&
                         udhSeqTotal != 0 &&
                         udhSeqIndex <= udhSeqTotal  )
                     {
-                        ByteBuffer buffer = new ByteBuffer();
-                        buffer.appendByte( (byte)5 );
-                        buffer.appendByte( (byte)0 );
-                        buffer.appendByte( (byte)3 );
-                        buffer.appendByte( (byte)udhSeqRef );
-                        buffer.appendByte( (byte)udhSeqTotal );
-                        buffer.appendByte( (byte)udhSeqIndex );
-                        buffer.appendString( text.toString(), Data.ENC_UTF8 );
-
-                        submitSM.setShortMessageData( buffer );
-                    }
-                    else
-                    {
-                        submitSM.setShortMessage( text.toString(), Data.ENC_UTF8 );
+                        header = new byte[] {
+                            5, 0, 3, (byte)udhSeqRef, (byte)udhSeqTotal, (byte)udhSeqIndex
+                        };
                     }
+                    submitSM.setShortMessageData(
+                        ShortMessageCodec.forThread().encode(
+                            text, submitSM.getDataCoding() & 0xFF, header ) );
                 }
                 break;
             }
@@ -547,7 +1039,9 @@ public class BatchReader
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
-                    submitMultiSM.setShortMessage( text.toString(), Data.ENC_UTF8 );
+                    submitMultiSM.setShortMessageData(
+                        ShortMessageCodec.forThread().encode(
+                            text, submitMultiSM.getDataCoding() & 0xFF, null ) );
                 }
                 break;
             }
@@ -640,14 +1134,16 @@ public class BatchReader
                     deliverSM.setDataCoding( Byte.parseByte( dataCoding ) );
                 }
                 Element shortMessage = element.getChild( "ShortMessage" );
-                if( shortMessage != null )
+                if( shortMessage != null && !isSegmented( shortMessage ) )
                 {
                     StringBuilder text = new StringBuilder();
                     for( Object line: shortMessage.getChildren( "line" ) )
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
-                    deliverSM.setShortMessage( text.toString(), Data.ENC_UTF8 );
+                    deliverSM.setShortMessageData(
+                        ShortMessageCodec.forThread().encode(
+                            text, deliverSM.getDataCoding() & 0xFF, null ) );
                 }
                 break;
             }
@@ -973,9 +1469,9 @@ public class BatchReader
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
-                    ByteBuffer buffer = new ByteBuffer();
-                    buffer.appendString( text.toString(), Data.ENC_UTF8 );
-                    submitSM.setMessagePayload( buffer );
+                    submitSM.setMessagePayload(
+                        ShortMessageCodec.forThread().encode(
+                            text, submitSM.getDataCoding() & 0xFF, null ) );
                 }
                 String privacyIndicator = element.getChildTextTrim( "PrivacyIndicator" );
                 if( privacyIndicator != null )
@@ -1150,9 +1646,9 @@ public class BatchReader
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
-                    ByteBuffer buffer = new ByteBuffer();
-                    buffer.appendString( text.toString(), Data.ENC_UTF8 );
-                    submitMultiSM.setMessagePayload( buffer );
+                    submitMultiSM.setMessagePayload(
+                        ShortMessageCodec.forThread().encode(
+                            text, submitMultiSM.getDataCoding() & 0xFF, null ) );
                 }
                 String privacyIndicator = element.getChildTextTrim( "PrivacyIndicator" );
                 if( privacyIndicator != null )
@@ -1297,9 +1793,9 @@ public class BatchReader
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
-                    ByteBuffer buffer = new ByteBuffer();
-                    buffer.appendString( text.toString(), Data.ENC_UTF8 );
-                    deliverSM.setMessagePayload( buffer );
+                    deliverSM.setMessagePayload(
+                        ShortMessageCodec.forThread().encode(
+                            text, deliverSM.getDataCoding() & 0xFF, null ) );
                 }
                 Element callbackNum = element.getChild( "CallBackNum" );
                 if( callbackNum != null )
@@ -1487,9 +1983,9 @@ public class BatchReader
                     {
                         text.append( ((Element)line).getText() ).append( "\n" );
                     }
-                    ByteBuffer buffer = new ByteBuffer();
-                    buffer.appendString( text.toString(), Data.ENC_UTF8 );
-                    dataSM.setMessagePayload( buffer );
+                    dataSM.setMessagePayload(
+                        ShortMessageCodec.forThread().encode(
+                            text, dataSM.getDataCoding() & 0xFF, null ) );
                 }
                 String setDPF = element.getChildTextTrim( "SetDpf" );
                 if( setDPF != null )
@@ -1688,6 +2184,32 @@ public class BatchReader
         conn.setAddress( server.getTextTrim() );
         conn.setPort(
                 Integer.parseInt( server.getAttributeValue( "port" ), 10 ) );
+        String sessions = element.getAttributeValue( "sessions" );
+        if( sessions != null && sessions.length() > 0 )
+        {
+            conn.setSessions( Integer.parseInt( sessions, 10 ) );
+        }
+        String engine = element.getAttributeValue( "engine" );
+        if( engine != null && engine.length() > 0 )
+        {
+            conn.setEngine( engine );
+        }
+        String ioThreads = element.getAttributeValue( "ioThreads" );
+        if( ioThreads != null && ioThreads.length() > 0 )
+        {
+            conn.setIoThreads( Integer.parseInt( ioThreads, 10 ) );
+        }
+        String coalesceBytes = element.getAttributeValue( "coalesceBytes" );
+        String coalesceMicros = element.getAttributeValue( "coalesceMicros" );
+        if( coalesceMicros != null && coalesceMicros.length() > 0 )
+        {
+            conn.setCoalesceMicros( Long.parseLong( coalesceMicros, 10 ) );
+            conn.setCoalesceBytes( CoalescingWriter.DEFAULT_MAX_BYTES );
+        }
+        if( coalesceBytes != null && coalesceBytes.length() > 0 )
+        {
+            conn.setCoalesceBytes( Integer.parseInt( coalesceBytes, 10 ) );
+        }
 
         return conn;
     }
@@ -8,14 +8,18 @@ package uk.org.youngman.smpp.test.batch;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import org.smpp.*;
-import org.smpp.pdu.DeliverSMResp;
-import org.smpp.pdu.EnquireLinkResp;
+import org.smpp.pdu.DataSMResp;
 import org.smpp.pdu.PDU;
+import org.smpp.pdu.SubmitSMResp;
+import org.smpp.util.ByteBuffer;
 import uk.org.youngman.smpp.test.SMPPEvent;
+import uk.org.youngman.smpp.test.SMPPStats;
 
 
 import static uk.org.youngman.smpp.test.SMPPEvent.EventType.SENT_PDU;
@@ -23,26 +27,219 @@ import static uk.org.youngman.smpp.test.SMPPEvent.EventType.SENT_PDU;
 
 public class BatchRunner
 {
+    /**
+     * Time between logs of the rate chosen by an adaptive load
+     */
+    private static final long RATE_REPORT_NANOS = 1000000000L;
+
     private Batch batch;
     private BatchEventLog eventLog;
-    BatchServerPDUEventListener listener;
+
+    /**
+     * Open sessions. PDUs are spread across these in turn.
+     */
+    private List<BatchSession> sessions = new ArrayList<BatchSession>();
+
+    /**
+     * Index of the session to send the next PDU on
+     */
+    private int nextSession = 0;
+
+    /**
+     * Set of PDU types for which new sessions automatically generate responses
+     */
+    private Set<Integer> autoResponses = new HashSet<Integer>();
+
+    /**
+     * Response latencies for the whole run
+     */
+    private LatencyStats latencies = new LatencyStats();
+
+    /**
+     * Counts of PDUs sent and received for the whole run, for JMX
+     */
+    private SMPPStats stats = new SMPPStats();
+
+    /**
+     * Maximum number of requests awaiting a response, or 0 for no limit
+     */
+    private int window = 0;
+
+    /**
+     * Time to wait for a free slot in the window before discarding
+     * unanswered requests
+     */
+    private long windowTimeoutMillis = Batch.WindowSettingEvent.DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * Concatenation reference numbers for long messages, allocated by the
+     * root runner for the whole run
+     */
+    private final SequenceAllocator concatReferences = new SequenceAllocator();
+
+    /**
+     * Delivery receipts matched to the messages they report on, for the
+     * whole run
+     */
+    private ReceiptTracker receipts = new ReceiptTracker();
+
+    /**
+     * PDUs received by this runner's sessions, for <WaitFor>
+     */
+    private ReceivedCounts received = new ReceivedCounts();
+
+    /**
+     * Rate controller of the adaptive load being run, or null. Told about
+     * responses by the listeners.
+     */
+    private volatile AdaptiveRate adaptiveRate = null;
+
+    /**
+     * Time this runner started running its events, from System.nanoTime()
+     */
+    private long startNanos;
+
+    /**
+     * Time the last pause or <At> was due to end, from System.nanoTime().
+     * Each pause ends a fixed time after the previous one was due to end,
+     * rather than after it actually ended, so time spent sending doesn't
+     * accumulate as drift. If that time has already passed by more than the
+     * pause, the pause is timed from when it starts instead.
+     */
+    private long scheduleNanos;
+
+    /**
+     * How late pauses ended, shared by all lanes
+     */
+    private LatencyHistogram pauseLag = new LatencyHistogram();
+
+    /**
+     * Engine for connections using NIO, started by the first of them. Only
+     * used in the root runner.
+     */
+    private NioEngine nioEngine = null;
+
+    /**
+     * Runner for the whole batch. Lanes share its log, latencies and NIO
+     * engine.
+     */
+    private BatchRunner root;
+
+    /**
+     * Lane number, counting from 1, or 0 if this is the root runner
+     */
+    private int lane = 0;
 
     BatchRunner( Batch batch, File logFile )
+    {
+        this( batch, new BatchEventLog( logFile ) );
+    }
+
+    /**
+     * Constructor
+     * @param batch    Batch to run
+     * @param eventLog Log for the run
+     */
+    BatchRunner( Batch batch, BatchEventLog eventLog )
+    {
+        this.batch = batch;
+        this.eventLog = eventLog;
+        this.root = this;
+
+        // Auto-respond to ENQUIRE_LINK and DELIVER_SM by default
+        autoResponses.add( Data.ENQUIRE_LINK );
+        autoResponses.add( Data.DELIVER_SM );
+    }
+
+    /**
+     * Constructor for a lane, starting with the settings of the runner
+     * that started it
+     * @param parent Runner that started the lane
+     * @param batch  Batch for the lane
+     * @param lane   Lane number, counting from 1
+     */
+    private BatchRunner( BatchRunner parent, Batch batch, int lane )
     {
         this.batch = batch;
-        this.eventLog = new BatchEventLog( logFile );
+        this.eventLog = parent.eventLog;
+        this.latencies = parent.latencies;
+        this.stats = parent.stats;
+        this.receipts = parent.receipts;
+        this.pauseLag = parent.pauseLag;
+        this.root = parent.root;
+        this.lane = lane;
+        this.autoResponses.addAll( parent.autoResponses );
+        this.window = parent.window;
+        this.windowTimeoutMillis = parent.windowTimeoutMillis;
     }
 
+    /**
+     * Run the batch and report on it. The log is closed at the end, even if
+     * the run fails, as its writer thread would keep the JVM running.
+     */
     void run()
     {
-        Connection connection = null;
-        int seq = 1;
+        try
+        {
+            runEvents();
+            if( nioEngine != null )
+            {
+                nioEngine.shutdown();
+                nioEngine = null;
+            }
+            if( pauseLag.getCount() > 0 )
+            {
+                eventLog.logEvent( new Date(),
+                                   SMPPEvent.EventType.UNKNOWN,
+                                   null,
+                                   "Pauses ended late by p99=" +
+                                       pauseLag.getPercentile( 99 ) / 1000.0 +
+                                       "ms, max=" + pauseLag.getMax() / 1000.0 +
+                                       "ms over " + pauseLag.getCount() + " pauses" );
+            }
+            latencies.report( eventLog );
+            receipts.report( eventLog );
+        }
+        finally
+        {
+            eventLog.close();
+        }
+    }
+
+    /**
+     * @return Counts of PDUs sent and received for the whole run
+     */
+    SMPPStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * @return Log for the whole run
+     */
+    BatchEventLog getEventLog()
+    {
+        return eventLog;
+    }
+
+    /**
+     * @return Response latencies for the whole run
+     */
+    LatencyStats getLatencies()
+    {
+        return latencies;
+    }
+
+    private void runEvents()
+    {
+        startNanos = System.nanoTime();
+        scheduleNanos = startNanos;
         for( Batch.Event event: batch.getEvents() )
         {
             if( event instanceof ConnectionEvent )
             {
                 ConnectionEvent connectionEvent = (ConnectionEvent)event;
-                if( connection != null && connection.isOpened() )
+                if( !sessions.isEmpty() )
                 {
                     eventLog.logEvent( new Date(),
                                        SMPPEvent.EventType.CONNECT_TO_SMSC,
@@ -52,59 +249,113 @@ public class BatchRunner
                                            ":" + connectionEvent.getPort() );
                     continue;
                 }
-                connection = new TCPIPConnection(
-                    connectionEvent.getAddress(), connectionEvent.getPort() );
-                Receiver receiver = new Receiver( connection );
-                listener = new BatchServerPDUEventListener();
-                receiver.setServerPDUEventListener( listener );
-                try
+                for( int i = 1; i <= connectionEvent.getSessions(); i++ )
                 {
-                    connection.open();
-                    eventLog.logEvent( new Date(),
-                                       SMPPEvent.EventType.CONNECT_TO_SMSC,
-                                       null,
-                                       "Connected to " + connectionEvent.getAddress() +
-                                           ":" + connectionEvent.getPort() );
+                    final Connection connection;
+                    if( connectionEvent.isNio() )
+                    {
+                        try
+                        {
+                            connection = new NioConnection(
+                                nioEngine( connectionEvent.getIoThreads() ),
+                                connectionEvent.getAddress(),
+                                connectionEvent.getPort() );
+                        }
+                        catch( IOException e )
+                        {
+                            System.err.println( "Exception starting NIO engine" );
+                            e.printStackTrace();
+                            eventLog.logEvent( new Date(),
+                                               SMPPEvent.EventType.CONNECT_TO_SMSC,
+                                               null,
+                                               "Connect failed (NIO engine not started) to " +
+                                                   connectionEvent.getAddress() +
+                                                   ":" + connectionEvent.getPort() );
+                            closeOpenSessions();
+                            return;
+                        }
+                    }
+                    else
+                    {
+                        connection = new TCPIPConnection( connectionEvent.getAddress(),
+                                                          connectionEvent.getPort() );
+                    }
+                    sessions.add( new BatchSession( i, connection ) );
                 }
-                catch( IOException e )
+                for( BatchSession session: sessions )
                 {
-                    System.err.println( "Exception opening connection" );
-                    e.printStackTrace();
+                    try
+                    {
+                        session.connection.open();
+                        session.opened();
+                        if( connectionEvent.getCoalesceBytes() > 0 )
+                        {
+                            session.writer = new CoalescingWriter(
+                                session.connection,
+                                "BatchWriter-" + session.id,
+                                connectionEvent.getCoalesceBytes(),
+                                connectionEvent.getCoalesceMicros() );
+                        }
+                        eventLog.logEvent( new Date(),
+                                           SMPPEvent.EventType.CONNECT_TO_SMSC,
+                                           null,
+                                           "Connected to " + connectionEvent.getAddress() +
+                                               ":" + connectionEvent.getPort() +
+                                               describe( session ) );
+                    }
+                    catch( IOException e )
+                    {
+                        System.err.println( "Exception opening connection" );
+                        e.printStackTrace();
+                    }
+                    session.start();
                 }
-                receiver.start();
+                nextSession = 0;
+                // Pauses after connecting are timed from when it finished
+                scheduleNanos = System.nanoTime();
             }
             else if( event instanceof Batch.DisconnectEvent )
             {
-                if( connection != null && connection.isOpened() )
+                if( sessions.isEmpty() )
+                {
+                    eventLog.logEvent( new Date(),
+                                       SMPPEvent.EventType.CONNECT_TO_SMSC,
+                                       null,
+                                       "Disconnect failed (not connected)" );
+                }
+                for( BatchSession session: sessions )
                 {
+                    if( !session.connection.isOpened() )
+                    {
+                        eventLog.logEvent( new Date(),
+                                           SMPPEvent.EventType.CONNECT_TO_SMSC,
+                                           null,
+                                           "Disconnect failed (not connected)" +
+                                               describe( session ) );
+                        continue;
+                    }
                     try
                     {
-                        connection.close();
+                        session.close();
                         eventLog.logEvent( new Date(),
                                            SMPPEvent.EventType.DISCONNECT_FROM_SMSC,
                                            null,
-                                           "Disconnected" );
+                                           "Disconnected" + describe( session ) );
                     }
                     catch( IOException e )
                     {
                         System.err.println( "Exception closing connection" );
                         e.printStackTrace();
                     }
-                    connection = null;
-                }
-                else
-                {
-                    eventLog.logEvent( new Date(),
-                                       SMPPEvent.EventType.CONNECT_TO_SMSC,
-                                       null,
-                                       "Disconnect failed (not connected)" );
-                    connection = null;
                 }
+                logOutstanding();
+                sessions.clear();
             }
             else if( event instanceof Batch.PDUEvent )
             {
-                final PDU pdu = ((Batch.PDUEvent)event).getPdu();
-                if( connection == null )
+                final EncodedPDU encoded = ((Batch.PDUEvent)event).getEncoded();
+                final PDU pdu = encoded.getPdu();
+                if( sessions.isEmpty() )
                 {
                     eventLog.logEvent(
                         new Date(),
@@ -118,51 +369,110 @@ public class BatchRunner
                     continue;
                 }
 
-                if( pdu.getSequenceNumber() < seq )
+                if( isSessionPDU( pdu ) )
                 {
-                    pdu.setSequenceNumber( seq++ );
+                    // Binds, unbinds etc. apply to every session
+                    for( BatchSession session: sessions )
+                    {
+                        if( !sendPDU( session, encoded, true ) )
+                        {
+                            return;
+                        }
+                    }
                 }
-
-                try
+                else if( !sendPDU( nextSession(), encoded, true ) )
                 {
-                    connection.send( pdu.getData() );
-                    eventLog.logEvent(
-                        new Date(),
-                        SMPPEvent.EventType.SENT_PDU,
-                        pdu,
-                        "Sent PDU, seq = " + pdu.getSequenceNumber() +
-                            ", type=" + Batch.CommandID.find( pdu.getCommandId() ) +
-                            ", status=" +
-                            Batch.CommandStatus.find( pdu.getCommandStatus() ) +
-                            pdu.debugString() );
+                    return;
                 }
-                catch( Exception e )
+            }
+            else if( event instanceof Batch.LoadEvent )
+            {
+                if( sessions.isEmpty() )
+                {
+                    eventLog.logEvent( new Date(),
+                                       SMPPEvent.EventType.SENT_PDU,
+                                       null,
+                                       "Load not run (not connected)" );
+                    continue;
+                }
+                if( !runLoad( (Batch.LoadEvent)event ) )
                 {
-                    System.err.println(
-                            "exception caught trying to send PDU " + pdu.debugString() );
-                    e.printStackTrace();
                     return;
                 }
             }
+            else if( event instanceof Batch.LanesEvent )
+            {
+                runLanes( (Batch.LanesEvent)event );
+                // Pauses after the lanes are timed from when they finished
+                scheduleNanos = System.nanoTime();
+            }
             else if( event instanceof Batch.PauseEvent )
             {
-                try
+                final long pauseNanos = ((Batch.PauseEvent) event).getMillis() * 1000000L;
+                // A slow step since the last pause, such as a bind or a wait
+                // for the window, would otherwise cut this pause short or
+                // skip it, so once a whole pause behind start again from now
+                final long now = System.nanoTime();
+                if( now - scheduleNanos > pauseNanos )
                 {
-                    final long millis = ((Batch.PauseEvent) event).getMillis();
-//                    System.out.println( "Pausing for " + millis/1000.0 + " secs" );
-                    Thread.sleep( millis );
+                    scheduleNanos = now;
                 }
-                catch( InterruptedException e )
+                scheduleNanos += pauseNanos;
+                if( !awaitSchedule() )
                 {
                     System.err.println( "Pause interrupted" );
                 }
             }
+            else if( event instanceof Batch.WaitForEvent )
+            {
+                if( !waitFor( (Batch.WaitForEvent)event ) )
+                {
+                    System.err.println( "Wait interrupted" );
+                }
+                // Pauses after the wait are timed from when it finished
+                scheduleNanos = System.nanoTime();
+            }
+            else if( event instanceof Batch.AtEvent )
+            {
+                final long offsetMillis = ((Batch.AtEvent)event).getOffsetMillis();
+                scheduleNanos = startNanos + offsetMillis * 1000000L;
+                final long lateNanos = System.nanoTime() - scheduleNanos;
+                if( lateNanos >= 1000000L )
+                {
+                    eventLog.logEvent( new Date(),
+                                       SMPPEvent.EventType.UNKNOWN,
+                                       null,
+                                       "At offsetMillis=" + offsetMillis +
+                                           " reached " + lateNanos / 1000000L +
+                                           "ms late" );
+                }
+                else if( !awaitSchedule() )
+                {
+                    System.err.println( "Wait for offset interrupted" );
+                }
+            }
             else if( event instanceof Batch.AutoResponseSettingEvent )
             {
                     Batch.AutoResponseSettingEvent settingEvent =
                         (Batch.AutoResponseSettingEvent) event;
-                    listener.setAutoResponses( settingEvent.getPduType().getId(),
-                                               settingEvent.isEnable() );
+                    setAutoResponses( settingEvent.getPduType().getId(),
+                                      settingEvent.isEnable() );
+            }
+            else if( event instanceof Batch.WindowSettingEvent )
+            {
+                Batch.WindowSettingEvent windowEvent =
+                    (Batch.WindowSettingEvent) event;
+                window = windowEvent.getWindow();
+                windowTimeoutMillis = windowEvent.getTimeoutMillis();
+                for( BatchSession session: sessions )
+                {
+                    session.outstanding.setWindow( window );
+                }
+            }
+            else if( event instanceof Batch.ReceiptTimeoutSettingEvent )
+            {
+                receipts.setTimeout(
+                    ((Batch.ReceiptTimeoutSettingEvent) event).getTimeoutMillis() );
             }
             else
             {
@@ -170,145 +480,885 @@ public class BatchRunner
             }
         }
 
-        if( connection != null )
+        logOutstanding();
+
+        for( BatchSession session: sessions )
         {
             try
             {
-                connection.close();
+                session.close();
             }
             catch( IOException e )
             {
                 e.printStackTrace();
             }
         }
+        sessions.clear();
     }
 
     /**
-     * This event listener logs all incoming PDUs and sends responses to
-     * ENQUIRE_LINK PDUs.
+     * Close the sessions that are open and forget them all, when the batch
+     * can't carry on
      */
-    private class BatchServerPDUEventListener
-            implements ServerPDUEventListener
+    private void closeOpenSessions()
     {
-        /**
-         * Set of PDU types for which we may automatically generate responses
-         */
-        Set<Integer> autoResponses = new HashSet<Integer>(  );
-
-
-        /**
-         * Default constructor
-         */
-        BatchServerPDUEventListener()
-        {
-            // Auto-respond to ENQUIRE_LINK and DELIVER_SM by default
-            autoResponses.add( Data.ENQUIRE_LINK );
-            autoResponses.add( Data.DELIVER_SM );
-        }
-
-
-        synchronized public void handleEvent( ServerPDUEvent event )
+        for( BatchSession session: sessions )
         {
-            final PDU pdu = event.getPDU();
-            eventLog.logEvent(
-                new Date(),
-                SMPPEvent.EventType.RECEIVED_PDU,
-                pdu,
-                "Received PDU, seq=" + pdu.getSequenceNumber() +
-                    ", type=" +
-                    Batch.CommandID.find( pdu.getCommandId() ) +
-                    ", status=" +
-                    Batch.CommandStatus.find( pdu.getCommandStatus() ) );
-            if( pdu.getCommandId()== Data.ENQUIRE_LINK &&
-                autoResponses.contains( Data.ENQUIRE_LINK ) )
+            if( session.connection.isOpened() )
             {
-                EnquireLinkResp response = new EnquireLinkResp();
-                response.setSequenceNumber(
-                    pdu.getSequenceNumber() );
-                response.setCommandStatus( Data.ESME_ROK );
-                try
-                {
-                    event.getConnection().send(
-                        response.getData() );
-                }
-                catch( Exception e )
-                {
-                    System.err.println(
-                        "Exception sending Enquire Link Response" );
-                    e.printStackTrace();
-                }
-                eventLog.logEvent(
-                        new Date(),
-                        SMPPEvent.EventType.SENT_PDU,
-                        response,
-                        "Sent PDU, seq= " + pdu.getSequenceNumber() +
-                                ", type=" + Batch.CommandID.find(
-                                response.getCommandId() ) +
-                                ", status=" + Batch.CommandStatus.find(
-                                response.getCommandStatus() ) );
-            }
-            if( pdu.getCommandId()== Data.DELIVER_SM &&
-                autoResponses.contains( Data.DELIVER_SM ) )
-            {
-                DeliverSMResp response = new DeliverSMResp();
-                response.setSequenceNumber(
-                    pdu.getSequenceNumber() );
-                response.setCommandStatus( Data.ESME_ROK );
                 try
                 {
-                    event.getConnection().send(
-                        response.getData() );
+                    session.close();
+                    eventLog.logEvent( new Date(),
+                                       SMPPEvent.EventType.DISCONNECT_FROM_SMSC,
+                                       null,
+                                       "Disconnected" + describe( session ) );
                 }
-                catch( Exception e )
+                catch( IOException e )
                 {
-                    System.err.println(
-                        "Exception sending DeliverSM Response" );
+                    System.err.println( "Exception closing connection" );
                     e.printStackTrace();
                 }
-                eventLog.logEvent(
-                    new Date(),
-                    SENT_PDU,
-                    response,
-                    "Sent PDU, seq= " + pdu.getSequenceNumber() +
-                        ", type=" + Batch.CommandID.find(
-                                    response.getCommandId() ) +
-                        ", status=" + Batch.CommandStatus.find(
-                                    response.getCommandStatus() ) );
             }
         }
+        sessions.clear();
+    }
 
-        /**
-         * Enable or disable automatic responses to some request PDUs
-         * @param pduType PDU type to enable/disable
-         * @param enable  Enable or disable
-         */
-        synchronized void setAutoResponses( int pduType, boolean enable )
+    /**
+     * Wait for PDUs to be received, logging the result
+     * @param waitFor PDU type and count, or number of outstanding requests
+     * @return false if the wait was interrupted
+     */
+    private boolean waitFor( Batch.WaitForEvent waitFor )
+    {
+        final long start = System.nanoTime();
+        final String result;
+        try
         {
-            if( enable )
+            if( waitFor.getPduType() != null )
             {
-                if( autoResponses.add( pduType ) )
-                {
-                    // System.out.println( "Enabled auto responses for " + pduType );
-                }
-                else
-                {
-                    // System.out.println( "auto responses for " + pduType +
-                    //                     "not enabled or already enabled" );
-                }
+                final long arrived = received.await( waitFor.getPduType().getId(),
+                                                     waitFor.getCount(),
+                                                     waitFor.getTimeoutMillis() );
+                result = ( arrived < waitFor.getCount() ? "timed out, " : "" ) +
+                         "received " + arrived + " of " + waitFor.getCount() +
+                         " " + waitFor.getPduType();
             }
             else
             {
-                if( autoResponses.remove( pduType ) )
-                {
-                    // System.out.println( "Disabled auto responses for " +
-                    //                             pduType );
-                }
-                else
+                List<OutstandingRequests> outstanding =
+                    new ArrayList<OutstandingRequests>();
+                for( BatchSession session: sessions )
                 {
-                    // System.out.println( "auto responses for " + pduType +
-                    //                     "not disabled or already disabled" );
+                    outstanding.add( session.outstanding );
                 }
+                final int remaining = received.awaitOutstanding(
+                    outstanding, (int)waitFor.getCount(), waitFor.getTimeoutMillis() );
+                result = ( remaining > waitFor.getCount() ? "timed out, " : "" ) +
+                         remaining + " requests awaiting a response";
+            }
+        }
+        catch( InterruptedException e )
+        {
+            return false;
+        }
+        eventLog.logEvent( new Date(),
+                           SMPPEvent.EventType.RECEIVED_PDU,
+                           null,
+                           "WaitFor " + result + " after " +
+                               ( System.nanoTime() - start ) / 1000000L + "ms" );
+        return true;
+    }
+
+    /**
+     * Wait until the current schedule deadline and record how late the
+     * wait ended
+     * @return false if the wait was interrupted
+     */
+    private boolean awaitSchedule()
+    {
+        try
+        {
+            RateScheduler.awaitDeadline( scheduleNanos );
+        }
+        catch( InterruptedException e )
+        {
+            return false;
+        }
+        pauseLag.record( ( System.nanoTime() - scheduleNanos ) / 1000 );
+        return true;
+    }
+
+    /**
+     * Start the NIO engine, if it isn't already running
+     * @param ioThreads Number of I/O threads, or 0 for the default
+     * @return The NIO engine
+     * @throws IOException Error starting the engine
+     */
+    private NioEngine nioEngine( int ioThreads ) throws IOException
+    {
+        synchronized( root )
+        {
+            if( root.nioEngine == null )
+            {
+                root.nioEngine = new NioEngine( ioThreads > 0 ?
+                                                    ioThreads :
+                                                    NioEngine.defaultThreadCount() );
             }
+            return root.nioEngine;
+        }
+    }
+
+    /**
+     * Run the script of a <Lanes> element on several lanes at once, each
+     * with its own thread and sessions, and wait for them all to finish.
+     * @param lanes Lane count, thread type and script
+     */
+    private void runLanes( final Batch.LanesEvent lanes )
+    {
+        final boolean virtual = lanes.isVirtual() && LaneThreads.isVirtualAvailable();
+        eventLog.logEvent( new Date(),
+                           SMPPEvent.EventType.UNKNOWN,
+                           null,
+                           "Lanes started, count=" + lanes.getCount() +
+                               ", threads=" + ( virtual ? "virtual" : "platform" ) );
+        final long start = System.nanoTime();
+
+        List<Thread> threads = new ArrayList<Thread>( lanes.getCount() );
+        for( int i = 1; i <= lanes.getCount(); i++ )
+        {
+            final int number = i;
+            Thread thread = LaneThreads.newThread( new Runnable()
+            {
+                public void run()
+                {
+                    Batch laneBatch = lanes.readLane( number );
+                    if( laneBatch != null )
+                    {
+                        new BatchRunner( BatchRunner.this, laneBatch, number ).runEvents();
+                    }
+                }
+            }, "Lane-" + number, virtual );
+            thread.start();
+            threads.add( thread );
+        }
+
+        for( Thread thread: threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException e )
+            {
+                System.err.println( "Interrupted waiting for lanes" );
+                break;
+            }
+        }
+        eventLog.logEvent( new Date(),
+                           SMPPEvent.EventType.UNKNOWN,
+                           null,
+                           "Lanes finished in " +
+                               ( System.nanoTime() - start ) / 1000000L + "ms" );
+    }
+
+    /**
+     * PDUs that set up or tear down a session, or check that it is alive,
+     * are sent on every session. Other PDUs are spread across the sessions.
+     * @param pdu PDU to be sent
+     * @return true if the PDU should be sent on every session
+     */
+    private static boolean isSessionPDU( PDU pdu )
+    {
+        switch( pdu.getCommandId() )
+        {
+        case Data.BIND_RECEIVER:
+        case Data.BIND_TRANSMITTER:
+        case Data.BIND_TRANSCEIVER:
+        case Data.UNBIND:
+        case Data.ENQUIRE_LINK:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return The session to send the next PDU on, taking each in turn
+     */
+    private BatchSession nextSession()
+    {
+        if( nextSession >= sessions.size() )
+        {
+            nextSession = 0;
+        }
+        return sessions.get( nextSession++ );
+    }
+
+    /**
+     * Set up a session on a connection that is already open, without
+     * running the batch, so that received PDUs can be fed to its listener
+     * directly, as the benchmarks do
+     * @param connection Open connection, which automatic responses are
+     *                   sent on
+     * @return Listener for PDUs received on the connection
+     */
+    ServerPDUEventListener openSession( Connection connection )
+    {
+        return new BatchSession( sessions.size() + 1, connection ).listener;
+    }
+
+    /**
+     * Identify a session in log messages, if there is more than one, and
+     * the lane if it is in one
+     * @param session Session to describe
+     * @return Session description, or an empty string
+     */
+    private String describe( BatchSession session )
+    {
+        return ( lane > 0 ? ", lane=" + lane : "" ) +
+               ( sessions.size() > 1 ? ", session=" + session.id : "" );
+    }
+
+    /**
+     * Enable or disable automatic responses on current and future sessions
+     * @param pduType PDU type to enable/disable
+     * @param enable  Enable or disable
+     */
+    private void setAutoResponses( int pduType, boolean enable )
+    {
+        if( enable )
+        {
+            autoResponses.add( pduType );
+        }
+        else
+        {
+            autoResponses.remove( pduType );
+        }
+        for( BatchSession session: sessions )
+        {
+            session.listener.setAutoResponses( pduType, enable );
+        }
+    }
+
+    /**
+     * Log the number of requests that have not been answered
+     */
+    private void logOutstanding()
+    {
+        int count = 0;
+        for( BatchSession session: sessions )
+        {
+            count += session.outstanding.size();
+        }
+        if( count > 0 )
+        {
+            eventLog.logEvent( new Date(),
+                               SMPPEvent.EventType.RECEIVED_PDU,
+                               null,
+                               count + " requests still awaiting a response" );
+        }
+    }
+
+    /**
+     * Send a PDU, recording it as outstanding if it is a request. PDUs
+     * without a sequence number in the batch are given the next one for the
+     * session.
+     * @param session Session to send on
+     * @param encoded PDU to send
+     * @param logPdu  Log the PDU details. Load runs only log a summary.
+     * @return false if the PDU could not be sent
+     */
+    private boolean sendPDU( BatchSession session, EncodedPDU encoded,
+                             boolean logPdu )
+    {
+        return sendPDU( session, encoded, logPdu, false, 0 );
+    }
+
+    /**
+     * Send a PDU, recording it as outstanding if it is a request. PDUs
+     * without a sequence number in the batch are given the next one for the
+     * session. The segments of a long message are sent one after another on
+     * the same session, with a new concatenation reference number unless
+     * the batch gave one.
+     * @param session       Session to send on
+     * @param encoded       PDU to send
+     * @param logPdu        Log the PDU details. Load runs only log a summary.
+     * @param openLoop      Measure latency from intendedNanos
+     * @param intendedNanos Scheduled send time, from System.nanoTime()
+     * @return false if the PDU could not be sent
+     */
+    private boolean sendPDU( BatchSession session, EncodedPDU encoded,
+                             boolean logPdu, boolean openLoop, long intendedNanos )
+    {
+        if( encoded.isAutoReference() )
+        {
+            final int reference = root.concatReferences.next();
+            for( EncodedPDU segment = encoded; segment != null;
+                 segment = segment.getNext() )
+            {
+                segment.setReference( reference );
+            }
+        }
+        for( EncodedPDU segment = encoded; segment != null;
+             segment = segment.getNext() )
+        {
+            if( !sendSegment( session, segment, logPdu, openLoop, intendedNanos ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send a PDU, or one segment of a long message
+     * @param session       Session to send on
+     * @param encoded       PDU to send
+     * @param logPdu        Log the PDU details. Load runs only log a summary.
+     * @param openLoop      Measure latency from intendedNanos
+     * @param intendedNanos Scheduled send time, from System.nanoTime()
+     * @return false if the PDU could not be sent
+     */
+    private boolean sendSegment( BatchSession session, EncodedPDU encoded,
+                                 boolean logPdu, boolean openLoop,
+                                 long intendedNanos )
+    {
+        final PDU pdu = encoded.getPdu();
+        final int requested = encoded.getRequestedSequenceNumber();
+        // Set if this request was recorded as awaiting a response
+        boolean outstanding = false;
+
+        if( !pdu.isRequest() )
+        {
+            encoded.setSequenceNumber( requested != 0 ? requested :
+                                       session.sequenceNumbers.next() );
+        }
+        else
+        {
+            awaitWindow( session );
+            final long sentNanos = openLoop ? intendedNanos : System.nanoTime();
+            final boolean receiptRequested = ReceiptTracker.isReceiptRequested( pdu );
+            if( requested != 0 )
+            {
+                encoded.setSequenceNumber( requested );
+                outstanding = session.outstanding.add( requested, pdu.getCommandId(),
+                                                       sentNanos, receiptRequested );
+                if( !outstanding )
+                {
+                    eventLog.logEvent( new Date(),
+                                       SMPPEvent.EventType.SENT_PDU,
+                                       null,
+                                       "Sequence number " + requested + describe( session ) +
+                                           " is already awaiting a response, so the" +
+                                           " response to this " +
+                                           Batch.CommandID.find( pdu.getCommandId() ) +
+                                           " can't be told apart from it" );
+                }
+            }
+            else
+            {
+                // Skip numbers the batch gave to requests that are still
+                // awaiting a response
+                int sequenceNumber;
+                do
+                {
+                    sequenceNumber = session.sequenceNumbers.next();
+                }
+                while( !session.outstanding.add( sequenceNumber, pdu.getCommandId(),
+                                                 sentNanos, receiptRequested ) );
+                encoded.setSequenceNumber( sequenceNumber );
+                outstanding = true;
+            }
+        }
+
+        try
+        {
+            final ByteBuffer data = encoded.getData();
+            session.send( data );
+            stats.sent( pdu.getCommandId(), data.length() );
+            if( logPdu )
+            {
+                eventLog.logEvent(
+                    new Date(),
+                    SMPPEvent.EventType.SENT_PDU,
+                    pdu,
+                    "Sent PDU" + describe( session ) +
+                        ", seq = " + pdu.getSequenceNumber() +
+                        ", type=" + Batch.CommandID.find( pdu.getCommandId() ) +
+                        ", status=" +
+                        Batch.CommandStatus.find( pdu.getCommandStatus() ) +
+                        pdu.debugString() );
+            }
+        }
+        catch( Exception e )
+        {
+            System.err.println(
+                    "exception caught trying to send PDU " + pdu.debugString() );
+            e.printStackTrace();
+            if( outstanding )
+            {
+                session.outstanding.remove( pdu.getSequenceNumber() );
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send copies of a template PDU at a fixed rate for a fixed time, spread
+     * across the open sessions. Send times are scheduled from the start of
+     * the run, so they don't drift.
+     * <p>
+     * In open loop mode latency is measured from the time each PDU was due
+     * to be sent. Otherwise a stalled send delays the PDUs behind it without
+     * that delay being counted (coordinated omission), and the latencies
+     * look better than the service the SMSC is really giving.
+     * @param load Rate, duration, template PDU and latency mode
+     * @return false if a PDU could not be sent
+     */
+    private boolean runLoad( Batch.LoadEvent load )
+    {
+        final PDUTemplate template = load.getTemplate();
+        final PDU pdu = template.instance( 0 );
+        final AdaptiveRate adaptive =
+            load.isAdaptive() ? load.createAdaptiveRate() : null;
+        eventLog.logEvent( new Date(),
+                           SMPPEvent.EventType.SENT_PDU,
+                           pdu,
+                           "Load started, tps=" + load.getTps() +
+                               ", duration=" + load.getDurationMillis() +
+                               "ms, openLoop=" + load.isOpenLoop() +
+                               ( adaptive != null ? ", adaptive=true" : "" ) +
+                               ", type=" +
+                               Batch.CommandID.find( pdu.getCommandId() ) );
+
+        final RateScheduler scheduler = new RateScheduler(
+            adaptive != null ? adaptive.getRate() : load.getTps() );
+        adaptiveRate = adaptive;
+        long lastReportNanos = scheduler.getStartNanos();
+        long sentAtLastReport = 0;
+        final long end = scheduler.getStartNanos() +
+                         load.getDurationMillis() * 1000000L;
+        final LatencyHistogram lag = new LatencyHistogram();
+        long sent = 0;
+        boolean ok = true;
+        while( ok )
+        {
+            final long deadline = scheduler.nextDeadline();
+            if( deadline - end >= 0 )
+            {
+                break;
+            }
+            try
+            {
+                RateScheduler.awaitDeadline( deadline );
+            }
+            catch( InterruptedException e )
+            {
+                System.err.println( "Load interrupted" );
+                break;
+            }
+            final EncodedPDU encoded = template.encodedInstance( sent );
+            if( encoded == null )
+            {
+                break;
+            }
+            ok = sendPDU( nextSession(), encoded, false, load.isOpenLoop(), deadline );
+            if( ok )
+            {
+                sent++;
+                lag.record( ( System.nanoTime() - deadline ) / 1000 );
+            }
+
+            if( adaptive != null )
+            {
+                final long now = System.nanoTime();
+                if( adaptive.update( now ) )
+                {
+                    scheduler.setRate( adaptive.getRate() );
+                }
+                if( now - lastReportNanos >= RATE_REPORT_NANOS )
+                {
+                    eventLog.logEvent( new Date(),
+                                       SMPPEvent.EventType.SENT_PDU,
+                                       null,
+                                       String.format(
+                                           "Load rate=%.1f tps, sent %d PDUs in %dms, " +
+                                               "throttled so far=%d",
+                                           adaptive.getRate(),
+                                           sent - sentAtLastReport,
+                                           ( now - lastReportNanos ) / 1000000L,
+                                           adaptive.getTotalThrottled() ) );
+                    lastReportNanos = now;
+                    sentAtLastReport = sent;
+                }
+            }
+        }
+        adaptiveRate = null;
+
+        // Pauses after the load are timed from when it was due to end
+        scheduleNanos = end;
+        final long elapsedNanos = System.nanoTime() - scheduler.getStartNanos();
+        eventLog.logEvent( new Date(),
+                           SMPPEvent.EventType.SENT_PDU,
+                           null,
+                           "Load finished, sent " + sent + " PDUs in " +
+                               elapsedNanos / 1000000L + "ms, tps=" +
+                               ( sent * 1000000000.0 / elapsedNanos ) +
+                               ", send lag p99=" +
+                               lag.getPercentile( 99 ) / 1000.0 +
+                               "ms, max=" + lag.getMax() / 1000.0 + "ms" +
+                               ( adaptive != null ?
+                                     ", throttled=" + adaptive.getTotalThrottled() +
+                                         ", final rate=" + adaptive.getRate() + " tps" :
+                                     "" ) );
+        return ok;
+    }
+
+    /**
+     * Wait for a free slot in the window of outstanding requests. If none
+     * becomes free before the window timeout, the unanswered requests are
+     * discarded so the batch can continue.
+     * @param session Session about to send a request
+     */
+    private void awaitWindow( BatchSession session )
+    {
+        try
+        {
+            if( !session.outstanding.awaitSlot( windowTimeoutMillis ) )
+            {
+                final int expired =
+                    session.outstanding.expire( windowTimeoutMillis );
+                stats.abandoned( expired );
+                eventLog.logEvent( new Date(),
+                                   SMPPEvent.EventType.SENT_PDU,
+                                   null,
+                                   "Window full" + describe( session ) +
+                                       " for " + windowTimeoutMillis +
+                                       "ms, discarded " + expired +
+                                       " unanswered requests" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            System.err.println( "Wait for window interrupted" );
+        }
+    }
+
+    /**
+     * A connection to the SMSC, with its own receiver, sequence numbers and
+     * table of outstanding requests. NIO connections have no receiver, as
+     * the NIO engine passes received PDUs straight to the listener.
+     */
+    private class BatchSession
+    {
+        /**
+         * Session number, counting from 1, for log messages
+         */
+        final int id;
+
+        final Connection connection;
+        /**
+         * Receiver thread, or null for a NIO connection
+         */
+        final Receiver receiver;
+
+        final BatchServerPDUEventListener listener;
+
+        /**
+         * Writer that coalesces PDUs into fewer writes, or null to send each
+         * PDU directly on the connection
+         */
+        volatile CoalescingWriter writer = null;
+
+        /**
+         * Requests sent on this session that are awaiting a response
+         */
+        final OutstandingRequests outstanding = new OutstandingRequests();
+
+        /**
+         * Sequence numbers for requests sent on this session
+         */
+        final SequenceAllocator sequenceNumbers = new SequenceAllocator();
+
+        /**
+         * Constructor
+         * @param id         Session number, counting from 1
+         * @param connection Unopened connection to the SMSC
+         */
+        BatchSession( int id, Connection connection )
+        {
+            this.id = id;
+            this.connection = connection;
+            outstanding.setWindow( window );
+            listener = new BatchServerPDUEventListener( this );
+            if( connection instanceof NioConnection )
+            {
+                receiver = null;
+                ((NioConnection)connection).setHandler( listener );
+            }
+            else
+            {
+                receiver = new Receiver( connection );
+                receiver.setServerPDUEventListener( listener );
+            }
+        }
+
+        /**
+         * Set once the connection has been opened, until it is closed
+         */
+        private boolean open = false;
+
+        /**
+         * Count the session as open
+         */
+        void opened()
+        {
+            open = true;
+            stats.sessionOpened();
+        }
+
+        /**
+         * Start receiving PDUs. Called once the connection is open.
+         */
+        void start()
+        {
+            if( receiver != null )
+            {
+                receiver.start();
+            }
+        }
+
+        /**
+         * Send an encoded PDU on this session
+         * @param data Encoded PDU
+         * @throws IOException Error sending the PDU
+         */
+        void send( ByteBuffer data ) throws IOException
+        {
+            if( writer != null )
+            {
+                writer.send( data );
+            }
+            else
+            {
+                connection.send( data );
+            }
+        }
+
+        /**
+         * Send an automatic response. On a NIO connection this is called on
+         * the I/O thread, which mustn't wait for the coalescing writer, as
+         * the writer may be waiting for the I/O thread. So the response goes
+         * straight to the connection, which queues it however much is
+         * waiting to be written.
+         * @param data Encoded response
+         * @throws IOException Error sending the response
+         */
+        void sendResponse( ByteBuffer data ) throws IOException
+        {
+            if( connection instanceof NioConnection )
+            {
+                connection.send( data );
+            }
+            else
+            {
+                send( data );
+            }
+        }
+
+        /**
+         * Write out any coalesced PDUs, close the connection and stop the
+         * receiver. Closing the connection first saves waiting for the
+         * receiver's polling timeout.
+         * @throws IOException Error closing connection
+         */
+        void close() throws IOException
+        {
+            if( writer != null )
+            {
+                final String summary = writer.close();
+                writer = null;
+                eventLog.logEvent( new Date(),
+                                   SMPPEvent.EventType.SENT_PDU,
+                                   null,
+                                   "Writer" + describe( this ) + " " + summary );
+            }
+            try
+            {
+                connection.close();
+            }
+            finally
+            {
+                if( receiver != null )
+                {
+                    receiver.stop();
+                }
+                if( open )
+                {
+                    open = false;
+                    stats.sessionClosed();
+                }
+            }
+        }
+    }
+
+    /**
+     * This event listener logs all incoming PDUs, matches responses to
+     * outstanding requests and sends automatic responses to requests.
+     * Each session's PDUs are received on a single thread, and everything
+     * the listener shares with other threads is thread safe, so PDUs are
+     * handled without locking the listener.
+     */
+    private class BatchServerPDUEventListener
+            implements ServerPDUEventListener, NioConnection.PDUHandler
+    {
+        /**
+         * Generates responses for the request types that are automatically
+         * answered
+         */
+        private final AutoResponder autoResponder = new AutoResponder();
+
+        /**
+         * Session this listener receives PDUs for
+         */
+        private BatchSession session;
+
+
+        /**
+         * Constructor
+         * @param session Session this listener receives PDUs for
+         */
+        BatchServerPDUEventListener( BatchSession session )
+        {
+            this.session = session;
+            for( int pduType: autoResponses )
+            {
+                autoResponder.setEnabled( pduType, true );
+            }
+        }
+
+
+        public void handleEvent( ServerPDUEvent event )
+        {
+            handlePDU( event.getPDU() );
+        }
+
+        public void handlePDU( NioConnection connection, PDU pdu )
+        {
+            handlePDU( pdu );
+        }
+
+        /**
+         * Log a received PDU, match it to its request if it is a response
+         * and send any automatic response
+         * @param pdu PDU received
+         */
+        void handlePDU( PDU pdu )
+        {
+            final long receivedNanos = System.nanoTime();
+            stats.received( pdu.getCommandId(), pdu.getCommandStatus(),
+                            pdu.getCommandLength() );
+            eventLog.logEvent(
+                new Date(),
+                SMPPEvent.EventType.RECEIVED_PDU,
+                pdu,
+                "Received PDU" + describe( session ) +
+                    ", seq=" + pdu.getSequenceNumber() +
+                    ", type=" +
+                    Batch.CommandID.find( pdu.getCommandId() ) +
+                    ", status=" +
+                    Batch.CommandStatus.find( pdu.getCommandStatus() ) );
+            if( pdu.isResponse() )
+            {
+                OutstandingRequests.Request request =
+                    session.outstanding.remove( pdu.getSequenceNumber() );
+                if( request != null )
+                {
+                    latencies.record( request.getCommandId(),
+                                      pdu.getCommandStatus(),
+                                      receivedNanos - request.getSentNanos() );
+                    if( request.isReceiptRequested() &&
+                        pdu.getCommandStatus() == Data.ESME_ROK )
+                    {
+                        receiptExpected( pdu, request );
+                    }
+                }
+                final AdaptiveRate adaptive = adaptiveRate;
+                if( adaptive != null )
+                {
+                    adaptive.response( pdu.getCommandStatus() );
+                }
+            }
+            else if( ReceiptTracker.isReceipt( pdu ) )
+            {
+                receipts.receipt( pdu, receivedNanos );
+            }
+            received.received( pdu.getCommandId() );
+
+            final ByteBuffer response =
+                autoResponder.respond( pdu.getCommandId(),
+                                       pdu.getSequenceNumber() );
+            if( response != null )
+            {
+                final int responseId =
+                    AutoResponder.responseId( pdu.getCommandId() );
+                try
+                {
+                    session.sendResponse( response );
+                    stats.sent( responseId, response.length() );
+                }
+                catch( Exception e )
+                {
+                    System.err.println(
+                        "Exception sending " + Batch.CommandID.find( responseId ) );
+                    e.printStackTrace();
+                }
+                eventLog.logEvent(
+                    new Date(),
+                    SENT_PDU,
+                    autoResponder.responsePDU( pdu.getCommandId(),
+                                               pdu.getSequenceNumber() ),
+                    "Sent PDU" + describe( session ) +
+                        ", seq= " + pdu.getSequenceNumber() +
+                        ", type=" + Batch.CommandID.find( responseId ) +
+                        ", status=" + Batch.CommandStatus.ESME_ROK );
+            }
+        }
+
+        /**
+         * Index the message_id of an accepted message that asked for a
+         * delivery receipt
+         * @param response Response to the message
+         * @param request  The message
+         */
+        private void receiptExpected( PDU response,
+                                      OutstandingRequests.Request request )
+        {
+            String messageId = null;
+            if( response instanceof SubmitSMResp )
+            {
+                messageId = ((SubmitSMResp)response).getMessageId();
+            }
+            else if( response instanceof DataSMResp )
+            {
+                messageId = ((DataSMResp)response).getMessageId();
+            }
+            if( messageId != null && messageId.length() > 0 )
+            {
+                receipts.submitted( messageId, request.getSentNanos() );
+            }
+        }
+
+        /**
+         * Enable or disable automatic responses to some request PDUs
+         * @param pduType PDU type to enable/disable
+         * @param enable  Enable or disable
+         */
+        void setAutoResponses( int pduType, boolean enable )
+        {
+            autoResponder.setEnabled( pduType, enable );
         }
     }
 }
@@ -0,0 +1,371 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.smpp.Connection;
+import org.smpp.util.ByteBuffer;
+
+
+/**
+ * Writes PDUs to a connection from a background thread, so that PDUs sent
+ * close together go out in a single write rather than one write each.
+ * Senders copy each PDU into a shared buffer and return. The writer thread
+ * sends everything in the buffer in one Connection.send() call once the
+ * buffer holds maxBytes, or once the oldest PDU in it has waited
+ * maxDelayMicros. With a delay of 0 the writer sends whatever has built up
+ * while it was busy with the previous write, so PDUs are only held back
+ * while the connection is already busy.
+ * <p>
+ * There are two buffers of the same size. The writer swaps them, so
+ * senders fill one while the other is written, and nothing is allocated
+ * per write. A PDU too big for a buffer is written straight from the
+ * sender's own data, in its turn, while the sender waits.
+ * <p>
+ * Senders wait if the buffer is full. If a write fails, the error is
+ * reported to the next sender. Senders wait on a Condition, so a sender on
+ * a virtual thread doesn't hold on to its carrier thread.
+ */
+class CoalescingWriter implements Runnable
+{
+    /**
+     * Default number of bytes that triggers a write
+     */
+    static final int DEFAULT_MAX_BYTES = 16384;
+
+    private Connection connection;
+    private int maxBytes;
+    private long maxDelayNanos;
+
+    /**
+     * PDUs waiting to be written, and the buffer the writer thread is
+     * writing from, which senders don't touch
+     */
+    private Pending pending;
+    private Pending writing;
+
+    /**
+     * A PDU too big for the buffers, waiting to be written ahead of
+     * anything in pending
+     */
+    private ByteBuffer large = null;
+
+    /**
+     * Time the oldest PDU in the buffer was added, from System.nanoTime()
+     */
+    private long oldestNanos;
+
+    /**
+     * Error from the last write, reported to the next sender
+     */
+    private IOException failure = null;
+
+    private boolean closed = false;
+    private Thread thread;
+
+    /**
+     * Guards the buffer and the state above. changed is signalled whenever
+     * PDUs are added, the buffer is emptied, or the writer closes or fails.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Number of writes and PDUs, for the summary logged on close
+     */
+    private long writes = 0;
+    private long pdus = 0;
+
+
+    /**
+     * Constructor. Starts the writer thread.
+     * @param connection     Open connection to write to
+     * @param name           Name for the writer thread
+     * @param maxBytes       Number of bytes that triggers a write
+     * @param maxDelayMicros Longest time a PDU waits for others to join it
+     */
+    CoalescingWriter( Connection connection, String name,
+                      int maxBytes, long maxDelayMicros )
+    {
+        if( maxBytes < 1 )
+        {
+            throw new IllegalArgumentException( "Writer needs a positive byte limit" );
+        }
+        if( maxDelayMicros < 0 )
+        {
+            throw new IllegalArgumentException( "Writer given a negative delay" );
+        }
+        this.connection = connection;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = maxDelayMicros * 1000L;
+        pending = new Pending( 2 * maxBytes );
+        writing = new Pending( 2 * maxBytes );
+
+        thread = new Thread( this, name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Queue a PDU to be written. The data is copied, so the caller can reuse
+     * it as soon as this returns.
+     * @param data Encoded PDU
+     * @throws IOException An earlier write failed or the writer is closed
+     */
+    void send( ByteBuffer data ) throws IOException
+    {
+        final int length = data.length();
+        lock.lock();
+        try
+        {
+            while( failure == null && !closed &&
+                   ( large != null || pending.length > 0 &&
+                     pending.length + length > pending.bytes.length ) )
+            {
+                try
+                {
+                    changed.await();
+                }
+                catch( InterruptedException e )
+                {
+                    throw new IOException( "Interrupted waiting to write PDU" );
+                }
+            }
+            if( failure != null )
+            {
+                throw new IOException( "Earlier write failed: " + failure.getMessage() );
+            }
+            if( closed )
+            {
+                throw new IOException( "Writer closed" );
+            }
+
+            pdus++;
+            if( length > pending.bytes.length )
+            {
+                // Only reached with an empty buffer, so nothing is waiting
+                // to go ahead of it
+                large = data;
+                changed.signalAll();
+                while( large == data && failure == null )
+                {
+                    try
+                    {
+                        changed.await();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        throw new IOException( "Interrupted waiting to write PDU" );
+                    }
+                }
+                if( failure != null )
+                {
+                    throw new IOException( "Write failed: " + failure.getMessage() );
+                }
+                return;
+            }
+            if( pending.length == 0 )
+            {
+                oldestNanos = System.nanoTime();
+            }
+            System.arraycopy( data.getBuffer(), 0, pending.bytes, pending.length, length );
+            pending.length += length;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write out anything still buffered and stop the writer thread
+     * @return Summary of the writes made, for logging
+     */
+    String close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch( InterruptedException e )
+        {
+            System.err.println( "Interrupted waiting for writer to finish" );
+        }
+        lock.lock();
+        try
+        {
+            return "wrote " + pdus + " PDUs in " + writes + " writes";
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void run()
+    {
+        while( true )
+        {
+            final ByteBuffer data;
+            final boolean isLarge;
+            lock.lock();
+            try
+            {
+                try
+                {
+                    while( !isReady() )
+                    {
+                        if( pending.length == 0 )
+                        {
+                            changed.await();
+                        }
+                        else
+                        {
+                            final long remaining =
+                                oldestNanos + maxDelayNanos - System.nanoTime();
+                            if( remaining <= 0 )
+                            {
+                                break;
+                            }
+                            changed.awaitNanos( remaining );
+                        }
+                    }
+                }
+                catch( InterruptedException e )
+                {
+                    failure = new IOException( "Writer interrupted" );
+                }
+                if( failure != null || large == null && pending.length == 0 )
+                {
+                    changed.signalAll();
+                    return;
+                }
+
+                isLarge = large != null;
+                if( isLarge )
+                {
+                    data = large;
+                }
+                else
+                {
+                    // The last write from writing has finished, so it can
+                    // take new PDUs
+                    final Pending full = pending;
+                    pending = writing;
+                    pending.length = 0;
+                    writing = full;
+                    data = full;
+                    changed.signalAll();
+                }
+                writes++;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                connection.send( data );
+            }
+            catch( IOException e )
+            {
+                lock.lock();
+                try
+                {
+                    failure = e;
+                    changed.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                System.err.println( "Exception writing PDUs" );
+                e.printStackTrace();
+                return;
+            }
+
+            if( isLarge )
+            {
+                lock.lock();
+                try
+                {
+                    large = null;
+                    changed.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with the lock held
+     * @return true if the buffer should be written now, or the writer has
+     *         nothing more to do
+     */
+    private boolean isReady()
+    {
+        if( large != null )
+        {
+            return true;
+        }
+        if( pending.length == 0 )
+        {
+            return closed || failure != null;
+        }
+        return closed || pending.length >= maxBytes ||
+               System.nanoTime() - oldestNanos >= maxDelayNanos;
+    }
+
+    /**
+     * A buffer of PDUs that can be passed to Connection.send() as it is.
+     * Connections only use getBuffer() and length(), and the ByteBuffer
+     * versions of those would need an array of the exact length.
+     */
+    private static class Pending extends ByteBuffer
+    {
+        /**
+         * Encoded PDUs, and the number of bytes of them in use
+         */
+        final byte[] bytes;
+        int length = 0;
+
+        /**
+         * @param size Size of the buffer in bytes
+         */
+        Pending( int size )
+        {
+            bytes = new byte[size];
+        }
+
+        public byte[] getBuffer()
+        {
+            return bytes;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+    }
+}
@@ -12,6 +12,32 @@ public class ConnectionEvent implements Batch.Event
     private int port;
     private String address;
 
+    /**
+     * Number of connections to open to the SMSC
+     */
+    private int sessions = 1;
+
+    /**
+     * Number of bytes that triggers a write when PDUs are coalesced, or 0
+     * to send each PDU as it is sent
+     */
+    private int coalesceBytes = 0;
+
+    /**
+     * Longest time a PDU waits for others to be written with it
+     */
+    private long coalesceMicros = 0;
+
+    /**
+     * Run the connections on the NIO engine instead of a Receiver thread each
+     */
+    private boolean nio = false;
+
+    /**
+     * Number of NIO engine I/O threads, or 0 for the default
+     */
+    private int ioThreads = 0;
+
     public void setAddress( String address )
     {
         this.address = address;
@@ -23,6 +49,59 @@ public class ConnectionEvent implements Batch.Event
         this.port = port;
     }
 
+    public void setSessions( int sessions )
+    {
+        if( sessions < 1 )
+        {
+            throw new IllegalArgumentException( "Connect needs at least 1 session" );
+        }
+        this.sessions = sessions;
+    }
+
+    public void setCoalesceBytes( int coalesceBytes )
+    {
+        if( coalesceBytes < 0 )
+        {
+            throw new IllegalArgumentException( "Connect given a negative coalesceBytes" );
+        }
+        this.coalesceBytes = coalesceBytes;
+    }
+
+    public void setCoalesceMicros( long coalesceMicros )
+    {
+        if( coalesceMicros < 0 )
+        {
+            throw new IllegalArgumentException( "Connect given a negative coalesceMicros" );
+        }
+        this.coalesceMicros = coalesceMicros;
+    }
+
+    public void setEngine( String engine )
+    {
+        if( engine.equalsIgnoreCase( "nio" ) )
+        {
+            nio = true;
+        }
+        else if( engine.equalsIgnoreCase( "tcpip" ) )
+        {
+            nio = false;
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                "Did not recognise Connect engine \"" + engine + "\"" );
+        }
+    }
+
+    public void setIoThreads( int ioThreads )
+    {
+        if( ioThreads < 1 )
+        {
+            throw new IllegalArgumentException( "Connect needs at least 1 ioThread" );
+        }
+        this.ioThreads = ioThreads;
+    }
+
     public String getAddress()
     {
         return address;
@@ -32,4 +111,29 @@ public class ConnectionEvent implements Batch.Event
     {
         return port;
     }
+
+    public int getSessions()
+    {
+        return sessions;
+    }
+
+    public int getCoalesceBytes()
+    {
+        return coalesceBytes;
+    }
+
+    public long getCoalesceMicros()
+    {
+        return coalesceMicros;
+    }
+
+    public boolean isNio()
+    {
+        return nio;
+    }
+
+    public int getIoThreads()
+    {
+        return ioThreads;
+    }
 }
@@ -0,0 +1,200 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import org.smpp.pdu.PDU;
+import org.smpp.pdu.ValueNotSetException;
+import org.smpp.util.ByteBuffer;
+
+
+/**
+ * A PDU together with its encoded form. The PDU is encoded once, when this
+ * is created, and the sequence number is then patched into the encoded
+ * bytes in place, so the same PDU can be sent many times without being
+ * encoded again.
+ * <p>
+ * The encoded bytes are shared, so an EncodedPDU must only be sent from one
+ * thread at a time. Connection.send() has written the bytes out, and
+ * CoalescingWriter.send() has copied them, by the time they return, so the
+ * sequence number can be changed for the next send as soon as they have
+ * returned.
+ * <p>
+ * A message split into segments is a chain of EncodedPDUs, one per
+ * segment, which are sent one after the other. If the segments' reference
+ * number is allocated automatically it is also patched in place, so that
+ * each send of the chain has a new reference.
+ */
+class EncodedPDU
+{
+    /**
+     * Offset of the sequence_number field in the PDU header
+     */
+    private static final int SEQUENCE_NUMBER_OFFSET = 12;
+
+    private PDU pdu;
+
+    /**
+     * Sequence number given in the batch, or 0 if one should be allocated
+     * when the PDU is sent
+     */
+    private int requestedSequenceNumber;
+
+    /**
+     * Encoded PDU, or null if the PDU could not be encoded
+     */
+    private ByteBuffer data;
+
+    /**
+     * Next segment of the message, or null
+     */
+    private EncodedPDU next = null;
+
+    /**
+     * Offset of the concatenation reference number in data, or -1 if the
+     * reference is not allocated when the PDU is sent
+     */
+    private int referenceOffset = -1;
+
+    /**
+     * The reference number is 16 bits rather than 8
+     */
+    private boolean reference16 = false;
+
+
+    /**
+     * Constructor
+     * @param pdu PDU to encode
+     */
+    EncodedPDU( PDU pdu )
+    {
+        this.pdu = pdu;
+        this.requestedSequenceNumber = pdu.getSequenceNumber();
+        try
+        {
+            data = pdu.getData();
+        }
+        catch( ValueNotSetException e )
+        {
+            // Reported when the PDU is sent
+            data = null;
+        }
+    }
+
+    /**
+     * @return The PDU, for logging. Its sequence number matches the
+     *         encoded bytes.
+     */
+    PDU getPdu()
+    {
+        return pdu;
+    }
+
+    /**
+     * @return Sequence number of the PDU
+     */
+    int getSequenceNumber()
+    {
+        return pdu.getSequenceNumber();
+    }
+
+    /**
+     * @return Sequence number given in the batch, or 0 if one should be
+     *         allocated when the PDU is sent
+     */
+    int getRequestedSequenceNumber()
+    {
+        return requestedSequenceNumber;
+    }
+
+    /**
+     * Set the sequence number of the PDU and patch it into the encoded bytes
+     * @param sequenceNumber New sequence number
+     */
+    void setSequenceNumber( int sequenceNumber )
+    {
+        pdu.setSequenceNumber( sequenceNumber );
+        if( data != null )
+        {
+            final byte[] bytes = data.getBuffer();
+            bytes[SEQUENCE_NUMBER_OFFSET] = (byte)( sequenceNumber >>> 24 );
+            bytes[SEQUENCE_NUMBER_OFFSET + 1] = (byte)( sequenceNumber >>> 16 );
+            bytes[SEQUENCE_NUMBER_OFFSET + 2] = (byte)( sequenceNumber >>> 8 );
+            bytes[SEQUENCE_NUMBER_OFFSET + 3] = (byte)sequenceNumber;
+        }
+    }
+
+    /**
+     * @return The encoded PDU, with the current sequence number
+     * @throws ValueNotSetException The PDU could not be encoded
+     */
+    ByteBuffer getData() throws ValueNotSetException
+    {
+        return data != null ? data : pdu.getData();
+    }
+
+    /**
+     * @return Next segment of the message, or null if this is the last one
+     */
+    EncodedPDU getNext()
+    {
+        return next;
+    }
+
+    /**
+     * @param next Next segment of the message
+     */
+    void setNext( EncodedPDU next )
+    {
+        this.next = next;
+    }
+
+    /**
+     * Mark the concatenation reference number for allocation at send time
+     * @param offset      Offset of the reference in the encoded PDU
+     * @param reference16 The reference is 16 bits rather than 8
+     */
+    void setReferenceField( int offset, boolean reference16 )
+    {
+        if( data != null )
+        {
+            this.referenceOffset = offset;
+            this.reference16 = reference16;
+        }
+    }
+
+    /**
+     * @return true if the concatenation reference number should be
+     *         allocated when the PDU is sent
+     */
+    boolean isAutoReference()
+    {
+        return referenceOffset >= 0;
+    }
+
+    /**
+     * Patch the concatenation reference number into the encoded bytes. The
+     * PDU itself, used for logging, keeps the reference it was built with.
+     * @param reference Reference number, truncated to 8 or 16 bits
+     */
+    void setReference( int reference )
+    {
+        if( referenceOffset < 0 )
+        {
+            return;
+        }
+        final byte[] bytes = data.getBuffer();
+        if( reference16 )
+        {
+            bytes[referenceOffset] = (byte)( reference >>> 8 );
+            bytes[referenceOffset + 1] = (byte)reference;
+        }
+        else
+        {
+            bytes[referenceOffset] = (byte)reference;
+        }
+    }
+}
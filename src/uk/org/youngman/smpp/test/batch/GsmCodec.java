@@ -0,0 +1,300 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.Arrays;
+
+
+/**
+ * The GSM 03.38 default alphabet and its extension table. Characters in
+ * the extension table take 2 septets, an escape followed by the extension
+ * code. SMPP carries short_message text with data_coding 0 one septet
+ * per octet (unpacked). pack() and unpack() convert to and from the 8
+ * septets in 7 octets form used over the air interface, including the
+ * fill bits that align the septets after a user data header.
+ * <p>
+ * Everything works on buffers supplied by the caller, so encoding and
+ * decoding create no objects.
+ */
+class GsmCodec
+{
+    /**
+     * Escape to the extension table
+     */
+    static final byte ESCAPE = 0x1B;
+
+    /**
+     * Septet written for characters that aren't in the alphabet ('?')
+     */
+    private static final byte REPLACEMENT = 0x3F;
+
+    /**
+     * The default alphabet, indexed by septet. The escape is shown as a
+     * space.
+     */
+    private static final String BASIC =
+        "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5" +
+        "\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E \u00C6\u00E6\u00DF\u00C9" +
+        " !\"#\u00A4%&'()*+,-./" +
+        "0123456789:;<=>?" +
+        "\u00A1ABCDEFGHIJKLMNO" +
+        "PQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7" +
+        "\u00BFabcdefghijklmno" +
+        "pqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+
+    /**
+     * Characters of the extension table, and their codes after the escape
+     */
+    private static final String EXTENSION = "\f^{}\\[~]|\u20AC";
+    private static final byte[] EXTENSION_CODES = {
+        0x0A, 0x14, 0x28, 0x29, 0x2F, 0x3C, 0x3D, 0x3E, 0x40, 0x65
+    };
+
+    /**
+     * Character for each septet of the default alphabet
+     */
+    private static final char[] DECODE = BASIC.toCharArray();
+
+    /**
+     * Character for each extension code, or 0 if the code isn't used
+     */
+    private static final char[] DECODE_EXTENSION = new char[128];
+
+    /**
+     * Flag marking an extension code in ENCODE
+     */
+    private static final int EXTENDED = 0x100;
+
+    /**
+     * Characters below this are looked up in ENCODE. Only the euro sign is
+     * above it.
+     */
+    private static final int ENCODE_LIMIT = 0x400;
+
+    /**
+     * Septet for each character below ENCODE_LIMIT, EXTENDED plus the
+     * extension code, or -1 if the character isn't in the alphabet
+     */
+    private static final short[] ENCODE = new short[ENCODE_LIMIT];
+
+    /**
+     * Extension code of the euro sign
+     */
+    private static final int EURO = 0x65;
+
+    static
+    {
+        Arrays.fill( ENCODE, (short)-1 );
+        for( int septet = 0; septet < BASIC.length(); septet++ )
+        {
+            if( septet != ESCAPE )
+            {
+                ENCODE[BASIC.charAt( septet )] = (short)septet;
+            }
+        }
+        for( int i = 0; i < EXTENSION.length(); i++ )
+        {
+            final char c = EXTENSION.charAt( i );
+            if( c < ENCODE_LIMIT )
+            {
+                ENCODE[c] = (short)( EXTENDED | EXTENSION_CODES[i] );
+            }
+            DECODE_EXTENSION[EXTENSION_CODES[i]] = c;
+        }
+    }
+
+
+    /**
+     * Not instantiated
+     */
+    private GsmCodec()
+    {
+    }
+
+    /**
+     * @param c Character
+     * @return Septet, EXTENDED plus the extension code, or -1 if the
+     *         character isn't in the alphabet
+     */
+    private static int lookup( char c )
+    {
+        if( c < ENCODE_LIMIT )
+        {
+            return ENCODE[c];
+        }
+        return c == '\u20AC' ? EXTENDED | EURO : -1;
+    }
+
+    /**
+     * @param text Text to measure
+     * @return Number of septets needed for the text, or -1 if it contains
+     *         characters that aren't in the alphabet
+     */
+    static int septets( CharSequence text )
+    {
+        int septets = 0;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            final int code = lookup( text.charAt( i ) );
+            if( code < 0 )
+            {
+                return -1;
+            }
+            septets += ( code & EXTENDED ) != 0 ? 2 : 1;
+        }
+        return septets;
+    }
+
+    /**
+     * Encode text as unpacked septets, one per octet. Characters that
+     * aren't in the alphabet are written as '?'.
+     * @param text   Text to encode
+     * @param out    Buffer to write to, with room for 2 octets per character
+     * @param offset Offset in out to start writing at
+     * @return Number of octets written
+     */
+    static int encodeUnpacked( CharSequence text, byte[] out, int offset )
+    {
+        int position = offset;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            final int code = lookup( text.charAt( i ) );
+            if( code < 0 )
+            {
+                out[position++] = REPLACEMENT;
+            }
+            else if( ( code & EXTENDED ) != 0 )
+            {
+                out[position++] = ESCAPE;
+                out[position++] = (byte)( code & 0x7F );
+            }
+            else
+            {
+                out[position++] = (byte)code;
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Decode unpacked septets, one per octet
+     * @param in     Septets to decode
+     * @param offset Offset of the first septet
+     * @param length Number of septets
+     * @param out    Where to append the text
+     */
+    static void decodeUnpacked( byte[] in, int offset, int length, StringBuilder out )
+    {
+        final int end = offset + length;
+        for( int i = offset; i < end; i++ )
+        {
+            final int septet = in[i] & 0x7F;
+            if( septet == ESCAPE && i + 1 < end )
+            {
+                final int code = in[++i] & 0x7F;
+                final char c = DECODE_EXTENSION[code];
+                // 03.38 says an unknown extension code is shown as the
+                // default alphabet character with the same code
+                out.append( c != 0 ? c : DECODE[code] );
+            }
+            else
+            {
+                // A trailing escape is shown as a space
+                out.append( DECODE[septet] );
+            }
+        }
+    }
+
+    /**
+     * @param headerLength Length in octets of a user data header,
+     *                     including its length octet, or 0 if there is none
+     * @return Number of fill bits needed after the header so that the
+     *         first packed septet starts on a septet boundary
+     */
+    static int fillBits( int headerLength )
+    {
+        return ( 7 - headerLength * 8 % 7 ) % 7;
+    }
+
+    /**
+     * @param septets  Number of septets
+     * @param fillBits Fill bits before the first septet
+     * @return Number of octets they take when packed
+     */
+    static int packedLength( int septets, int fillBits )
+    {
+        return ( fillBits + septets * 7 + 7 ) / 8;
+    }
+
+    /**
+     * Pack septets, 8 into 7 octets, starting with the least significant
+     * bits of the first octet after any fill bits. Fill bits are 0.
+     * @param in        Unpacked septets, one per octet
+     * @param offset    Offset of the first septet
+     * @param count     Number of septets
+     * @param out       Buffer to write to
+     * @param outOffset Offset in out to start writing at
+     * @param fillBits  Fill bits before the first septet, from fillBits()
+     * @return Number of octets written
+     */
+    static int pack( byte[] in, int offset, int count,
+                     byte[] out, int outOffset, int fillBits )
+    {
+        int position = outOffset;
+        int pending = 0;
+        int bits = fillBits;
+        for( int i = 0; i < count; i++ )
+        {
+            pending |= ( in[offset + i] & 0x7F ) << bits;
+            bits += 7;
+            if( bits >= 8 )
+            {
+                out[position++] = (byte)pending;
+                pending >>>= 8;
+                bits -= 8;
+            }
+        }
+        if( bits > 0 )
+        {
+            out[position++] = (byte)pending;
+        }
+        return position - outOffset;
+    }
+
+    /**
+     * Unpack septets packed by pack()
+     * @param in        Packed septets
+     * @param offset    Offset of the first octet, including any fill bits
+     * @param count     Number of septets to unpack
+     * @param out       Buffer to write to, one septet per octet
+     * @param outOffset Offset in out to start writing at
+     * @param fillBits  Fill bits before the first septet, from fillBits()
+     */
+    static void unpack( byte[] in, int offset, int count,
+                        byte[] out, int outOffset, int fillBits )
+    {
+        int position = offset;
+        int pending = 0;
+        int bits = 0;
+        if( fillBits > 0 )
+        {
+            pending = ( in[position++] & 0xFF ) >>> fillBits;
+            bits = 8 - fillBits;
+        }
+        for( int i = 0; i < count; i++ )
+        {
+            if( bits < 7 )
+            {
+                pending |= ( in[position++] & 0xFF ) << bits;
+                bits += 8;
+            }
+            out[outOffset + i] = (byte)( pending & 0x7F );
+            pending >>>= 7;
+            bits -= 7;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.lang.reflect.Method;
+
+
+/**
+ * Creates threads for batch lanes. On a JDK with virtual threads (Java 21
+ * or later) lanes run on virtual threads. The runner's waits use
+ * java.util.concurrent locks rather than wait(), so a lane waiting for the
+ * window or a response gives up its carrier thread, and thousands of lanes
+ * using the NIO engine can share a few carriers. The code is built for older JDKs, so virtual threads are
+ * found by reflection, and platform threads are used if they are missing.
+ */
+class LaneThreads
+{
+    /**
+     * Thread.Builder.unstarted(Runnable), or null without virtual threads
+     */
+    private static final Method UNSTARTED;
+
+    /**
+     * Thread.ofVirtual(), or null without virtual threads
+     */
+    private static final Method OF_VIRTUAL;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try
+        {
+            ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            unstarted = Class.forName( "java.lang.Thread$Builder" ).
+                getMethod( "unstarted", Runnable.class );
+        }
+        catch( Exception e )
+        {
+            // Not available before Java 21
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+
+    /**
+     * Not instantiated
+     */
+    private LaneThreads()
+    {
+    }
+
+    /**
+     * @return true if this JDK has virtual threads
+     */
+    static boolean isVirtualAvailable()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create an unstarted thread
+     * @param task    Task for the thread to run
+     * @param name    Thread name
+     * @param virtual Use a virtual thread if available
+     * @return New thread
+     */
+    static Thread newThread( Runnable task, String name, boolean virtual )
+    {
+        if( virtual && OF_VIRTUAL != null )
+        {
+            try
+            {
+                Thread thread = (Thread)UNSTARTED.invoke(
+                    OF_VIRTUAL.invoke( null ), task );
+                thread.setName( name );
+                return thread;
+            }
+            catch( Exception e )
+            {
+                System.err.println( "Could not create virtual thread, " +
+                                    "using a platform thread" );
+                e.printStackTrace();
+            }
+        }
+        return new Thread( task, name );
+    }
+}
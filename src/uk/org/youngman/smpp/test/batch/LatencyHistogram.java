@@ -0,0 +1,216 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of latencies in microseconds, in the style of HdrHistogram.
+ * Values below 128 have their own buckets. Above that each power of 2 is
+ * split into 64 buckets, so recorded values are accurate to within 1/64
+ * (about 1.6%) however large they are. Recording is lock free, so several
+ * receiver threads can share a histogram.
+ */
+class LatencyHistogram
+{
+    /**
+     * Number of bits of precision kept for each value
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * Largest value recorded accurately, about 12.7 days in microseconds.
+     * Larger values are counted in the top bucket.
+     */
+    private static final long MAX_VALUE = ( 1L << 40 ) - 1;
+
+    private static final int BUCKET_COUNT = indexFor( MAX_VALUE ) + 1;
+
+    private AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+    private AtomicLong total = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Record a latency
+     * @param micros Latency in microseconds
+     */
+    void record( long micros )
+    {
+        recordCount( micros, 1 );
+    }
+
+    /**
+     * Record a latency several times
+     * @param micros Latency in microseconds
+     * @param count  Number of times to record it
+     */
+    void recordCount( long micros, long count )
+    {
+        if( micros < 0 )
+        {
+            micros = 0;
+        }
+        counts.addAndGet( indexFor( Math.min( micros, MAX_VALUE ) ), count );
+        total.addAndGet( count );
+        sum.addAndGet( micros * count );
+        long current = max.get();
+        while( micros > current && !max.compareAndSet( current, micros ) )
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return Number of latencies recorded
+     */
+    long getCount()
+    {
+        return total.get();
+    }
+
+    /**
+     * @return Largest latency recorded, in microseconds
+     */
+    long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return Total of the latencies recorded, in microseconds
+     */
+    long getSum()
+    {
+        return sum.get();
+    }
+
+    /**
+     * Count the latencies at or below each of a set of bounds, for
+     * exporting to systems with coarser buckets. A bucket is counted
+     * against a bound if all the values it holds are at or below it.
+     * @param bounds Upper bounds in microseconds, in ascending order
+     * @return Number of latencies at or below each bound, followed by the
+     *         number of latencies in all the buckets
+     */
+    long[] getCumulativeCounts( long[] bounds )
+    {
+        long[] cumulative = new long[bounds.length + 1];
+        int bound = 0;
+        long count = 0;
+        for( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            while( bound < bounds.length && highestValueFor( i ) > bounds[bound] )
+            {
+                cumulative[bound++] = count;
+            }
+            count += counts.get( i );
+        }
+        while( bound < bounds.length )
+        {
+            cumulative[bound++] = count;
+        }
+        cumulative[bounds.length] = count;
+        return cumulative;
+    }
+
+    /**
+     * @return Mean latency in microseconds, or 0 if none recorded
+     */
+    double getMean()
+    {
+        final long count = total.get();
+        return count == 0 ? 0 : (double)sum.get() / count;
+    }
+
+    /**
+     * Find the latency below which a given percentage of recorded values
+     * fall. The result is the top of the bucket containing the percentile,
+     * so it never understates the latency.
+     * @param percentile Percentage, e.g. 99.9
+     * @return Latency in microseconds, or 0 if none recorded
+     */
+    long getPercentile( double percentile )
+    {
+        final long count = total.get();
+        if( count == 0 )
+        {
+            return 0;
+        }
+        long target = (long)Math.ceil( count * percentile / 100.0 );
+        if( target < 1 )
+        {
+            target = 1;
+        }
+        long cumulative = 0;
+        for( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            cumulative += counts.get( i );
+            if( cumulative >= target )
+            {
+                return Math.min( highestValueFor( i ), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return Number of buckets in the histogram
+     */
+    static int getBucketCount()
+    {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * @param index Bucket index
+     * @return Number of values recorded in the bucket
+     */
+    long getBucketCount( int index )
+    {
+        return counts.get( index );
+    }
+
+    /**
+     * Find the bucket for a value
+     * @param value Value in microseconds, from 0 to MAX_VALUE
+     * @return Bucket index
+     */
+    static int indexFor( long value )
+    {
+        if( value < SUB_BUCKET_COUNT )
+        {
+            return (int)value;
+        }
+        final int shift =
+            63 - Long.numberOfLeadingZeros( value ) - ( SUB_BUCKET_BITS - 1 );
+        return SUB_BUCKET_COUNT + ( shift - 1 ) * SUB_BUCKET_HALF +
+               (int)( ( value >>> shift ) - SUB_BUCKET_HALF );
+    }
+
+    /**
+     * Find the largest value counted in a bucket
+     * @param index Bucket index
+     * @return Largest value in microseconds
+     */
+    static long highestValueFor( int index )
+    {
+        if( index < SUB_BUCKET_COUNT )
+        {
+            return index;
+        }
+        final int shift = ( index - SUB_BUCKET_COUNT ) / SUB_BUCKET_HALF + 1;
+        final long subBucket =
+            ( index - SUB_BUCKET_COUNT ) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ( ( subBucket + 1 ) << shift ) - 1;
+    }
+}
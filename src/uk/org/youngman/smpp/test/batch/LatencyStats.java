@@ -0,0 +1,177 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.org.youngman.smpp.test.SMPPEvent;
+
+
+/**
+ * Response latencies for a batch run, kept per request CommandId and per
+ * response CommandStatus. Histograms are created when the first response
+ * of a type or status arrives.
+ */
+class LatencyStats
+{
+    /**
+     * Percentiles shown in the report
+     */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private ConcurrentMap<Integer, LatencyHistogram> byCommandId =
+        new ConcurrentHashMap<Integer, LatencyHistogram>();
+    private ConcurrentMap<Integer, LatencyHistogram> byCommandStatus =
+        new ConcurrentHashMap<Integer, LatencyHistogram>();
+
+
+    /**
+     * Record the latency of a response
+     * @param commandId     CommandId of the request
+     * @param commandStatus CommandStatus of the response
+     * @param nanos         Time from request to response in nanoseconds
+     */
+    void record( int commandId, int commandStatus, long nanos )
+    {
+        final long micros = nanos / 1000;
+        histogram( byCommandId, commandId ).record( micros );
+        histogram( byCommandStatus, commandStatus ).record( micros );
+    }
+
+    /**
+     * @param commandId CommandId of a request type
+     * @return Latencies of responses to that type of request, or null if
+     *         there have been none
+     */
+    LatencyHistogram getByCommandId( int commandId )
+    {
+        return byCommandId.get( commandId );
+    }
+
+    /**
+     * @return CommandIds of the request types that have had responses, in
+     *         numerical order
+     */
+    List<Integer> getCommandIds()
+    {
+        return sortedKeys( byCommandId );
+    }
+
+    /**
+     * Find or create a histogram
+     * @param histograms Histograms to search
+     * @param key        CommandId or CommandStatus
+     * @return Histogram for the key
+     */
+    private static LatencyHistogram histogram(
+        ConcurrentMap<Integer, LatencyHistogram> histograms, int key )
+    {
+        LatencyHistogram histogram = histograms.get( key );
+        if( histogram == null )
+        {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent( key, histogram );
+            if( existing != null )
+            {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Log the latency percentiles for each request type and response status
+     * @param eventLog Log to write to
+     */
+    void report( BatchEventLog eventLog )
+    {
+        if( byCommandId.isEmpty() )
+        {
+            return;
+        }
+
+        eventLog.logEvent( new Date(), SMPPEvent.EventType.UNKNOWN, null,
+                           "Response latency (ms) by request type:" );
+        for( Integer id: sortedKeys( byCommandId ) )
+        {
+            Batch.CommandID commandId = Batch.CommandID.find( id );
+            logHistogram( eventLog,
+                          commandId == null ? hex( id ) : commandId.name(),
+                          byCommandId.get( id ) );
+        }
+
+        eventLog.logEvent( new Date(), SMPPEvent.EventType.UNKNOWN, null,
+                           "Response latency (ms) by response status:" );
+        for( Integer status: sortedKeys( byCommandStatus ) )
+        {
+            Batch.CommandStatus commandStatus = Batch.CommandStatus.find( status );
+            logHistogram( eventLog,
+                          commandStatus == null ? hex( status ) : commandStatus.name(),
+                          byCommandStatus.get( status ) );
+        }
+    }
+
+    /**
+     * Log one line of the report
+     * @param eventLog  Log to write to
+     * @param name      Name of the request type or response status
+     * @param histogram Latencies to report
+     */
+    private static void logHistogram( BatchEventLog eventLog,
+                                      String name,
+                                      LatencyHistogram histogram )
+    {
+        StringBuilder line = new StringBuilder( "    " );
+        line.append( name ).append( ": count=" ).append( histogram.getCount() );
+        for( double percentile: PERCENTILES )
+        {
+            line.append( ", p" ).
+                append( percentile == Math.floor( percentile ) ?
+                            String.valueOf( (long)percentile ) :
+                            String.valueOf( percentile ) ).
+                append( "=" ).
+                append( millis( histogram.getPercentile( percentile ) ) );
+        }
+        line.append( ", max=" ).append( millis( histogram.getMax() ) );
+        eventLog.logEvent( new Date(), SMPPEvent.EventType.UNKNOWN, null,
+                           line.toString() );
+    }
+
+    /**
+     * @param histograms Histograms to list
+     * @return Keys in numerical order
+     */
+    private static List<Integer> sortedKeys(
+        ConcurrentMap<Integer, LatencyHistogram> histograms )
+    {
+        List<Integer> keys = new ArrayList<Integer>( histograms.keySet() );
+        Collections.sort( keys );
+        return keys;
+    }
+
+    /**
+     * @param micros Time in microseconds
+     * @return Time in milliseconds to 3 decimal places
+     */
+    private static String millis( long micros )
+    {
+        return String.format( "%.3f", micros / 1000.0 );
+    }
+
+    /**
+     * @param value Unrecognised CommandId or CommandStatus
+     * @return Value in hex
+     */
+    private static String hex( int value )
+    {
+        return String.format( "0x%08x", value );
+    }
+}
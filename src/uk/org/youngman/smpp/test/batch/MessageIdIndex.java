@@ -0,0 +1,353 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+/**
+ * Map from SMSC message ids to timestamps, held in primitive arrays so that
+ * tens of millions of messages can be awaiting receipts without a String,
+ * a Long and a map entry for each one. Each entry takes 24 bytes, in an
+ * open addressing table with linear probing that is kept at most 3/4 full.
+ * <p>
+ * A message id of up to 15 characters, which covers the usual decimal and
+ * hex ids, is stored exactly, packed into 2 longs with its length. A longer
+ * id is stored as a 120 bit hash of its characters, which will not collide
+ * in any realistic run.
+ * <p>
+ * Entries whose timestamps are older than the time to live are removed a
+ * few slots at a time as new entries are added, so the table doesn't fill
+ * up with messages whose receipts will never arrive. The index is not
+ * thread safe.
+ */
+class MessageIdIndex
+{
+    /**
+     * Returned by remove() when the message id is not in the index
+     */
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    /**
+     * Slots checked for expired entries each time an entry is added
+     */
+    private static final int SWEEP_PER_PUT = 4;
+
+    /**
+     * Longest message id stored exactly
+     */
+    private static final int MAX_PACKED_LENGTH = 15;
+
+    /**
+     * Length byte marking a hashed message id
+     */
+    private static final long HASHED = 0xFF;
+
+    /**
+     * Keys, as 2 longs per slot. A second long of 0 marks an empty slot, as
+     * it always holds a length or the HASHED marker.
+     */
+    private long[] keys;
+
+    /**
+     * Timestamp for each slot
+     */
+    private long[] values;
+
+    private int size = 0;
+    private int mask;
+    private int sweepCursor = 0;
+    private long ttlNanos;
+    private long expired = 0;
+
+    /**
+     * Key of the id being looked up, set by setKey()
+     */
+    private long key1;
+    private long key2;
+
+
+    /**
+     * Constructor
+     * @param initialCapacity Number of entries expected
+     * @param ttlNanos        Age after which entries are removed, or 0 to
+     *                        keep them until they are removed
+     */
+    MessageIdIndex( int initialCapacity, long ttlNanos )
+    {
+        int slots = 16;
+        while( slots * 3 / 4 < initialCapacity )
+        {
+            slots <<= 1;
+        }
+        allocate( slots );
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * Set the age after which entries are removed
+     * @param ttlNanos Time to live, or 0 to keep entries until they are
+     *                 removed
+     */
+    void setTtl( long ttlNanos )
+    {
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * Add or replace an entry
+     * @param messageId Message id
+     * @param timestamp Time from System.nanoTime()
+     */
+    void put( String messageId, long timestamp )
+    {
+        if( ttlNanos > 0 )
+        {
+            sweep( timestamp - ttlNanos );
+        }
+        if( ( size + 1 ) * 4L > values.length * 3L )
+        {
+            resize( values.length * 2 );
+        }
+        setKey( messageId );
+        int slot = find();
+        if( keys[2 * slot + 1] == 0 )
+        {
+            keys[2 * slot] = key1;
+            keys[2 * slot + 1] = key2;
+            size++;
+        }
+        values[slot] = timestamp;
+    }
+
+    /**
+     * Remove an entry
+     * @param messageId Message id
+     * @return The entry's timestamp, or NOT_FOUND
+     */
+    long remove( String messageId )
+    {
+        setKey( messageId );
+        final int slot = find();
+        if( keys[2 * slot + 1] == 0 )
+        {
+            return NOT_FOUND;
+        }
+        final long value = values[slot];
+        delete( slot );
+        return value;
+    }
+
+    /**
+     * @return Number of entries
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return Number of entries removed because they were too old
+     */
+    long getExpired()
+    {
+        return expired;
+    }
+
+    /**
+     * Remove every entry older than a cutoff
+     * @param cutoffNanos Entries with timestamps at or before this are
+     *                    removed
+     * @return Number of entries removed
+     */
+    int expire( long cutoffNanos )
+    {
+        int removed = 0;
+        for( int slot = 0; slot <= mask; slot++ )
+        {
+            while( keys[2 * slot + 1] != 0 && values[slot] - cutoffNanos <= 0 )
+            {
+                delete( slot );
+                removed++;
+            }
+        }
+        expired += removed;
+        return removed;
+    }
+
+    /**
+     * Check a few slots for expired entries, continuing from where the
+     * last check stopped
+     * @param cutoffNanos Entries with timestamps at or before this are
+     *                    removed
+     */
+    private void sweep( long cutoffNanos )
+    {
+        for( int i = 0; i < SWEEP_PER_PUT; i++ )
+        {
+            final int slot = sweepCursor;
+            if( keys[2 * slot + 1] != 0 && values[slot] - cutoffNanos <= 0 )
+            {
+                // Check the slot again, as a later entry may move into it
+                delete( slot );
+                expired++;
+            }
+            else
+            {
+                sweepCursor = ( slot + 1 ) & mask;
+            }
+        }
+    }
+
+    /**
+     * Convert a message id to the key stored in the table
+     * @param messageId Message id
+     */
+    private void setKey( String messageId )
+    {
+        final int length = messageId.length();
+        boolean packed = length <= MAX_PACKED_LENGTH;
+        long k1 = 0;
+        long k2 = 0;
+        for( int i = 0; packed && i < length; i++ )
+        {
+            final char c = messageId.charAt( i );
+            if( c > 0xFF )
+            {
+                packed = false;
+            }
+            else if( i < 8 )
+            {
+                k1 |= (long)c << ( 56 - 8 * i );
+            }
+            else
+            {
+                k2 |= (long)c << ( 56 - 8 * ( i - 8 ) );
+            }
+        }
+        if( packed )
+        {
+            key1 = k1;
+            key2 = k2 | length;
+            return;
+        }
+
+        // FNV-1a and a second, independently seeded hash
+        long h1 = 0xCBF29CE484222325L;
+        long h2 = 0x9E3779B97F4A7C15L;
+        for( int i = 0; i < length; i++ )
+        {
+            final char c = messageId.charAt( i );
+            h1 = ( h1 ^ c ) * 0x100000001B3L;
+            h2 = ( h2 + c ) * 0xC2B2AE3D27D4EB4FL;
+            h2 ^= h2 >>> 29;
+        }
+        key1 = mix( h1 );
+        key2 = ( mix( h2 ^ length ) & ~0xFFL ) | HASHED;
+    }
+
+    /**
+     * Find the slot holding the current key, or the empty slot where it
+     * would go
+     * @return Slot number
+     */
+    private int find()
+    {
+        int slot = home( key1, key2 );
+        while( keys[2 * slot + 1] != 0 &&
+               ( keys[2 * slot] != key1 || keys[2 * slot + 1] != key2 ) )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param k1 First long of a key
+     * @param k2 Second long of a key
+     * @return Preferred slot for the key
+     */
+    private int home( long k1, long k2 )
+    {
+        return (int)mix( k1 ^ k2 * 0x9E3779B97F4A7C15L ) & mask;
+    }
+
+    /**
+     * Empty a slot, moving later entries of the same probe sequence back so
+     * that no tombstones are needed
+     * @param slot Slot to empty
+     */
+    private void delete( int slot )
+    {
+        int gap = slot;
+        int next = ( gap + 1 ) & mask;
+        while( keys[2 * next + 1] != 0 )
+        {
+            final int home = home( keys[2 * next], keys[2 * next + 1] );
+            // Move the entry back if the gap lies between its home and
+            // where it is now
+            if( ( ( next - home ) & mask ) >= ( ( next - gap ) & mask ) )
+            {
+                keys[2 * gap] = keys[2 * next];
+                keys[2 * gap + 1] = keys[2 * next + 1];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = ( next + 1 ) & mask;
+        }
+        keys[2 * gap] = 0;
+        keys[2 * gap + 1] = 0;
+        size--;
+    }
+
+    /**
+     * Move the entries to a larger table
+     * @param slots New number of slots, a power of 2
+     */
+    private void resize( int slots )
+    {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        allocate( slots );
+        for( int slot = 0; slot < oldValues.length; slot++ )
+        {
+            if( oldKeys[2 * slot + 1] != 0 )
+            {
+                key1 = oldKeys[2 * slot];
+                key2 = oldKeys[2 * slot + 1];
+                final int newSlot = find();
+                keys[2 * newSlot] = key1;
+                keys[2 * newSlot + 1] = key2;
+                values[newSlot] = oldValues[slot];
+            }
+        }
+        sweepCursor = 0;
+    }
+
+    /**
+     * Allocate empty arrays
+     * @param slots Number of slots, a power of 2
+     */
+    private void allocate( int slots )
+    {
+        keys = new long[2 * slots];
+        values = new long[slots];
+        mask = slots - 1;
+    }
+
+    /**
+     * Scramble the bits of a hash (the MurmurHash3 finaliser)
+     * @param h Value to scramble
+     * @return Scrambled value
+     */
+    private static long mix( long h )
+    {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
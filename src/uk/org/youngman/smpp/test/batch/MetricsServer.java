@@ -0,0 +1,275 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import uk.org.youngman.smpp.test.SMPPStats;
+
+
+/**
+ * Serves the metrics of a batch run at /metrics in the Prometheus text
+ * exposition format, so that long runs can be watched by the same
+ * monitoring as production ESMEs. Metrics are read from the runner's
+ * counters each time they are scraped, so the server costs nothing
+ * between scrapes.
+ */
+class MetricsServer
+{
+    /**
+     * Content type of the text exposition format
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Upper bounds of the latency buckets, in microseconds and as printed
+     * in seconds
+     */
+    private static final long[] BUCKET_MICROS = {
+        500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+        1000000, 2500000, 5000000, 10000000 };
+    private static final String[] BUCKET_LABELS = {
+        "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1",
+        "0.25", "0.5", "1", "2.5", "5", "10" };
+
+    /**
+     * Shortest interval the submit rate is measured over
+     */
+    private static final long RATE_INTERVAL_NANOS = 1000000000L;
+
+    private final SMPPStats stats;
+    private final LatencyStats latencies;
+    private final BatchEventLog eventLog;
+
+    private final HttpServer server;
+
+    /**
+     * Time and SUBMIT_SM count when the submit rate was last measured, and
+     * the rate
+     */
+    private long rateNanos = System.nanoTime();
+    private long rateSubmits = 0;
+    private double submitRate = 0;
+
+
+    /**
+     * Constructor
+     * @param runner  Runner whose metrics are served
+     * @param address Address and port to listen on
+     * @throws IOException The port can't be listened on
+     */
+    MetricsServer( BatchRunner runner, InetSocketAddress address )
+        throws IOException
+    {
+        this.stats = runner.getStats();
+        this.latencies = runner.getLatencies();
+        this.eventLog = runner.getEventLog();
+
+        server = HttpServer.create( address, 0 );
+        server.createContext( "/metrics", new HttpHandler()
+        {
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                serve( exchange );
+            }
+        } );
+    }
+
+    /**
+     * Start serving metrics
+     */
+    void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Stop serving metrics, without waiting for scrapes in progress
+     */
+    void stop()
+    {
+        server.stop( 0 );
+    }
+
+    /**
+     * Answer a request for the metrics
+     * @param exchange Request and response
+     * @throws IOException Error sending the response
+     */
+    private void serve( HttpExchange exchange ) throws IOException
+    {
+        try
+        {
+            final String method = exchange.getRequestMethod();
+            if( !method.equals( "GET" ) && !method.equals( "HEAD" ) )
+            {
+                exchange.getResponseHeaders().set( "Allow", "GET, HEAD" );
+                exchange.sendResponseHeaders( 405, -1 );
+                return;
+            }
+
+            final byte[] body = format().getBytes( "UTF-8" );
+            exchange.getResponseHeaders().set( "Content-Type", CONTENT_TYPE );
+            if( method.equals( "HEAD" ) )
+            {
+                exchange.sendResponseHeaders( 200, -1 );
+                return;
+            }
+            exchange.sendResponseHeaders( 200, body.length );
+            OutputStream out = exchange.getResponseBody();
+            out.write( body );
+            out.close();
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return The metrics in the text exposition format
+     */
+    String format()
+    {
+        StringBuilder text = new StringBuilder( 8192 );
+
+        header( text, "smpp_pdus_sent_total", "counter", "PDUs sent, by command_id." );
+        for( Batch.CommandID id: Batch.CommandID.values() )
+        {
+            sample( text, "smpp_pdus_sent_total", "command", id.name(), stats.getSent( id ) );
+        }
+
+        header( text, "smpp_pdus_received_total", "counter",
+                "PDUs received, by command_id." );
+        for( Batch.CommandID id: Batch.CommandID.values() )
+        {
+            sample( text, "smpp_pdus_received_total", "command", id.name(),
+                    stats.getReceived( id ) );
+        }
+
+        header( text, "smpp_submit_rate", "gauge",
+                "SUBMIT_SM PDUs sent per second since the previous scrape." );
+        text.append( "smpp_submit_rate " ).append( submitRate() ).append( '\n' );
+
+        header( text, "smpp_responses_total", "counter",
+                "Responses received, by command_status." );
+        for( Batch.CommandStatus status: Batch.CommandStatus.values() )
+        {
+            final long count = stats.getResponses( status );
+            // Only the statuses seen, as there are a great many
+            if( count != 0 || status == Batch.CommandStatus.ESME_ROK )
+            {
+                sample( text, "smpp_responses_total", "status", status.name(), count );
+            }
+        }
+
+        header( text, "smpp_response_latency_seconds", "histogram",
+                "Time from sending a request to receiving its response, by request command_id." );
+        for( int commandId: latencies.getCommandIds() )
+        {
+            histogram( text, commandId, latencies.getByCommandId( commandId ) );
+        }
+
+        header( text, "smpp_outstanding_requests", "gauge",
+                "Requests sent that have had no response yet." );
+        text.append( "smpp_outstanding_requests " )
+            .append( stats.getOutstandingRequests() ).append( '\n' );
+
+        header( text, "smpp_sessions", "gauge", "Sessions connected to the SMSC." );
+        text.append( "smpp_sessions " ).append( stats.getSessions() ).append( '\n' );
+
+        header( text, "smpp_bytes_sent_total", "counter", "Total length of the PDUs sent." );
+        text.append( "smpp_bytes_sent_total " ).append( stats.getBytesSent() ).append( '\n' );
+
+        header( text, "smpp_bytes_received_total", "counter",
+                "Total length of the PDUs received." );
+        text.append( "smpp_bytes_received_total " )
+            .append( stats.getBytesReceived() ).append( '\n' );
+
+        header( text, "smpp_log_queue_depth", "gauge",
+                "Log events waiting to be written by the log writer thread." );
+        text.append( "smpp_log_queue_depth " ).append( eventLog.getQueueDepth() ).append( '\n' );
+
+        return text.toString();
+    }
+
+    /**
+     * @return SUBMIT_SM PDUs sent per second since the rate was last
+     *         measured, or the last rate if that was less than a second ago
+     */
+    private synchronized double submitRate()
+    {
+        final long now = System.nanoTime();
+        if( now - rateNanos >= RATE_INTERVAL_NANOS )
+        {
+            final long submits = stats.getSent( Batch.CommandID.SUBMIT_SM );
+            submitRate = ( submits - rateSubmits ) * 1e9 / ( now - rateNanos );
+            rateNanos = now;
+            rateSubmits = submits;
+        }
+        return submitRate;
+    }
+
+    /**
+     * Append the latency histogram for a request type
+     * @param text      Metrics being written
+     * @param commandId CommandId of the request type
+     * @param histogram Latencies of its responses
+     */
+    private static void histogram( StringBuilder text, int commandId,
+                                   LatencyHistogram histogram )
+    {
+        final Batch.CommandID id = Batch.CommandID.find( commandId );
+        final String command = id == null ? String.format( "0x%08x", commandId ) : id.name();
+        final long[] cumulative = histogram.getCumulativeCounts( BUCKET_MICROS );
+        for( int i = 0; i < BUCKET_MICROS.length; i++ )
+        {
+            text.append( "smpp_response_latency_seconds_bucket{command=\"" )
+                .append( command ).append( "\",le=\"" ).append( BUCKET_LABELS[i] )
+                .append( "\"} " ).append( cumulative[i] ).append( '\n' );
+        }
+        final long count = cumulative[BUCKET_MICROS.length];
+        text.append( "smpp_response_latency_seconds_bucket{command=\"" )
+            .append( command ).append( "\",le=\"+Inf\"} " ).append( count ).append( '\n' );
+        text.append( "smpp_response_latency_seconds_sum{command=\"" )
+            .append( command ).append( "\"} " ).append( histogram.getSum() / 1e6 ).append( '\n' );
+        text.append( "smpp_response_latency_seconds_count{command=\"" )
+            .append( command ).append( "\"} " ).append( count ).append( '\n' );
+    }
+
+    /**
+     * Append the HELP and TYPE lines of a metric
+     * @param text Metrics being written
+     * @param name Metric name
+     * @param type Metric type
+     * @param help Description
+     */
+    private static void header( StringBuilder text, String name, String type, String help )
+    {
+        text.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+        text.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+    }
+
+    /**
+     * Append a sample with one label
+     * @param text  Metrics being written
+     * @param name  Metric name
+     * @param label Label name
+     * @param value Label value, which needs no escaping
+     * @param count Sample value
+     */
+    private static void sample( StringBuilder text, String name, String label,
+                                String value, long count )
+    {
+        text.append( name ).append( '{' ).append( label ).append( "=\"" )
+            .append( value ).append( "\"} " ).append( count ).append( '\n' );
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.smpp.Connection;
+import org.smpp.pdu.PDU;
+
+
+/**
+ * A connection to the SMSC run by a NioEngine rather than by a Receiver
+ * thread of its own. Incoming data is split into PDUs using the
+ * command_length at the start of each one, and complete PDUs are passed to
+ * a handler on the engine's I/O thread.
+ * <p>
+ * send() writes straight to the socket if it can. If the socket can't take
+ * all the data, the rest is copied and written by the I/O thread, so the
+ * caller can reuse its data as soon as send() returns. Senders wait if too
+ * much data is waiting to be written, except on the I/O thread itself,
+ * which is the only thread that can write the data out. Automatic
+ * responses sent from a PDUHandler are queued however much is waiting.
+ * <p>
+ * close() waits a while for queued data to be written, so that a PDU sent
+ * just before closing, such as an UNBIND, isn't lost.
+ */
+class NioConnection extends Connection
+{
+    /**
+     * Receives PDUs from a NioConnection
+     */
+    interface PDUHandler
+    {
+        /**
+         * Called on the I/O thread for each PDU received. Must not block.
+         * @param connection Connection the PDU arrived on
+         * @param pdu        PDU received
+         */
+        void handlePDU( NioConnection connection, PDU pdu );
+    }
+
+    /**
+     * Length of the PDU header. command_length is the first 4 bytes.
+     */
+    private static final int HEADER_LENGTH = 16;
+
+    /**
+     * Largest PDU accepted. Anything longer means the stream is corrupt.
+     */
+    private static final int MAX_PDU_LENGTH = 1 << 20;
+
+    /**
+     * Normal size of the read buffer. It grows to hold a longer PDU, and
+     * goes back to this size once that PDU has been read.
+     */
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    /**
+     * Amount of unwritten data at which senders wait
+     */
+    private static final int MAX_QUEUED_BYTES = 1 << 20;
+
+    /**
+     * Longest time close() waits for queued data to be written
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private NioEngine engine;
+    private NioEngine.IOThread ioThread;
+    private int port;
+    private SocketChannel channel = null;
+    private PDUHandler handler = null;
+    private volatile boolean opened = false;
+
+    /**
+     * Data received but not yet passed on as a complete PDU. Only used on
+     * the I/O thread.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+
+    /**
+     * Data waiting to be written, guarded by writeLock. written is
+     * signalled when queued data has been written or the connection closes,
+     * and senders wait on it without pinning a virtual thread's carrier.
+     */
+    private LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    private int queuedBytes = 0;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition written = writeLock.newCondition();
+
+
+    /**
+     * Constructor
+     * @param engine  Engine to run the connection on
+     * @param address SMSC host name or address
+     * @param port    SMSC port
+     */
+    NioConnection( NioEngine engine, String address, int port )
+    {
+        this.engine = engine;
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Set the handler for received PDUs. Must be called before open().
+     * @param handler Handler for received PDUs
+     */
+    void setHandler( PDUHandler handler )
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Connect to the SMSC and start receiving PDUs
+     * @throws IOException Error connecting
+     */
+    public void open() throws IOException
+    {
+        if( opened )
+        {
+            return;
+        }
+        channel = SocketChannel.open( new InetSocketAddress( address, port ) );
+        channel.configureBlocking( false );
+        opened = true;
+        ioThread = engine.nextThread();
+        ioThread.requestUpdate( this );
+    }
+
+    /**
+     * Close the connection, once any data waiting to be written has gone
+     * or CLOSE_TIMEOUT_MILLIS has passed. On the I/O thread, which is
+     * closing because of an error or because the SMSC closed the
+     * connection, nothing more can be written, so it closes at once.
+     * @throws IOException Error closing the socket
+     */
+    public void close() throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            if( Thread.currentThread() != ioThread )
+            {
+                long remaining = TimeUnit.MILLISECONDS.toNanos( CLOSE_TIMEOUT_MILLIS );
+                while( opened && !writeQueue.isEmpty() )
+                {
+                    if( remaining <= 0 )
+                    {
+                        System.err.println( "Timed out writing to " + address + ":" +
+                                            port + ", discarding " + queuedBytes +
+                                            " bytes" );
+                        break;
+                    }
+                    try
+                    {
+                        remaining = written.awaitNanos( remaining );
+                    }
+                    catch( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            opened = false;
+            writeQueue.clear();
+            queuedBytes = 0;
+            written.signalAll();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        if( channel != null )
+        {
+            channel.close();
+        }
+    }
+
+    public boolean isOpened()
+    {
+        return opened;
+    }
+
+    /**
+     * Send data, without waiting for it to be written unless too much is
+     * already waiting. The I/O thread never waits, as it would be waiting
+     * for itself.
+     * @param data Data to send
+     * @throws IOException Not connected or error writing
+     */
+    public void send( org.smpp.util.ByteBuffer data ) throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            while( opened && queuedBytes > MAX_QUEUED_BYTES &&
+                   Thread.currentThread() != ioThread )
+            {
+                try
+                {
+                    written.await();
+                }
+                catch( InterruptedException e )
+                {
+                    throw new IOException( "Interrupted waiting to send" );
+                }
+            }
+            if( !opened )
+            {
+                throw new IOException( "Not connected" );
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap( data.getBuffer(), 0, data.length() );
+            if( writeQueue.isEmpty() )
+            {
+                channel.write( buffer );
+                if( !buffer.hasRemaining() )
+                {
+                    return;
+                }
+            }
+            ByteBuffer copy = ByteBuffer.allocate( buffer.remaining() );
+            copy.put( buffer );
+            copy.flip();
+            writeQueue.add( copy );
+            queuedBytes += copy.remaining();
+            if( writeQueue.size() == 1 )
+            {
+                ioThread.requestUpdate( this );
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * PDUs are passed to the handler instead
+     */
+    public org.smpp.util.ByteBuffer receive()
+    {
+        throw new UnsupportedOperationException(
+            "NioConnection passes received PDUs to its handler" );
+    }
+
+    /**
+     * Only client connections are supported
+     */
+    public Connection accept()
+    {
+        throw new UnsupportedOperationException(
+            "NioConnection doesn't accept connections" );
+    }
+
+    /**
+     * @return The socket channel
+     */
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * @return Operations the I/O thread should wait for
+     */
+    int interestOps()
+    {
+        writeLock.lock();
+        try
+        {
+            return writeQueue.isEmpty() ?
+                SelectionKey.OP_READ :
+                SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Called on the I/O thread when data can be read. Passes each complete
+     * PDU to the handler.
+     */
+    void readReady()
+    {
+        try
+        {
+            if( channel.read( readBuffer ) < 0 )
+            {
+                close();
+                return;
+            }
+        }
+        catch( IOException e )
+        {
+            if( opened )
+            {
+                System.err.println( "Exception reading from " + address + ":" + port );
+                e.printStackTrace();
+            }
+            closeQuietly();
+            return;
+        }
+
+        readBuffer.flip();
+        while( readBuffer.remaining() >= 4 )
+        {
+            final int length = readBuffer.getInt( readBuffer.position() );
+            if( length < HEADER_LENGTH || length > MAX_PDU_LENGTH )
+            {
+                System.err.println( "Invalid command_length " + length +
+                                    " from " + address + ":" + port +
+                                    ", closing connection" );
+                closeQuietly();
+                return;
+            }
+            if( readBuffer.remaining() < length )
+            {
+                if( length > readBuffer.capacity() )
+                {
+                    ByteBuffer larger = ByteBuffer.allocate( length );
+                    larger.put( readBuffer );
+                    readBuffer = larger;
+                    return;
+                }
+                break;
+            }
+
+            byte[] bytes = new byte[length];
+            readBuffer.get( bytes );
+            try
+            {
+                PDU pdu = PDU.createPDU( new org.smpp.util.ByteBuffer( bytes ) );
+                handler.handlePDU( this, pdu );
+            }
+            catch( Exception e )
+            {
+                System.err.println( "Exception decoding PDU from " +
+                                    address + ":" + port );
+                e.printStackTrace();
+            }
+        }
+        if( readBuffer.capacity() > READ_BUFFER_SIZE &&
+            ( readBuffer.remaining() < 4 ||
+              readBuffer.getInt( readBuffer.position() ) <= READ_BUFFER_SIZE ) )
+        {
+            // The long PDU has been read and the next one fits the normal
+            // buffer, so don't keep up to MAX_PDU_LENGTH per connection
+            ByteBuffer smaller = ByteBuffer.allocate( READ_BUFFER_SIZE );
+            smaller.put( readBuffer );
+            readBuffer = smaller;
+            return;
+        }
+        readBuffer.compact();
+    }
+
+    /**
+     * Called on the I/O thread when data can be written
+     */
+    void writeReady()
+    {
+        writeLock.lock();
+        try
+        {
+            try
+            {
+                while( !writeQueue.isEmpty() )
+                {
+                    ByteBuffer buffer = writeQueue.getFirst();
+                    final int before = buffer.remaining();
+                    channel.write( buffer );
+                    queuedBytes -= before - buffer.remaining();
+                    if( buffer.hasRemaining() )
+                    {
+                        break;
+                    }
+                    writeQueue.removeFirst();
+                }
+            }
+            catch( IOException e )
+            {
+                if( opened )
+                {
+                    System.err.println( "Exception writing to " + address + ":" + port );
+                    e.printStackTrace();
+                }
+                closeQuietly();
+                return;
+            }
+            written.signalAll();
+            if( writeQueue.isEmpty() )
+            {
+                ioThread.requestUpdate( this );
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Close after an error, which has already been reported
+     */
+    private void closeQuietly()
+    {
+        try
+        {
+            close();
+        }
+        catch( IOException e )
+        {
+            // Already reporting an error
+        }
+    }
+}
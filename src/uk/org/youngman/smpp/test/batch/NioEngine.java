@@ -0,0 +1,230 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Runs many NioConnections on a small fixed set of I/O threads, each with
+ * its own Selector, instead of a Receiver thread per connection.
+ * Connections are shared out between the threads in turn. Received PDUs are
+ * passed to each connection's handler on its I/O thread, so handlers must
+ * not block.
+ */
+class NioEngine
+{
+    private IOThread[] threads;
+
+    /**
+     * Index of the thread for the next connection
+     */
+    private int nextThread = 0;
+
+
+    /**
+     * Constructor. Starts the I/O threads.
+     * @param threadCount Number of I/O threads
+     * @throws IOException Error opening a Selector
+     */
+    NioEngine( int threadCount ) throws IOException
+    {
+        if( threadCount < 1 )
+        {
+            throw new IllegalArgumentException( "NIO engine needs at least 1 thread" );
+        }
+        threads = new IOThread[threadCount];
+        for( int i = 0; i < threadCount; i++ )
+        {
+            threads[i] = new IOThread( "NioEngine-" + ( i + 1 ) );
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @return Default number of I/O threads, one per processor up to 4
+     */
+    static int defaultThreadCount()
+    {
+        return Math.min( Runtime.getRuntime().availableProcessors(), 4 );
+    }
+
+    /**
+     * Choose the I/O thread for a new connection
+     * @return I/O thread
+     */
+    synchronized IOThread nextThread()
+    {
+        if( nextThread >= threads.length )
+        {
+            nextThread = 0;
+        }
+        return threads[nextThread++];
+    }
+
+    /**
+     * Stop the I/O threads. Connections should be closed first.
+     */
+    void shutdown()
+    {
+        for( IOThread thread: threads )
+        {
+            thread.shutdown();
+        }
+        for( IOThread thread: threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException e )
+            {
+                System.err.println( "Interrupted stopping NIO engine" );
+            }
+        }
+    }
+
+
+    /**
+     * A thread that reads and writes for a set of connections
+     */
+    static class IOThread extends Thread
+    {
+        private Selector selector;
+
+        /**
+         * Connections that have been opened or need their interest in
+         * writing changed. Only the I/O thread touches the SelectionKeys.
+         */
+        private Queue<NioConnection> updates =
+            new ConcurrentLinkedQueue<NioConnection>();
+
+        private volatile boolean running = true;
+
+
+        /**
+         * Constructor
+         * @param name Thread name
+         * @throws IOException Error opening the Selector
+         */
+        IOThread( String name ) throws IOException
+        {
+            super( name );
+            setDaemon( true );
+            selector = Selector.open();
+        }
+
+        /**
+         * Ask the I/O thread to register a connection, or to update what it
+         * is waiting for. May be called from any thread.
+         * @param connection Connection to update
+         */
+        void requestUpdate( NioConnection connection )
+        {
+            updates.add( connection );
+            selector.wakeup();
+        }
+
+        /**
+         * Stop the thread
+         */
+        void shutdown()
+        {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run()
+        {
+            try
+            {
+                while( running )
+                {
+                    selector.select();
+                    applyUpdates();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while( keys.hasNext() )
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection)key.attachment();
+                        try
+                        {
+                            if( key.isValid() && key.isReadable() )
+                            {
+                                connection.readReady();
+                            }
+                            if( key.isValid() && key.isWritable() )
+                            {
+                                connection.writeReady();
+                            }
+                        }
+                        catch( CancelledKeyException e )
+                        {
+                            // Connection closed by another thread
+                        }
+                    }
+                }
+            }
+            catch( IOException e )
+            {
+                System.err.println( "Exception in NIO engine" );
+                e.printStackTrace();
+            }
+            finally
+            {
+                try
+                {
+                    selector.close();
+                }
+                catch( IOException e )
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Register new connections and update interest in writing
+         */
+        private void applyUpdates()
+        {
+            NioConnection connection;
+            while( ( connection = updates.poll() ) != null )
+            {
+                SelectionKey key = connection.getChannel().keyFor( selector );
+                try
+                {
+                    if( key == null )
+                    {
+                        connection.getChannel().register(
+                            selector, connection.interestOps(), connection );
+                    }
+                    else if( key.isValid() )
+                    {
+                        key.interestOps( connection.interestOps() );
+                    }
+                }
+                catch( ClosedChannelException e )
+                {
+                    // Connection closed since the update was requested
+                }
+                catch( CancelledKeyException e )
+                {
+                    // Connection closed since the update was requested
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Table of request PDUs sent on a session that have not yet been answered,
+ * keyed by sequence number. The runner adds a request before sending it and
+ * the PDU listener removes it when the matching response arrives. If a
+ * window size is set, the runner waits for a free slot before sending.
+ * <p>
+ * The requests are held in a SequenceNumberIndex rather than as objects,
+ * so a session can have millions of requests outstanding. A Request is
+ * only created when one is removed.
+ * <p>
+ * Waits use a Lock and Condition rather than wait(), so a lane on a
+ * virtual thread releases its carrier thread while it waits.
+ */
+class OutstandingRequests
+{
+    /**
+     * Details of a request awaiting a response
+     */
+    static class Request
+    {
+        private int sequenceNumber;
+        private int commandId;
+        private long sentNanos;
+        private boolean receiptRequested;
+
+        /**
+         * Constructor
+         * @param sequenceNumber   Sequence number of the request
+         * @param commandId        CommandId of the request
+         * @param sentNanos        Time sent, from System.nanoTime()
+         * @param receiptRequested The request asked for a delivery receipt
+         */
+        Request( int sequenceNumber, int commandId, long sentNanos,
+                 boolean receiptRequested )
+        {
+            this.sequenceNumber = sequenceNumber;
+            this.commandId = commandId;
+            this.sentNanos = sentNanos;
+            this.receiptRequested = receiptRequested;
+        }
+
+        /**
+         * @return Sequence number of the request
+         */
+        int getSequenceNumber()
+        {
+            return sequenceNumber;
+        }
+
+        /**
+         * @return CommandId of the request
+         */
+        int getCommandId()
+        {
+            return commandId;
+        }
+
+        /**
+         * @return Time sent, from System.nanoTime()
+         */
+        long getSentNanos()
+        {
+            return sentNanos;
+        }
+
+        /**
+         * @return true if the request asked for a delivery receipt
+         */
+        boolean isReceiptRequested()
+        {
+            return receiptRequested;
+        }
+    }
+
+    /**
+     * Set in the indexed data, alongside the CommandId, when the request
+     * asked for a delivery receipt. Request CommandIds don't use this bit.
+     */
+    private static final int RECEIPT_REQUESTED = 0x40000000;
+
+    /**
+     * Send times and CommandIds of requests awaiting a response, keyed by
+     * sequence number
+     */
+    private SequenceNumberIndex requests = new SequenceNumberIndex( 1024 );
+
+    /**
+     * Maximum number of outstanding requests, or 0 for no limit
+     */
+    private int window = 0;
+
+    /**
+     * Guards the table and the window. slotFree is signalled whenever a
+     * request leaves the table or the window changes.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFree = lock.newCondition();
+
+
+    /**
+     * Set the maximum number of outstanding requests
+     * @param window Window size, or 0 for no limit
+     */
+    void setWindow( int window )
+    {
+        lock.lock();
+        try
+        {
+            this.window = window;
+            slotFree.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until there is room in the window for another request
+     * @param timeoutMillis Maximum time to wait
+     * @return true if there is room, false if the wait timed out
+     * @throws InterruptedException Wait interrupted
+     */
+    boolean awaitSlot( long timeoutMillis )
+        throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            while( window > 0 && requests.size() >= window )
+            {
+                if( remaining <= 0 )
+                {
+                    return false;
+                }
+                remaining = slotFree.awaitNanos( remaining );
+            }
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a request that is about to be sent, with the time from which
+     * its latency is measured
+     * @param sequenceNumber   Sequence number of the request
+     * @param commandId        CommandId of the request
+     * @param sentNanos        Time sent or due to be sent, from System.nanoTime()
+     * @param receiptRequested The request asked for a delivery receipt
+     * @return false if a request with the same sequence number is already
+     *         awaiting a response, in which case it is left as it is
+     */
+    boolean add( int sequenceNumber, int commandId, long sentNanos,
+                 boolean receiptRequested )
+    {
+        lock.lock();
+        try
+        {
+            if( requests.get( sequenceNumber ) >= 0 )
+            {
+                return false;
+            }
+            requests.put( sequenceNumber, sentNanos,
+                          receiptRequested ? commandId | RECEIPT_REQUESTED : commandId );
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the request matching a response
+     * @param sequenceNumber Sequence number of the response
+     * @return The matching request, or null if there was none
+     */
+    Request remove( int sequenceNumber )
+    {
+        lock.lock();
+        try
+        {
+            final int slot = requests.get( sequenceNumber );
+            if( slot < 0 )
+            {
+                return null;
+            }
+            final int data = requests.getData( slot );
+            Request request = new Request( sequenceNumber,
+                                           data & ~RECEIPT_REQUESTED,
+                                           requests.getTimestamp( slot ),
+                                           ( data & RECEIPT_REQUESTED ) != 0 );
+            requests.remove( slot );
+            slotFree.signalAll();
+            return request;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard requests that have waited too long for a response
+     * @param ageMillis Age beyond which requests are discarded
+     * @return Number of requests discarded
+     */
+    int expire( long ageMillis )
+    {
+        lock.lock();
+        try
+        {
+            final int expired =
+                requests.expire( System.nanoTime() - ageMillis * 1000000L );
+            if( expired > 0 )
+            {
+                slotFree.signalAll();
+            }
+            return expired;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of requests awaiting a response
+     */
+    int size()
+    {
+        lock.lock();
+        try
+        {
+            return requests.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
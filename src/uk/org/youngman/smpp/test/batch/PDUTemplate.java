@@ -0,0 +1,289 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.jdom.Attribute;
+import org.jdom.Element;
+import org.jdom.Text;
+import org.smpp.pdu.PDU;
+
+
+/**
+ * A <Pdu> element used as a template for a series of PDUs. Text and
+ * attribute values may contain placeholders, which are replaced for each
+ * instance:
+ * <ul>
+ * <li>${i} - the instance number, counting from 0</li>
+ * <li>${seq} - the instance number, counting from 1</li>
+ * <li>${name:number+i} or ${name:number+seq} - the number plus the
+ * instance number, zero padded to the width of the number. The name is
+ * only there to make the script readable, e.g. ${msisdn:447700900000+i}</li>
+ * </ul>
+ * The template keeps one working copy of the element and rewrites its text
+ * for each instance, so instances are cheap to create and nothing is kept
+ * once a PDU has been sent.
+ */
+class PDUTemplate
+{
+    private BatchReader reader;
+    private Element element;
+
+    /**
+     * Text and attributes of the working copy that contain placeholders
+     */
+    private List<Slot> slots = new ArrayList<Slot>();
+
+    /**
+     * If there are no placeholders, every instance is the same, so the PDU
+     * is only created and encoded once.
+     */
+    private EncodedPDU fixed = null;
+
+
+    /**
+     * Constructor
+     * @param reader  Reader used to build PDUs from the template
+     * @param element <Pdu> element to use as a template
+     */
+    PDUTemplate( BatchReader reader, Element element )
+    {
+        this.reader = reader;
+        this.element = (Element)element.clone();
+
+        joinText( this.element );
+
+        List<Object> nodes = new ArrayList<Object>();
+        nodes.add( this.element );
+        Iterator<?> descendants = this.element.getDescendants();
+        while( descendants.hasNext() )
+        {
+            nodes.add( descendants.next() );
+        }
+        for( Object node: nodes )
+        {
+            if( node instanceof Text )
+            {
+                Text text = (Text)node;
+                if( text.getText().contains( "${" ) )
+                {
+                    slots.add( new Slot( text, text.getText() ) );
+                }
+            }
+            else if( node instanceof Element )
+            {
+                for( Object attribute: ((Element)node).getAttributes() )
+                {
+                    String value = ((Attribute)attribute).getValue();
+                    if( value.contains( "${" ) )
+                    {
+                        slots.add( new Slot( attribute, value ) );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Join adjacent text in an element and its descendants into single Text
+     * nodes. Text either side of a CDATA section is parsed as separate
+     * nodes, and a placeholder split between nodes wouldn't be found.
+     * @param element Element whose text is joined
+     */
+    private static void joinText( Element element )
+    {
+        List<?> content = element.getContent();
+        for( int i = content.size() - 1; i >= 0; i-- )
+        {
+            final Object node = content.get( i );
+            if( node instanceof Element )
+            {
+                joinText( (Element)node );
+            }
+            else if( i > 0 && node instanceof Text && content.get( i - 1 ) instanceof Text )
+            {
+                final String next = ((Text)element.removeContent( i )).getText();
+                final String previous = ((Text)content.get( i - 1 )).getText();
+                element.setContent( i - 1, new Text( previous + next ) );
+            }
+        }
+    }
+
+    /**
+     * Create a PDU from the template
+     * @param index Instance number, counting from 0
+     * @return New PDU, or null if the PDU could not be built
+     */
+    PDU instance( long index )
+    {
+        EncodedPDU encoded = encodedInstance( index );
+        return encoded == null ? null : encoded.getPdu();
+    }
+
+    /**
+     * Create and encode a PDU from the template. If the template has no
+     * placeholders the same encoded PDU is returned every time, and only its
+     * sequence number changes from one send to the next.
+     * @param index Instance number, counting from 0
+     * @return Encoded PDU, or null if the PDU could not be built
+     */
+    EncodedPDU encodedInstance( long index )
+    {
+        if( fixed != null )
+        {
+            return fixed;
+        }
+
+        for( Slot slot: slots )
+        {
+            slot.fill( index );
+        }
+        try
+        {
+            EncodedPDU encoded = reader.readEncodedPDU( element );
+            if( slots.isEmpty() )
+            {
+                fixed = encoded;
+            }
+            return encoded;
+        }
+        catch( Exception e )
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * A text or attribute value containing placeholders, split into the
+     * literal parts and the placeholders.
+     */
+    private static class Slot
+    {
+        private Object node;
+        private List<String> literals = new ArrayList<String>();
+        private List<Placeholder> placeholders = new ArrayList<Placeholder>();
+        private StringBuilder value = new StringBuilder();
+
+        /**
+         * Constructor
+         * @param node     Text or Attribute to rewrite
+         * @param template Original value, containing placeholders
+         */
+        Slot( Object node, String template )
+        {
+            this.node = node;
+            int start = 0;
+            int open = template.indexOf( "${" );
+            while( open >= 0 )
+            {
+                int close = template.indexOf( '}', open );
+                if( close < 0 )
+                {
+                    break;
+                }
+                literals.add( template.substring( start, open ) );
+                placeholders.add(
+                    new Placeholder( template.substring( open + 2, close ) ) );
+                start = close + 1;
+                open = template.indexOf( "${", start );
+            }
+            literals.add( template.substring( start ) );
+        }
+
+        /**
+         * Replace the placeholders for an instance
+         * @param index Instance number, counting from 0
+         */
+        void fill( long index )
+        {
+            value.setLength( 0 );
+            for( int i = 0; i < placeholders.size(); i++ )
+            {
+                value.append( literals.get( i ) );
+                placeholders.get( i ).append( value, index );
+            }
+            value.append( literals.get( placeholders.size() ) );
+            if( node instanceof Text )
+            {
+                ((Text)node).setText( value.toString() );
+            }
+            else
+            {
+                ((Attribute)node).setValue( value.toString() );
+            }
+        }
+    }
+
+
+    /**
+     * A placeholder within a text or attribute value
+     */
+    private static class Placeholder
+    {
+        private long base;
+        private int offset;
+        private int width;
+
+        /**
+         * Constructor
+         * @param expression Text between "${" and "}"
+         */
+        Placeholder( String expression )
+        {
+            String term = expression.trim();
+            int colon = term.indexOf( ':' );
+            if( colon >= 0 )
+            {
+                term = term.substring( colon + 1 ).trim();
+            }
+
+            String counter = term;
+            String number = "0";
+            int plus = term.indexOf( '+' );
+            if( plus >= 0 )
+            {
+                number = term.substring( 0, plus ).trim();
+                counter = term.substring( plus + 1 ).trim();
+            }
+
+            if( counter.equals( "i" ) )
+            {
+                offset = 0;
+            }
+            else if( counter.equals( "seq" ) )
+            {
+                offset = 1;
+            }
+            else
+            {
+                throw new IllegalArgumentException(
+                    "Did not recognise placeholder \"${" + expression + "}\"" );
+            }
+            base = Long.parseLong( number );
+            width = plus >= 0 ? number.length() : 0;
+        }
+
+        /**
+         * Append the value of the placeholder for an instance
+         * @param value Buffer to append to
+         * @param index Instance number, counting from 0
+         */
+        void append( StringBuilder value, long index )
+        {
+            String digits = Long.toString( base + index + offset );
+            for( int i = digits.length(); i < width; i++ )
+            {
+                value.append( '0' );
+            }
+            value.append( digits );
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Schedules events at a fixed rate. Each deadline is calculated from the
+ * start time rather than from the previous event, so time spent sending
+ * doesn't accumulate as drift. If the sender falls behind, deadlines that
+ * have already passed are returned immediately until it catches up.
+ * <p>
+ * The rate can be changed while running, in which case deadlines are
+ * calculated from the time of the change.
+ */
+class RateScheduler
+{
+    /**
+     * Sleep rather than park when a deadline is further away than this, to
+     * avoid waking repeatedly.
+     */
+    private static final long SLEEP_THRESHOLD_NANOS = 2000000L;
+
+    private long startNanos;
+    private double intervalNanos;
+    private long count = 0;
+
+    /**
+     * Time the current rate took effect and number of deadlines issued at
+     * that rate
+     */
+    private long rateStartNanos;
+    private long rateCount = 0;
+
+
+    /**
+     * Constructor. The first deadline is the time of construction.
+     * @param perSecond Number of events per second
+     */
+    RateScheduler( double perSecond )
+    {
+        if( perSecond <= 0 )
+        {
+            throw new IllegalArgumentException( "Rate must be positive" );
+        }
+        this.startNanos = System.nanoTime();
+        this.rateStartNanos = startNanos;
+        this.intervalNanos = 1000000000.0 / perSecond;
+    }
+
+    /**
+     * Change the rate. The next deadline is unchanged, unless it has
+     * already passed, in which case it becomes now. Deadlines missed at the
+     * old rate are not made up.
+     * @param perSecond New number of events per second
+     */
+    void setRate( double perSecond )
+    {
+        if( perSecond <= 0 )
+        {
+            throw new IllegalArgumentException( "Rate must be positive" );
+        }
+        final long next = rateStartNanos + (long)( rateCount * intervalNanos );
+        final long now = System.nanoTime();
+        rateStartNanos = next - now < 0 ? now : next;
+        rateCount = 0;
+        intervalNanos = 1000000000.0 / perSecond;
+    }
+
+    /**
+     * @return Start time, from System.nanoTime()
+     */
+    long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    /**
+     * @return Number of deadlines issued so far
+     */
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return Deadline for the next event, in System.nanoTime() terms
+     */
+    long nextDeadline()
+    {
+        count++;
+        return rateStartNanos + (long)( rateCount++ * intervalNanos );
+    }
+
+    /**
+     * Wait until a deadline has passed
+     * @param deadline Deadline in System.nanoTime() terms
+     * @throws InterruptedException Wait interrupted
+     */
+    static void awaitDeadline( long deadline ) throws InterruptedException
+    {
+        long remaining = deadline - System.nanoTime();
+        while( remaining > 0 )
+        {
+            if( remaining > SLEEP_THRESHOLD_NANOS )
+            {
+                Thread.sleep( ( remaining - SLEEP_THRESHOLD_NANOS / 2 ) / 1000000L );
+            }
+            else
+            {
+                LockSupport.parkNanos( remaining );
+            }
+            if( Thread.interrupted() )
+            {
+                throw new InterruptedException();
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
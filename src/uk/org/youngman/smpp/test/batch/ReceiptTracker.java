@@ -0,0 +1,428 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.smpp.pdu.DataSM;
+import org.smpp.pdu.DeliverSM;
+import org.smpp.pdu.PDU;
+import org.smpp.pdu.SubmitSM;
+import org.smpp.util.ByteBuffer;
+import uk.org.youngman.smpp.test.SMPPEvent;
+
+
+/**
+ * Matches delivery receipts to the messages they report on, and measures
+ * the time from sending each message to receiving its receipt. The PDU
+ * listeners index the message_id of every accepted SUBMIT_SM or DATA_SM
+ * that asked for a receipt, then look up the message_id of each receipt,
+ * taken from its receipted_message_id TLV or from the "id:" field of the
+ * receipt text.
+ * <p>
+ * Receipts often arrive on a different session from the submit response,
+ * so a receipt may be handled before the response that carries its
+ * message_id. Receipts that don't match are kept, and matched if the
+ * message_id turns up later.
+ * <p>
+ * Messages awaiting receipts are held in a MessageIdIndex, so millions can
+ * be in flight. Messages whose receipts haven't arrived within the timeout
+ * are dropped from the index and counted as missing.
+ */
+class ReceiptTracker
+{
+    /**
+     * esm_class message type bits
+     */
+    private static final int ESM_CLASS_TYPE_MASK = 0x3C;
+
+    /**
+     * esm_class message type of an SMSC delivery receipt
+     */
+    private static final int ESM_CLASS_DELIVERY_RECEIPT = 0x04;
+
+    /**
+     * registered_delivery bits requesting an SMSC delivery receipt
+     */
+    private static final int REGISTERED_DELIVERY_RECEIPT_MASK = 0x03;
+
+    /**
+     * Default time after which a missing receipt is no longer expected
+     */
+    static final long DEFAULT_TIMEOUT_MILLIS = 3600000;
+
+    /**
+     * Most unmatched receipts kept. If an SMSC reports message_ids in a
+     * different form in its receipts, none of them will ever match.
+     */
+    private static final int MAX_UNMATCHED = 100000;
+
+    /**
+     * Names of the message_state TLV values, for receipts without a "stat:"
+     * field
+     */
+    private static final String[] MESSAGE_STATES = {
+        "SCHEDULED", "ENROUTE", "DELIVRD", "EXPIRED", "DELETED",
+        "UNDELIV", "ACCEPTD", "UNKNOWN", "REJECTD", "SKIPPED"
+    };
+
+    /**
+     * A receipt that matched no message when it arrived
+     */
+    private static class Receipt
+    {
+        final long receivedNanos;
+        final String state;
+
+        /**
+         * Constructor
+         * @param receivedNanos Time received, from System.nanoTime()
+         * @param state         Final state of the message
+         */
+        Receipt( long receivedNanos, String state )
+        {
+            this.receivedNanos = receivedNanos;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Send times of messages awaiting a receipt, from System.nanoTime(),
+     * keyed by message_id
+     */
+    private MessageIdIndex submitted =
+        new MessageIdIndex( 1024, DEFAULT_TIMEOUT_MILLIS * 1000000L );
+
+    /**
+     * Receipts that matched no message, keyed by message_id
+     */
+    private Map<String, Receipt> unmatched = new HashMap<String, Receipt>();
+
+    /**
+     * Latencies from sending a message to receiving its receipt, keyed by
+     * the receipt's final state
+     */
+    private ConcurrentMap<String, LatencyHistogram> latencies =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private long totalSubmitted = 0;
+    private long matched = 0;
+
+    /**
+     * Unmatched receipts not kept, because there were too many
+     */
+    private long unmatchedDropped = 0;
+
+
+    /**
+     * @param pdu Request PDU about to be sent
+     * @return true if the request asks the SMSC for a delivery receipt
+     */
+    static boolean isReceiptRequested( PDU pdu )
+    {
+        final byte registeredDelivery;
+        if( pdu instanceof SubmitSM )
+        {
+            registeredDelivery = ((SubmitSM)pdu).getRegisteredDelivery();
+        }
+        else if( pdu instanceof DataSM )
+        {
+            registeredDelivery = ((DataSM)pdu).getRegisteredDelivery();
+        }
+        else
+        {
+            return false;
+        }
+        return ( registeredDelivery & REGISTERED_DELIVERY_RECEIPT_MASK ) != 0;
+    }
+
+    /**
+     * @param pdu Received PDU
+     * @return true if the PDU is a delivery receipt
+     */
+    static boolean isReceipt( PDU pdu )
+    {
+        if( pdu instanceof DeliverSM )
+        {
+            return ( ((DeliverSM)pdu).getEsmClass() & ESM_CLASS_TYPE_MASK ) ==
+                ESM_CLASS_DELIVERY_RECEIPT;
+        }
+        if( pdu instanceof DataSM )
+        {
+            return ( ((DataSM)pdu).getEsmClass() & ESM_CLASS_TYPE_MASK ) ==
+                ESM_CLASS_DELIVERY_RECEIPT;
+        }
+        return false;
+    }
+
+    /**
+     * Set the time after which a missing receipt is no longer expected
+     * @param timeoutMillis Receipt timeout
+     */
+    synchronized void setTimeout( long timeoutMillis )
+    {
+        submitted.setTtl( timeoutMillis * 1000000L );
+    }
+
+    /**
+     * Record an accepted message that asked for a receipt
+     * @param messageId message_id from the submit response
+     * @param sentNanos Time the message was sent, from System.nanoTime()
+     */
+    void submitted( String messageId, long sentNanos )
+    {
+        Receipt receipt;
+        synchronized( this )
+        {
+            totalSubmitted++;
+            receipt = unmatched.remove( messageId );
+            if( receipt == null )
+            {
+                submitted.put( messageId, sentNanos );
+                return;
+            }
+            matched++;
+        }
+        record( receipt.state, receipt.receivedNanos - sentNanos );
+    }
+
+    /**
+     * Match a received delivery receipt to its message
+     * @param pdu           Receipt PDU
+     * @param receivedNanos Time the receipt arrived, from System.nanoTime()
+     * @return true if the receipt matched a message
+     */
+    boolean receipt( PDU pdu, long receivedNanos )
+    {
+        final String text = receiptText( pdu );
+        String messageId = receiptedMessageId( pdu );
+        if( messageId == null )
+        {
+            messageId = field( text, "id:" );
+        }
+        if( messageId == null )
+        {
+            return false;
+        }
+
+        final String state = state( pdu, text );
+        long sentNanos;
+        synchronized( this )
+        {
+            sentNanos = submitted.remove( messageId );
+            if( sentNanos == MessageIdIndex.NOT_FOUND )
+            {
+                if( unmatched.size() < MAX_UNMATCHED )
+                {
+                    unmatched.put( messageId, new Receipt( receivedNanos, state ) );
+                }
+                else
+                {
+                    unmatchedDropped++;
+                }
+                return false;
+            }
+            matched++;
+        }
+        record( state, receivedNanos - sentNanos );
+        return true;
+    }
+
+    /**
+     * Record a receipt latency
+     * @param state Final state of the message
+     * @param nanos Time from send to receipt
+     */
+    private void record( String state, long nanos )
+    {
+        LatencyHistogram histogram = latencies.get( state );
+        if( histogram == null )
+        {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = latencies.putIfAbsent( state, histogram );
+            if( existing != null )
+            {
+                histogram = existing;
+            }
+        }
+        histogram.record( nanos / 1000 );
+    }
+
+    /**
+     * Log the receipt counts and latencies
+     * @param eventLog Log to write to
+     */
+    synchronized void report( BatchEventLog eventLog )
+    {
+        if( totalSubmitted == 0 && unmatched.isEmpty() && unmatchedDropped == 0 )
+        {
+            return;
+        }
+
+        eventLog.logEvent( new Date(), SMPPEvent.EventType.UNKNOWN, null,
+                           "Receipts: " + totalSubmitted + " expected, " +
+                               matched + " received, " +
+                               ( submitted.size() + submitted.getExpired() ) +
+                               " missing, " +
+                               ( unmatched.size() + unmatchedDropped ) +
+                               " unmatched" );
+        List<String> states = new ArrayList<String>( latencies.keySet() );
+        Collections.sort( states );
+        for( String state: states )
+        {
+            LatencyHistogram histogram = latencies.get( state );
+            eventLog.logEvent( new Date(), SMPPEvent.EventType.UNKNOWN, null,
+                               "    Receipt latency (ms) " + state +
+                                   ": count=" + histogram.getCount() +
+                                   ", p50=" + millis( histogram.getPercentile( 50 ) ) +
+                                   ", p90=" + millis( histogram.getPercentile( 90 ) ) +
+                                   ", p99=" + millis( histogram.getPercentile( 99 ) ) +
+                                   ", max=" + millis( histogram.getMax() ) );
+        }
+    }
+
+    /**
+     * @param pdu Receipt PDU
+     * @return receipted_message_id TLV, or null if it is absent
+     */
+    private static String receiptedMessageId( PDU pdu )
+    {
+        try
+        {
+            if( pdu instanceof DeliverSM && ((DeliverSM)pdu).hasReceiptedMessageId() )
+            {
+                return ((DeliverSM)pdu).getReceiptedMessageId();
+            }
+            if( pdu instanceof DataSM && ((DataSM)pdu).hasReceiptedMessageId() )
+            {
+                return ((DataSM)pdu).getReceiptedMessageId();
+            }
+        }
+        catch( Exception e )
+        {
+            // Checked by has...()
+        }
+        return null;
+    }
+
+    /**
+     * @param pdu  Receipt PDU
+     * @param text Receipt text, or null
+     * @return Final state from the "stat:" field, or the message_state TLV
+     */
+    private static String state( PDU pdu, String text )
+    {
+        String state = field( text, "stat:" );
+        if( state != null )
+        {
+            return state;
+        }
+        try
+        {
+            int messageState = -1;
+            if( pdu instanceof DeliverSM && ((DeliverSM)pdu).hasMessageState() )
+            {
+                messageState = ((DeliverSM)pdu).getMessageState();
+            }
+            else if( pdu instanceof DataSM && ((DataSM)pdu).hasMessageState() )
+            {
+                messageState = ((DataSM)pdu).getMessageState();
+            }
+            if( messageState >= 0 && messageState < MESSAGE_STATES.length )
+            {
+                return MESSAGE_STATES[messageState];
+            }
+        }
+        catch( Exception e )
+        {
+            // Checked by has...()
+        }
+        return "unknown";
+    }
+
+    /**
+     * @param pdu Receipt PDU
+     * @return The receipt text, from short_message or message_payload, or
+     *         null if there is none
+     */
+    private static String receiptText( PDU pdu )
+    {
+        ByteBuffer data = null;
+        try
+        {
+            if( pdu instanceof DeliverSM )
+            {
+                data = ((DeliverSM)pdu).getShortMessageData();
+            }
+            else if( pdu instanceof DataSM && ((DataSM)pdu).hasMessagePayload() )
+            {
+                data = ((DataSM)pdu).getMessagePayload();
+            }
+        }
+        catch( Exception e )
+        {
+            // Checked by hasMessagePayload()
+        }
+        if( data == null || data.length() == 0 )
+        {
+            return null;
+        }
+        // Receipt text is ASCII
+        final byte[] bytes = data.getBuffer();
+        final char[] chars = new char[data.length()];
+        for( int i = 0; i < chars.length; i++ )
+        {
+            chars[i] = (char)( bytes[i] & 0xFF );
+        }
+        return new String( chars );
+    }
+
+    /**
+     * Find a field in receipt text, such as "id:IIIIIIIIII sub:SSS ..."
+     * @param text Receipt text, or null
+     * @param name Field name, including the colon
+     * @return Field value, up to the next space, or null if it is missing
+     */
+    static String field( String text, String name )
+    {
+        if( text == null )
+        {
+            return null;
+        }
+        int start = text.indexOf( name );
+        while( start > 0 && text.charAt( start - 1 ) != ' ' )
+        {
+            start = text.indexOf( name, start + 1 );
+        }
+        if( start < 0 )
+        {
+            return null;
+        }
+        start += name.length();
+        int end = text.indexOf( ' ', start );
+        if( end < 0 )
+        {
+            end = text.length();
+        }
+        return end > start ? text.substring( start, end ) : null;
+    }
+
+    /**
+     * @param micros Time in microseconds
+     * @return Time in milliseconds to 3 decimal places
+     */
+    private static String millis( long micros )
+    {
+        return String.format( "%.3f", micros / 1000.0 );
+    }
+}
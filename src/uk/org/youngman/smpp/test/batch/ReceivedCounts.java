@@ -0,0 +1,205 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Counts the PDUs of each type received during a run, so that the runner
+ * can wait for expected PDUs rather than pausing for a fixed time. The PDU
+ * listeners call received() for every PDU, after updating the outstanding
+ * requests, so a runner waiting for outstanding requests to be answered can
+ * also wait here.
+ * <p>
+ * Each wait for a PDU type uses up the PDUs it waited for, so a script can
+ * send some requests, wait for their responses, send some more, and wait
+ * again with the same count. PDUs that arrive before the wait starts still
+ * count.
+ * <p>
+ * Counting a PDU is a single atomic increment. The lock is only taken, to
+ * wake the runner, while a wait is in progress.
+ */
+class ReceivedCounts
+{
+    /**
+     * CommandId values in ascending order, and the CommandID.ordinal() of
+     * each
+     */
+    private static final Batch.CommandID[] COMMAND_IDS = Batch.CommandID.values();
+    private static final int[] IDS = new int[COMMAND_IDS.length];
+    private static final int[] ID_ORDINALS = new int[COMMAND_IDS.length];
+
+    static
+    {
+        for( int i = 0; i < COMMAND_IDS.length; i++ )
+        {
+            IDS[i] = COMMAND_IDS[i].getId();
+        }
+        Arrays.sort( IDS );
+        for( Batch.CommandID id: COMMAND_IDS )
+        {
+            ID_ORDINALS[Arrays.binarySearch( IDS, id.getId() )] = id.ordinal();
+        }
+    }
+
+    /**
+     * PDUs received of each type, by CommandID.ordinal(), followed by one
+     * count for unrecognised CommandIds
+     */
+    private final AtomicLongArray received =
+        new AtomicLongArray( COMMAND_IDS.length + 1 );
+
+    /**
+     * PDUs of each type used up by earlier waits, indexed like received.
+     * Guarded by lock.
+     */
+    private final long[] used = new long[COMMAND_IDS.length + 1];
+
+    /**
+     * Number of waits in progress. A waiter registers here before it reads
+     * the counts, so a PDU counted after that read always sees the waiter
+     * and wakes it.
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Held by waiters, and by received() to wake them. arrived is
+     * signalled for every PDU received while there are waiters. A Condition
+     * rather than wait() lets lanes on virtual threads unmount while they
+     * wait.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+
+
+    /**
+     * Count a received PDU and wake any waiting runner
+     * @param commandId CommandId of the PDU
+     */
+    void received( int commandId )
+    {
+        received.incrementAndGet( index( commandId ) );
+        if( waiters.get() > 0 )
+        {
+            lock.lock();
+            try
+            {
+                arrived.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait until a number of PDUs of a type have been received since the
+     * last wait for that type
+     * @param commandId     CommandId to wait for
+     * @param count         Number of PDUs to wait for
+     * @param timeoutMillis Maximum time to wait
+     * @return Number of PDUs received, which is less than count if the
+     *         wait timed out
+     * @throws InterruptedException Wait interrupted
+     */
+    long await( int commandId, long count, long timeoutMillis )
+        throws InterruptedException
+    {
+        final int index = index( commandId );
+        lock.lock();
+        waiters.incrementAndGet();
+        try
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            final long start = used[index];
+            while( received.get( index ) - start < count )
+            {
+                if( remaining <= 0 )
+                {
+                    break;
+                }
+                remaining = arrived.awaitNanos( remaining );
+            }
+            final long total = Math.min( count, received.get( index ) - start );
+            used[index] = start + total;
+            return total;
+        }
+        finally
+        {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the outstanding requests have fallen to a given number
+     * @param outstanding   Requests to check
+     * @param max           Number of requests that may still be outstanding
+     * @param timeoutMillis Maximum time to wait
+     * @return Number of requests still outstanding
+     * @throws InterruptedException Wait interrupted
+     */
+    int awaitOutstanding( Iterable<OutstandingRequests> outstanding,
+                          int max, long timeoutMillis )
+        throws InterruptedException
+    {
+        lock.lock();
+        waiters.incrementAndGet();
+        try
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            int total = count( outstanding );
+            while( total > max )
+            {
+                if( remaining <= 0 )
+                {
+                    break;
+                }
+                remaining = arrived.awaitNanos( remaining );
+                total = count( outstanding );
+            }
+            return total;
+        }
+        finally
+        {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param outstanding Requests to count
+     * @return Total number of outstanding requests
+     */
+    private static int count( Iterable<OutstandingRequests> outstanding )
+    {
+        int total = 0;
+        for( OutstandingRequests requests: outstanding )
+        {
+            total += requests.size();
+        }
+        return total;
+    }
+
+    /**
+     * @param commandId CommandId of a PDU
+     * @return CommandID.ordinal(), or the number of CommandIDs if the
+     *         CommandId isn't recognised
+     */
+    private static int index( int commandId )
+    {
+        final int index = Arrays.binarySearch( IDS, commandId );
+        return index < 0 ? COMMAND_IDS.length : ID_ORDINALS[index];
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import org.smpp.pdu.DeliverSM;
+import org.smpp.pdu.PDU;
+import org.smpp.pdu.SubmitSM;
+import org.smpp.util.ByteBuffer;
+
+import static uk.org.youngman.smpp.test.batch.ShortMessageCodec.CODING_GSM;
+import static uk.org.youngman.smpp.test.batch.ShortMessageCodec.CODING_LATIN1;
+import static uk.org.youngman.smpp.test.batch.ShortMessageCodec.CODING_UCS2;
+
+
+/**
+ * Splits the text of a long SUBMIT_SM or DELIVER_SM into concatenated
+ * segments, each carrying a concatenation information element in its user
+ * data header. The data coding is GSM 7 bit if every character is in the
+ * GSM default alphabet and UCS-2 otherwise, unless the batch gives one.
+ * <p>
+ * Segment sizes follow from the 140 octets of user data. A single message
+ * takes 160 GSM septets or 70 UCS-2 characters. A segment with an 8 bit
+ * reference takes 153 septets or 67 characters, and one with a 16 bit
+ * reference 152 septets or 66 characters. Escaped GSM characters and UCS-2
+ * surrogate pairs are never split between segments.
+ */
+class Segmenter
+{
+    /**
+     * Octets of user data in one message
+     */
+    private static final int USER_DATA_OCTETS = 140;
+
+    /**
+     * GSM septets in one message
+     */
+    private static final int SINGLE_SEPTETS = 160;
+
+    /**
+     * Concatenation information element identifiers
+     */
+    private static final byte IEI_CONCAT_8 = 0x00;
+    private static final byte IEI_CONCAT_16 = 0x08;
+
+    /**
+     * esm_class flag for a user data header
+     */
+    private static final byte ESM_CLASS_UDHI = 0x40;
+
+    /**
+     * Most segments in a message
+     */
+    private static final int MAX_SEGMENTS = 255;
+
+
+    /**
+     * Not instantiated
+     */
+    private Segmenter()
+    {
+    }
+
+    /**
+     * Fill in the short message of a PDU, splitting it into segments if it
+     * is too long for one message
+     * @param pdu         SUBMIT_SM or DELIVER_SM, complete except for the
+     *                    short message
+     * @param text        Message text
+     * @param dataCoding  data_coding to use, or -1 to choose one
+     * @param reference16 Use 16 bit rather than 8 bit reference numbers
+     * @param reference   Reference number, or -1 to allocate one each time
+     *                    the message is sent
+     * @param codec       Codec to encode the text with
+     * @return The PDU, or the first of a chain of segments
+     * @throws Exception The PDU can't hold the message
+     */
+    static EncodedPDU segment( PDU pdu, String text, int dataCoding,
+                               boolean reference16, int reference,
+                               ShortMessageCodec codec )
+        throws Exception
+    {
+        if( dataCoding < 0 )
+        {
+            dataCoding = GsmCodec.septets( text ) >= 0 ? CODING_GSM : CODING_UCS2;
+        }
+
+        // Encode the whole text, then choose where to split it
+        final int unit;
+        final int singleCapacity;
+        switch( dataCoding )
+        {
+        case CODING_GSM:
+            unit = 1;
+            singleCapacity = SINGLE_SEPTETS;
+            break;
+        case CODING_UCS2:
+            unit = 2;
+            singleCapacity = USER_DATA_OCTETS;
+            break;
+        case CODING_LATIN1:
+            unit = 1;
+            singleCapacity = USER_DATA_OCTETS;
+            break;
+        default:
+            throw new IllegalArgumentException(
+                "Can't segment messages with data_coding " + dataCoding +
+                ", use " + CODING_GSM + ", " + CODING_LATIN1 + " or " + CODING_UCS2 );
+        }
+        final int length = codec.encode( text, dataCoding );
+        final byte[] encoded = codec.getBuffer();
+
+        setDataCoding( pdu, (byte)dataCoding );
+        if( length <= singleCapacity )
+        {
+            setShortMessage( pdu, encoded, 0, length, null );
+            return new EncodedPDU( pdu );
+        }
+
+        final int headerLength = reference16 ? 7 : 6;
+        final int capacity = dataCoding == CODING_GSM ?
+            ( USER_DATA_OCTETS - headerLength ) * 8 / 7 :
+            ( USER_DATA_OCTETS - headerLength ) / unit * unit;
+
+        // Find the segment boundaries
+        int[] ends = new int[MAX_SEGMENTS];
+        int count = 0;
+        int start = 0;
+        while( start < length )
+        {
+            if( count == MAX_SEGMENTS )
+            {
+                throw new IllegalArgumentException(
+                    "Message needs more than " + MAX_SEGMENTS + " segments" );
+            }
+            int end = Math.min( length, start + capacity );
+            if( end < length && splitsCharacter( encoded, end, dataCoding ) )
+            {
+                end -= unit;
+            }
+            ends[count++] = end;
+            start = end;
+        }
+
+        final byte[] header = new byte[headerLength];
+        header[0] = (byte)( headerLength - 1 );
+        header[1] = reference16 ? IEI_CONCAT_16 : IEI_CONCAT_8;
+        header[2] = (byte)( headerLength - 3 );
+        if( reference16 )
+        {
+            header[3] = (byte)( reference >>> 8 );
+            header[4] = (byte)reference;
+        }
+        else
+        {
+            header[3] = (byte)reference;
+        }
+        header[headerLength - 2] = (byte)count;
+
+        // Each segment is a copy of the PDU with its own short message
+        final ByteBuffer template = pdu.getData();
+        EncodedPDU first = null;
+        EncodedPDU previous = null;
+        start = 0;
+        for( int i = 0; i < count; i++ )
+        {
+            PDU segment = i == 0 ?
+                pdu :
+                PDU.createPDU( new ByteBuffer( template.getBuffer().clone() ) );
+            header[headerLength - 1] = (byte)( i + 1 );
+            setEsmClass( segment );
+            final int shortMessageLength = headerLength + ends[i] - start;
+            setShortMessage( segment, encoded, start, ends[i] - start, header );
+            EncodedPDU part = new EncodedPDU( segment );
+            if( reference < 0 )
+            {
+                // The short message is the last mandatory field
+                part.setReferenceField(
+                    16 + segment.getBody().length() - shortMessageLength + 3,
+                    reference16 );
+            }
+            if( previous == null )
+            {
+                first = part;
+            }
+            else
+            {
+                previous.setNext( part );
+            }
+            previous = part;
+            start = ends[i];
+        }
+        return first;
+    }
+
+    /**
+     * @param encoded    Encoded text
+     * @param end        Proposed end of a segment
+     * @param dataCoding data_coding of the text
+     * @return true if ending a segment there would split a character
+     */
+    private static boolean splitsCharacter( byte[] encoded, int end, int dataCoding )
+    {
+        switch( dataCoding )
+        {
+        case CODING_GSM:
+            return encoded[end - 1] == GsmCodec.ESCAPE;
+        case CODING_UCS2:
+            // A high surrogate, 0xD800 to 0xDBFF, at the end of the segment
+            return ( encoded[end - 2] & 0xFC ) == 0xD8;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param pdu        SUBMIT_SM or DELIVER_SM
+     * @param dataCoding data_coding to set
+     */
+    private static void setDataCoding( PDU pdu, byte dataCoding )
+    {
+        if( pdu instanceof SubmitSM )
+        {
+            ((SubmitSM)pdu).setDataCoding( dataCoding );
+        }
+        else if( pdu instanceof DeliverSM )
+        {
+            ((DeliverSM)pdu).setDataCoding( dataCoding );
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                "Only SUBMIT_SM and DELIVER_SM can be segmented" );
+        }
+    }
+
+    /**
+     * Set the user data header indicator in esm_class
+     * @param pdu SUBMIT_SM or DELIVER_SM
+     */
+    private static void setEsmClass( PDU pdu )
+    {
+        if( pdu instanceof SubmitSM )
+        {
+            SubmitSM submitSM = (SubmitSM)pdu;
+            submitSM.setEsmClass( (byte)( submitSM.getEsmClass() | ESM_CLASS_UDHI ) );
+        }
+        else
+        {
+            DeliverSM deliverSM = (DeliverSM)pdu;
+            deliverSM.setEsmClass( (byte)( deliverSM.getEsmClass() | ESM_CLASS_UDHI ) );
+        }
+    }
+
+    /**
+     * Set the short message of a PDU
+     * @param pdu     SUBMIT_SM or DELIVER_SM
+     * @param encoded Encoded text
+     * @param start   Start of the text for this PDU
+     * @param length  Length of the text for this PDU
+     * @param header  User data header, or null
+     * @throws Exception The PDU can't hold the message
+     */
+    private static void setShortMessage( PDU pdu, byte[] encoded, int start,
+                                         int length, byte[] header )
+        throws Exception
+    {
+        final int headerLength = header == null ? 0 : header.length;
+        byte[] shortMessage = new byte[headerLength + length];
+        if( header != null )
+        {
+            System.arraycopy( header, 0, shortMessage, 0, headerLength );
+        }
+        System.arraycopy( encoded, start, shortMessage, headerLength, length );
+        if( pdu instanceof SubmitSM )
+        {
+            ((SubmitSM)pdu).setShortMessageData( new ByteBuffer( shortMessage ) );
+        }
+        else
+        {
+            ((DeliverSM)pdu).setShortMessageData( new ByteBuffer( shortMessage ) );
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Allocates sequence numbers for a session. The SMPP spec allows sequence
+ * numbers from 1 to 0x7FFFFFFF, so after 0x7FFFFFFF the numbers wrap round
+ * to 1. Allocation is lock free, so any thread sending on the session can
+ * take numbers from the same allocator.
+ */
+class SequenceAllocator
+{
+    /**
+     * Largest sequence number allowed by the SMPP spec
+     */
+    static final int MAX_SEQUENCE_NUMBER = 0x7FFFFFFF;
+
+    /**
+     * Next sequence number to allocate
+     */
+    private AtomicInteger next = new AtomicInteger( 1 );
+
+
+    /**
+     * @return The next sequence number, from 1 to MAX_SEQUENCE_NUMBER
+     */
+    int next()
+    {
+        while( true )
+        {
+            final int current = next.get();
+            final int following = current == MAX_SEQUENCE_NUMBER ? 1 : current + 1;
+            if( next.compareAndSet( current, following ) )
+            {
+                return current;
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+/**
+ * Map from sequence numbers to a timestamp and an int of data, held in
+ * primitive arrays rather than as boxed keys and objects in a HashMap. Each
+ * entry takes 16 bytes, in an open addressing table with linear probing
+ * that is kept at most 3/4 full, so millions of requests can be awaiting
+ * responses without a large heap or much work for the garbage collector.
+ * <p>
+ * Sequence number 0 is never sent, so it marks an empty slot. The index is
+ * not thread safe.
+ */
+class SequenceNumberIndex
+{
+    /**
+     * Sequence number for each slot, or 0 if the slot is empty
+     */
+    private int[] keys;
+
+    /**
+     * Timestamp for each slot
+     */
+    private long[] timestamps;
+
+    /**
+     * Data for each slot
+     */
+    private int[] data;
+
+    private int size = 0;
+    private int mask;
+
+    /**
+     * 32 less the number of bits in a slot number
+     */
+    private int shift;
+
+
+    /**
+     * Constructor
+     * @param initialCapacity Number of entries expected
+     */
+    SequenceNumberIndex( int initialCapacity )
+    {
+        int slots = 16;
+        while( slots * 3 / 4 < initialCapacity )
+        {
+            slots <<= 1;
+        }
+        allocate( slots );
+    }
+
+    /**
+     * Add or replace an entry
+     * @param sequenceNumber Sequence number, not 0
+     * @param timestamp      Timestamp
+     * @param value          Data
+     */
+    void put( int sequenceNumber, long timestamp, int value )
+    {
+        if( sequenceNumber == 0 )
+        {
+            throw new IllegalArgumentException( "Sequence number 0 can't be indexed" );
+        }
+        if( ( size + 1 ) * 4L > keys.length * 3L )
+        {
+            resize( keys.length * 2 );
+        }
+        final int slot = find( sequenceNumber );
+        if( keys[slot] == 0 )
+        {
+            keys[slot] = sequenceNumber;
+            size++;
+        }
+        timestamps[slot] = timestamp;
+        data[slot] = value;
+    }
+
+    /**
+     * Look up an entry
+     * @param sequenceNumber Sequence number
+     * @return Slot holding the entry, or -1 if there is none
+     */
+    int get( int sequenceNumber )
+    {
+        if( sequenceNumber == 0 )
+        {
+            return -1;
+        }
+        final int slot = find( sequenceNumber );
+        return keys[slot] == 0 ? -1 : slot;
+    }
+
+    /**
+     * @param slot Slot returned by get()
+     * @return Timestamp of the entry
+     */
+    long getTimestamp( int slot )
+    {
+        return timestamps[slot];
+    }
+
+    /**
+     * @param slot Slot returned by get()
+     * @return Data of the entry
+     */
+    int getData( int slot )
+    {
+        return data[slot];
+    }
+
+    /**
+     * Remove an entry. Other slots from get() are no longer valid.
+     * @param slot Slot returned by get()
+     */
+    void remove( int slot )
+    {
+        int gap = slot;
+        int next = ( gap + 1 ) & mask;
+        while( keys[next] != 0 )
+        {
+            final int home = home( keys[next] );
+            // Move the entry back if the gap lies between its home and
+            // where it is now
+            if( ( ( next - home ) & mask ) >= ( ( next - gap ) & mask ) )
+            {
+                keys[gap] = keys[next];
+                timestamps[gap] = timestamps[next];
+                data[gap] = data[next];
+                gap = next;
+            }
+            next = ( next + 1 ) & mask;
+        }
+        keys[gap] = 0;
+        size--;
+    }
+
+    /**
+     * Remove every entry older than a cutoff
+     * @param cutoff Entries with timestamps at or before this are removed
+     * @return Number of entries removed
+     */
+    int expire( long cutoff )
+    {
+        int removed = 0;
+        for( int slot = 0; slot <= mask; slot++ )
+        {
+            // Check the slot again, as a later entry may move into it
+            while( keys[slot] != 0 && timestamps[slot] - cutoff <= 0 )
+            {
+                remove( slot );
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return Number of entries
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Find the slot holding a sequence number, or the empty slot where it
+     * would go
+     * @param sequenceNumber Sequence number
+     * @return Slot number
+     */
+    private int find( int sequenceNumber )
+    {
+        int slot = home( sequenceNumber );
+        while( keys[slot] != 0 && keys[slot] != sequenceNumber )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param sequenceNumber Sequence number
+     * @return Preferred slot for the sequence number. Sequence numbers are
+     *         mostly consecutive, so they are scrambled (Fibonacci hashing)
+     *         to avoid long runs of full slots.
+     */
+    private int home( int sequenceNumber )
+    {
+        return ( sequenceNumber * 0x9E3779B9 ) >>> shift;
+    }
+
+    /**
+     * Move the entries to a larger table
+     * @param slots New number of slots, a power of 2
+     */
+    private void resize( int slots )
+    {
+        final int[] oldKeys = keys;
+        final long[] oldTimestamps = timestamps;
+        final int[] oldData = data;
+        allocate( slots );
+        for( int slot = 0; slot < oldKeys.length; slot++ )
+        {
+            if( oldKeys[slot] != 0 )
+            {
+                final int newSlot = find( oldKeys[slot] );
+                keys[newSlot] = oldKeys[slot];
+                timestamps[newSlot] = oldTimestamps[slot];
+                data[newSlot] = oldData[slot];
+            }
+        }
+    }
+
+    /**
+     * Allocate empty arrays
+     * @param slots Number of slots, a power of 2
+     */
+    private void allocate( int slots )
+    {
+        keys = new int[slots];
+        timestamps = new long[slots];
+        data = new int[slots];
+        mask = slots - 1;
+        shift = Integer.numberOfLeadingZeros( slots ) + 1;
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.io.PrintWriter;
+import org.smpp.util.ByteBuffer;
+
+
+/**
+ * Converts short message text to and from octets, choosing the character
+ * set from the data_coding of the PDU.
+ * <ul>
+ * <li>0, the SMSC default alphabet, is taken to be the GSM 03.38 default
+ *     alphabet, one septet per octet</li>
+ * <li>1 is IA5 (ASCII)</li>
+ * <li>3 is Latin-1</li>
+ * <li>8 is UCS-2</li>
+ * <li>anything else is UTF-8, which these tools always used before</li>
+ * </ul>
+ * Text is encoded into a buffer and decoded into a StringBuilder, both of
+ * which are reused, so no intermediate Strings or byte arrays are created.
+ * An instance is not thread safe; forThread() gives each thread its own.
+ */
+class ShortMessageCodec
+{
+    /**
+     * data_coding values with their own character sets
+     */
+    static final int CODING_GSM = 0;
+    static final int CODING_IA5 = 1;
+    static final int CODING_LATIN1 = 3;
+    static final int CODING_UCS2 = 8;
+
+    /**
+     * Written for characters that can't be encoded
+     */
+    private static final byte REPLACEMENT = '?';
+
+    /**
+     * Decoded from octets that aren't valid
+     */
+    private static final char INVALID = '\uFFFD';
+
+    /**
+     * Codec for each thread
+     */
+    private static final ThreadLocal<ShortMessageCodec> CODECS =
+        new ThreadLocal<ShortMessageCodec>()
+        {
+            @Override
+            protected ShortMessageCodec initialValue()
+            {
+                return new ShortMessageCodec();
+            }
+        };
+
+    /**
+     * Encoded octets
+     */
+    private byte[] buffer = new byte[256];
+
+    /**
+     * Decoded text
+     */
+    private final StringBuilder text = new StringBuilder( 160 );
+
+    /**
+     * Decoded text copied out for writing
+     */
+    private char[] chars = new char[160];
+
+
+    /**
+     * @return The calling thread's codec
+     */
+    static ShortMessageCodec forThread()
+    {
+        return CODECS.get();
+    }
+
+    /**
+     * Encode text into the buffer
+     * @param text       Text to encode
+     * @param dataCoding data_coding of the PDU
+     * @return Number of octets, which are in getBuffer()
+     */
+    int encode( CharSequence text, int dataCoding )
+    {
+        final int length = text.length();
+        // 3 octets per character is enough for any coding
+        if( buffer.length < 3 * length )
+        {
+            buffer = new byte[Math.max( 3 * length, 2 * buffer.length )];
+        }
+        switch( dataCoding )
+        {
+        case CODING_GSM:
+            return GsmCodec.encodeUnpacked( text, buffer, 0 );
+        case CODING_IA5:
+            return encodeSingleOctet( text, 0x80 );
+        case CODING_LATIN1:
+            return encodeSingleOctet( text, 0x100 );
+        case CODING_UCS2:
+            for( int i = 0; i < length; i++ )
+            {
+                final char c = text.charAt( i );
+                buffer[2 * i] = (byte)( c >>> 8 );
+                buffer[2 * i + 1] = (byte)c;
+            }
+            return 2 * length;
+        default:
+            return encodeUtf8( text );
+        }
+    }
+
+    /**
+     * Encode text, after a user data header if there is one
+     * @param text       Text to encode
+     * @param dataCoding data_coding of the PDU
+     * @param header     User data header, or null
+     * @return Short message data
+     */
+    ByteBuffer encode( CharSequence text, int dataCoding, byte[] header )
+    {
+        final int length = encode( text, dataCoding );
+        final int headerLength = header == null ? 0 : header.length;
+        // The PDU keeps this, so it can't be reused
+        byte[] data = new byte[headerLength + length];
+        if( header != null )
+        {
+            System.arraycopy( header, 0, data, 0, headerLength );
+        }
+        System.arraycopy( buffer, 0, data, headerLength, length );
+        return new ByteBuffer( data );
+    }
+
+    /**
+     * @return Octets written by the last encode()
+     */
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Decode octets
+     * @param data       Octets to decode, may be null if length is 0
+     * @param offset     Offset of the first octet
+     * @param length     Number of octets
+     * @param dataCoding data_coding of the PDU
+     * @return The text, which is only valid until the next call
+     */
+    CharSequence decode( byte[] data, int offset, int length, int dataCoding )
+    {
+        text.setLength( 0 );
+        final int end = offset + length;
+        switch( dataCoding )
+        {
+        case CODING_GSM:
+            GsmCodec.decodeUnpacked( data, offset, length, text );
+            break;
+        case CODING_IA5:
+            for( int i = offset; i < end; i++ )
+            {
+                text.append( data[i] >= 0 ? (char)data[i] : INVALID );
+            }
+            break;
+        case CODING_LATIN1:
+            for( int i = offset; i < end; i++ )
+            {
+                text.append( (char)( data[i] & 0xFF ) );
+            }
+            break;
+        case CODING_UCS2:
+            // An odd octet at the end is ignored
+            for( int i = offset; i + 1 < end; i += 2 )
+            {
+                text.append( (char)( ( data[i] & 0xFF ) << 8 | data[i + 1] & 0xFF ) );
+            }
+            break;
+        default:
+            decodeUtf8( data, offset, end );
+            break;
+        }
+        return text;
+    }
+
+    /**
+     * Decode octets and write the text, without creating a String
+     * @param out        Where to write the text
+     * @param data       Octets to decode, may be null if length is 0
+     * @param offset     Offset of the first octet
+     * @param length     Number of octets
+     * @param dataCoding data_coding of the PDU
+     */
+    void decode( PrintWriter out, byte[] data, int offset, int length, int dataCoding )
+    {
+        decode( data, offset, length, dataCoding );
+        final int count = text.length();
+        if( chars.length < count )
+        {
+            chars = new char[count];
+        }
+        text.getChars( 0, count, chars, 0 );
+        out.write( chars, 0, count );
+    }
+
+    /**
+     * Encode characters that take one octet each
+     * @param text  Text to encode
+     * @param limit First character that can't be encoded
+     * @return Number of octets
+     */
+    private int encodeSingleOctet( CharSequence text, int limit )
+    {
+        final int length = text.length();
+        for( int i = 0; i < length; i++ )
+        {
+            final char c = text.charAt( i );
+            buffer[i] = c < limit ? (byte)c : REPLACEMENT;
+        }
+        return length;
+    }
+
+    /**
+     * Encode text as UTF-8
+     * @param text Text to encode
+     * @return Number of octets
+     */
+    private int encodeUtf8( CharSequence text )
+    {
+        final int length = text.length();
+        int position = 0;
+        for( int i = 0; i < length; i++ )
+        {
+            int c = text.charAt( i );
+            if( c < 0x80 )
+            {
+                buffer[position++] = (byte)c;
+            }
+            else if( c < 0x800 )
+            {
+                buffer[position++] = (byte)( 0xC0 | c >>> 6 );
+                buffer[position++] = (byte)( 0x80 | c & 0x3F );
+            }
+            else if( Character.isHighSurrogate( (char)c ) && i + 1 < length &&
+                     Character.isLowSurrogate( text.charAt( i + 1 ) ) )
+            {
+                c = Character.toCodePoint( (char)c, text.charAt( ++i ) );
+                buffer[position++] = (byte)( 0xF0 | c >>> 18 );
+                buffer[position++] = (byte)( 0x80 | c >>> 12 & 0x3F );
+                buffer[position++] = (byte)( 0x80 | c >>> 6 & 0x3F );
+                buffer[position++] = (byte)( 0x80 | c & 0x3F );
+            }
+            else if( isSurrogate( c ) )
+            {
+                buffer[position++] = REPLACEMENT;
+            }
+            else
+            {
+                buffer[position++] = (byte)( 0xE0 | c >>> 12 );
+                buffer[position++] = (byte)( 0x80 | c >>> 6 & 0x3F );
+                buffer[position++] = (byte)( 0x80 | c & 0x3F );
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Decode UTF-8 into the text
+     * @param data  Octets to decode
+     * @param start Offset of the first octet
+     * @param end   Offset after the last octet
+     */
+    private void decodeUtf8( byte[] data, int start, int end )
+    {
+        int i = start;
+        while( i < end )
+        {
+            final int b = data[i++] & 0xFF;
+            final int extra;
+            int c;
+            if( b < 0x80 )
+            {
+                text.append( (char)b );
+                continue;
+            }
+            else if( b >= 0xC2 && b < 0xE0 )
+            {
+                extra = 1;
+                c = b & 0x1F;
+            }
+            else if( b >= 0xE0 && b < 0xF0 )
+            {
+                extra = 2;
+                c = b & 0x0F;
+            }
+            else if( b >= 0xF0 && b < 0xF5 )
+            {
+                extra = 3;
+                c = b & 0x07;
+            }
+            else
+            {
+                text.append( INVALID );
+                continue;
+            }
+
+            int j = 0;
+            while( j < extra && i < end && ( data[i] & 0xC0 ) == 0x80 )
+            {
+                c = c << 6 | data[i++] & 0x3F;
+                j++;
+            }
+            if( j < extra || c > Character.MAX_CODE_POINT ||
+                ( extra == 2 && ( c < 0x800 || isSurrogate( c ) ) ) ||
+                ( extra == 3 && c < 0x10000 ) )
+            {
+                text.append( INVALID );
+            }
+            else
+            {
+                text.appendCodePoint( c );
+            }
+        }
+    }
+
+    /**
+     * @param c Character
+     * @return true if c is half of a surrogate pair
+     */
+    private static boolean isSurrogate( int c )
+    {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.batch;
+
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * A batch whose events are passed from the reader to the runner through a
+ * queue of limited size, so that the batch can run while it is being read.
+ * The reader blocks when the queue is full. The events can only be run
+ * once.
+ */
+class StreamingBatch extends Batch
+{
+    /**
+     * Marks the end of the batch in the queue
+     */
+    private static final Event END = new DisconnectEvent();
+
+    private BlockingQueue<Event> queue;
+
+    /**
+     * Set if the reader stopped because of an error
+     */
+    private volatile boolean failed = false;
+
+    private boolean started = false;
+
+
+    /**
+     * Constructor
+     * @param queueSize Maximum number of events read ahead of the run
+     */
+    StreamingBatch( int queueSize )
+    {
+        queue = new ArrayBlockingQueue<Event>( queueSize );
+    }
+
+    /**
+     * Add an event, waiting for room in the queue if necessary
+     * @param event Event to add
+     */
+    @Override
+    protected void addEvent( Event event )
+    {
+        try
+        {
+            queue.put( event );
+        }
+        catch( InterruptedException e )
+        {
+            throw new IllegalStateException( "Interrupted adding event to batch", e );
+        }
+    }
+
+    /**
+     * Mark the end of the batch. Called by the reader when it has finished.
+     */
+    void finish()
+    {
+        try
+        {
+            queue.put( END );
+        }
+        catch( InterruptedException e )
+        {
+            System.err.println( "Interrupted finishing batch" );
+        }
+    }
+
+    /**
+     * Record that the reader stopped because of an error
+     */
+    void setFailed()
+    {
+        failed = true;
+    }
+
+    /**
+     * @return true if the reader stopped because of an error
+     */
+    boolean isFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * @return Iterator taking events from the queue until the reader finishes
+     */
+    @Override
+    protected synchronized Iterator<Event> rawEvents()
+    {
+        if( started )
+        {
+            throw new IllegalStateException( "A streamed batch can only be run once" );
+        }
+        started = true;
+
+        return new Iterator<Event>()
+        {
+            private Event next = null;
+
+            public boolean hasNext()
+            {
+                if( next == null )
+                {
+                    try
+                    {
+                        next = queue.take();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        System.err.println( "Interrupted reading batch" );
+                        next = END;
+                    }
+                }
+                return next != END;
+            }
+
+            public Event next()
+            {
+                if( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                Event event = next;
+                next = null;
+                return event;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
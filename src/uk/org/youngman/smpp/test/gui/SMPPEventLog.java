@@ -22,6 +22,7 @@ import org.smpp.pdu.PDU;
 import org.smpp.pdu.Response;
 import org.smpp.pdu.ValueNotSetException;
 import uk.org.youngman.smpp.test.SMPPEvent;
+import uk.org.youngman.smpp.test.SMPPStats;
 
 
 import static uk.org.youngman.smpp.test.SMPPEvent.EventType;
@@ -35,6 +36,11 @@ public class SMPPEventLog
     private JFrame parent;
     private Session session = null;
 
+    /**
+     * Counts of the PDUs logged, for JMX
+     */
+    private SMPPStats stats = new SMPPStats();
+
     SMPPEventLog( JFrame parent )
     {
         this.parent = parent;
@@ -106,6 +112,24 @@ public class SMPPEventLog
         displayArea.append( TIMESTAMP_FORMAT.format( time ) + " " +
                                     message + "\n" );
         events.add( new SMPPEvent( time, type, pdu, message ) );
+        if( pdu != null && type == EventType.SENT_PDU )
+        {
+            stats.sent( pdu.getCommandId(), pdu.getCommandLength() );
+        }
+        else if( pdu != null && type == EventType.RECEIVED_PDU )
+        {
+            stats.received( pdu.getCommandId(), pdu.getCommandStatus(),
+                            pdu.getCommandLength() );
+        }
+    }
+
+
+    /**
+     * @return Counts of the PDUs sent and received
+     */
+    SMPPStats getStats()
+    {
+        return stats;
     }
 
 
@@ -126,6 +126,8 @@ public class TestMainDialog
         // Set the main panel and lay it out
         super.setContentPane( mainPanel );
         pack();
+
+        m_EventLog.getStats().register( "TestClient" );
     }
 
 
@@ -153,6 +155,7 @@ public class TestMainDialog
                     if( connection.isOpened() )
                     {
                         session = new Session( connection );
+                        m_EventLog.getStats().sessionOpened();
                         m_EventLog.setSession( session );
                         m_EventLog.logEvent( new Date(), CONNECT_TO_SMSC, null,
                                              "Connected to " + dialog
@@ -234,6 +237,7 @@ public class TestMainDialog
             try
             {
                 session.getConnection().close();
+                m_EventLog.getStats().sessionClosed();
                 m_EventLog.setSession( null );
                 m_EventLog.logEvent( new Date(),
                           DISCONNECT_FROM_SMSC,
@@ -290,6 +294,7 @@ public class TestMainDialog
             {
                 receiver.stop();
             }
+            m_EventLog.getStats().unregister();
             TestMainDialog.this.setVisible( false );
             TestMainDialog.this.dispose();
         }
@@ -0,0 +1,553 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ */
+
+package uk.org.youngman.smpp.test.smsc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.smpp.Data;
+import uk.org.youngman.smpp.test.batch.Batch.CommandID;
+import uk.org.youngman.smpp.test.batch.Batch.CommandStatus;
+
+
+/**
+ * One ESME session of the SMSC simulator. Requests are read into a reused
+ * buffer and their responses are encoded straight into an output buffer,
+ * so answering a request creates no objects. The output buffer is written
+ * to the socket when no more of the request stream is waiting to be read,
+ * or when it fills up.
+ */
+class SmscSession implements Runnable
+{
+    /**
+     * Largest PDU accepted
+     */
+    private static final int MAX_PDU_LENGTH = 65536;
+
+    private static final int HEADER_LENGTH = 16;
+
+    /**
+     * Longest message id echoed in a QUERY_SM_RESP
+     */
+    private static final int MAX_MESSAGE_ID_LENGTH = 64;
+
+    /**
+     * Bit set in the command id of a response
+     */
+    private static final int RESPONSE = 0x80000000;
+
+    /**
+     * registered_delivery bits asking for a receipt
+     */
+    private static final int RECEIPT_REQUESTED = 0x03;
+
+    /**
+     * esm_class of a delivery receipt
+     */
+    private static final byte ESM_CLASS_DELIVERY_RECEIPT = 0x04;
+
+    /**
+     * message_state of a delivered message
+     */
+    private static final byte STATE_DELIVERED = 2;
+
+    private static final byte[] HEX_DIGITS =
+        { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    /**
+     * Command ids in order, with the CommandID ordinal of each
+     */
+    private static final int[] COMMAND_IDS;
+    private static final int[] ORDINALS;
+
+    static
+    {
+        final CommandID[] values = CommandID.values();
+        COMMAND_IDS = new int[values.length];
+        for( int i = 0; i < values.length; i++ )
+        {
+            COMMAND_IDS[i] = values[i].getId();
+        }
+        Arrays.sort( COMMAND_IDS );
+        ORDINALS = new int[values.length];
+        for( CommandID value: values )
+        {
+            ORDINALS[Arrays.binarySearch( COMMAND_IDS, value.getId() )] = value.ordinal();
+        }
+    }
+
+    private SmscSimulator simulator;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+
+    /**
+     * Body of the request being handled
+     */
+    private byte[] body = new byte[1024];
+
+    /**
+     * Responses and receipts waiting to be written
+     */
+    private final byte[] output = new byte[65536];
+    private int outputLength = 0;
+
+    /**
+     * Offset in the output buffer of the PDU being written
+     */
+    private int pduStart;
+
+    /**
+     * Command id the session is bound with, or 0 before it is bound
+     */
+    private int bindType = 0;
+
+    private int nextSequence = 1;
+
+    /**
+     * Messages accepted, for choosing which to fail
+     */
+    private long messages = 0;
+
+    /**
+     * PDUs received, indexed by CommandID.ordinal(), with unrecognised
+     * commands at the end
+     */
+    private final AtomicLongArray counts =
+        new AtomicLongArray( CommandID.values().length + 1 );
+
+    /**
+     * Date for receipts, reformatted each minute
+     */
+    private final SimpleDateFormat receiptDateFormat =
+        new SimpleDateFormat( "yyMMddHHmm" );
+    private String receiptDate;
+    private long receiptMinute = -1;
+
+
+    /**
+     * Constructor
+     * @param simulator Simulator the session belongs to
+     * @param socket    Connected socket
+     */
+    SmscSession( SmscSimulator simulator, Socket socket )
+    {
+        this.simulator = simulator;
+        this.socket = socket;
+    }
+
+    /**
+     * @param index CommandID.ordinal(), or the number of CommandIDs for
+     *              unrecognised commands
+     * @return Number of those PDUs received
+     */
+    long getCount( int index )
+    {
+        return counts.get( index );
+    }
+
+    public void run()
+    {
+        try
+        {
+            in = new DataInputStream(
+                new BufferedInputStream( socket.getInputStream(), 65536 ) );
+            out = socket.getOutputStream();
+            while( handle() )
+            {
+                if( in.available() == 0 )
+                {
+                    flush();
+                }
+            }
+            flush();
+        }
+        catch( EOFException e )
+        {
+            // The ESME closed the connection
+        }
+        catch( IOException e )
+        {
+            System.err.println( Thread.currentThread().getName() + ": " + e.getMessage() );
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch( IOException e )
+            {
+                // Nothing more to do
+            }
+            simulator.closed( this );
+        }
+    }
+
+    /**
+     * Read one PDU and answer it
+     * @return false if the session should close
+     * @throws IOException The connection failed
+     */
+    private boolean handle() throws IOException
+    {
+        final int length = in.readInt();
+        final int commandId = in.readInt();
+        in.readInt();   // command_status
+        final int sequence = in.readInt();
+        if( length < HEADER_LENGTH || length > MAX_PDU_LENGTH )
+        {
+            startPDU( Data.GENERIC_NACK, CommandStatus.ESME_RINVCMDLEN.getStatus(), sequence );
+            endPDU();
+            return false;
+        }
+        final int bodyLength = length - HEADER_LENGTH;
+        if( body.length < bodyLength )
+        {
+            body = new byte[Math.max( bodyLength, 2 * body.length )];
+        }
+        in.readFully( body, 0, bodyLength );
+
+        final int index = Arrays.binarySearch( COMMAND_IDS, commandId );
+        counts.incrementAndGet( index < 0 ? ORDINALS.length : ORDINALS[index] );
+
+        if( ( commandId & RESPONSE ) != 0 )
+        {
+            // Responses to receipts need no action
+            return true;
+        }
+        if( bindType == 0 )
+        {
+            return handleUnbound( commandId, sequence );
+        }
+
+        switch( commandId )
+        {
+        case Data.SUBMIT_SM:
+        case Data.DATA_SM:
+            submit( commandId, sequence, bodyLength );
+            break;
+        case Data.QUERY_SM:
+            startPDU( Data.QUERY_SM_RESP, 0, sequence );
+            // Echo the message id, then an empty final_date
+            putBytes( 0, Math.min( skipCString( 0, bodyLength ) - 1, MAX_MESSAGE_ID_LENGTH ) );
+            putByte( (byte)0 );
+            putByte( (byte)0 );
+            putByte( STATE_DELIVERED );
+            putByte( (byte)0 );   // error_code
+            endPDU();
+            break;
+        case Data.CANCEL_SM:
+        case Data.REPLACE_SM:
+        case Data.ENQUIRE_LINK:
+            startPDU( commandId | RESPONSE, 0, sequence );
+            endPDU();
+            break;
+        case Data.UNBIND:
+            startPDU( Data.UNBIND_RESP, 0, sequence );
+            endPDU();
+            return false;
+        case Data.BIND_RECEIVER:
+        case Data.BIND_TRANSMITTER:
+        case Data.BIND_TRANSCEIVER:
+            startPDU( commandId | RESPONSE, CommandStatus.ESME_RALYBND.getStatus(), sequence );
+            endPDU();
+            break;
+        default:
+            startPDU( Data.GENERIC_NACK, CommandStatus.ESME_RINVCMDID.getStatus(), sequence );
+            endPDU();
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Answer a request before the session is bound
+     * @param commandId Command id of the request
+     * @param sequence  Sequence number of the request
+     * @return false if the session should close
+     */
+    private boolean handleUnbound( int commandId, int sequence )
+    {
+        switch( commandId )
+        {
+        case Data.BIND_RECEIVER:
+        case Data.BIND_TRANSMITTER:
+        case Data.BIND_TRANSCEIVER:
+            bindType = commandId;
+            startPDU( commandId | RESPONSE, 0, sequence );
+            putCString( SmscSimulator.SYSTEM_ID );
+            endPDU();
+            return true;
+        case Data.ENQUIRE_LINK:
+            startPDU( Data.ENQUIRE_LINK_RESP, 0, sequence );
+            endPDU();
+            return true;
+        case Data.UNBIND:
+            startPDU( Data.UNBIND_RESP, 0, sequence );
+            endPDU();
+            return false;
+        default:
+            startPDU( Data.GENERIC_NACK, CommandStatus.ESME_RINVBNDSTS.getStatus(), sequence );
+            endPDU();
+            return true;
+        }
+    }
+
+    /**
+     * Answer a SUBMIT_SM or DATA_SM, and send a receipt if one is wanted
+     * @param commandId  Command id of the request
+     * @param sequence   Sequence number of the request
+     * @param bodyLength Length of the request body
+     */
+    private void submit( int commandId, int sequence, int bodyLength )
+    {
+        messages++;
+        final int failEvery = simulator.getFailEvery();
+        if( failEvery > 0 && messages % failEvery == 0 )
+        {
+            startPDU( commandId | RESPONSE, simulator.getFailStatus(), sequence );
+            endPDU();
+            return;
+        }
+
+        final long messageId = simulator.allocateMessageId();
+        startPDU( commandId | RESPONSE, 0, sequence );
+        putHex( messageId );
+        putByte( (byte)0 );
+        endPDU();
+
+        if( simulator.isReceipts() && bindType != Data.BIND_TRANSMITTER )
+        {
+            receipt( commandId, bodyLength, messageId );
+        }
+    }
+
+    /**
+     * Send a delivery receipt for a message if it asked for one
+     * @param commandId  SUBMIT_SM or DATA_SM
+     * @param bodyLength Length of the message body
+     * @param messageId  Message id given to the message
+     */
+    private void receipt( int commandId, int bodyLength, long messageId )
+    {
+        // service_type, then the source and destination addresses
+        int position = skipCString( 0, bodyLength );
+        final int source = position;
+        position = skipCString( position + 2, bodyLength );
+        final int destination = position;
+        position = skipCString( position + 2, bodyLength );
+        final int registeredDelivery;
+        if( commandId == Data.SUBMIT_SM )
+        {
+            // esm_class, protocol_id, priority_flag and 2 times
+            position = skipCString( position + 3, bodyLength );
+            position = skipCString( position, bodyLength );
+            registeredDelivery = position;
+        }
+        else
+        {
+            registeredDelivery = position + 1;
+        }
+        if( registeredDelivery >= bodyLength ||
+            ( body[registeredDelivery] & RECEIPT_REQUESTED ) == 0 )
+        {
+            return;
+        }
+
+        final long minute = System.currentTimeMillis() / 60000;
+        if( minute != receiptMinute )
+        {
+            receiptMinute = minute;
+            receiptDate = receiptDateFormat.format( new Date( minute * 60000 ) );
+        }
+
+        // The receipt goes back from the destination to the source
+        startPDU( Data.DELIVER_SM, 0, nextSequence() );
+        putByte( (byte)0 );   // service_type
+        putBytes( destination, skipCString( destination + 2, bodyLength ) - destination );
+        putBytes( source, skipCString( source + 2, bodyLength ) - source );
+        putByte( ESM_CLASS_DELIVERY_RECEIPT );
+        putByte( (byte)0 );   // protocol_id
+        putByte( (byte)0 );   // priority_flag
+        putByte( (byte)0 );   // schedule_delivery_time
+        putByte( (byte)0 );   // validity_period
+        putByte( (byte)0 );   // registered_delivery
+        putByte( (byte)0 );   // replace_if_present_flag
+        putByte( (byte)0 );   // data_coding
+        putByte( (byte)0 );   // sm_default_msg_id
+        final int smLength = outputLength;
+        putByte( (byte)0 );
+        putAscii( "id:" );
+        putHex( messageId );
+        putAscii( " sub:001 dlvrd:001 submit date:" );
+        putAscii( receiptDate );
+        putAscii( " done date:" );
+        putAscii( receiptDate );
+        putAscii( " stat:DELIVRD err:000 text:" );
+        output[smLength] = (byte)( outputLength - smLength - 1 );
+
+        // receipted_message_id and message_state
+        putShort( Data.OPT_PAR_RECP_MSG_ID );
+        final int tlvLength = outputLength;
+        putShort( (short)0 );
+        putHex( messageId );
+        putByte( (byte)0 );
+        output[tlvLength + 1] = (byte)( outputLength - tlvLength - 2 );
+        putShort( Data.OPT_PAR_MSG_STATE );
+        putShort( (short)1 );
+        putByte( STATE_DELIVERED );
+        endPDU();
+    }
+
+    /**
+     * @param position Offset in the body of a C-Octet string
+     * @param limit    Length of the body
+     * @return Offset after the string
+     */
+    private int skipCString( int position, int limit )
+    {
+        while( position < limit && body[position] != 0 )
+        {
+            position++;
+        }
+        return position + 1;
+    }
+
+    /**
+     * @return Sequence number for a request sent to the ESME
+     */
+    private int nextSequence()
+    {
+        final int sequence = nextSequence;
+        nextSequence = sequence == Integer.MAX_VALUE ? 1 : sequence + 1;
+        return sequence;
+    }
+
+    /**
+     * Start a PDU in the output buffer. Its length is filled in by
+     * endPDU().
+     * @param commandId Command id
+     * @param status    Command status
+     * @param sequence  Sequence number
+     */
+    private void startPDU( int commandId, int status, int sequence )
+    {
+        if( output.length - outputLength < 1024 )
+        {
+            flushQuietly();
+        }
+        pduStart = outputLength;
+        putInt( 0 );
+        putInt( commandId );
+        putInt( status );
+        putInt( sequence );
+    }
+
+    /**
+     * Fill in the length of the PDU just written
+     */
+    private void endPDU()
+    {
+        final int length = outputLength - pduStart;
+        output[pduStart] = (byte)( length >>> 24 );
+        output[pduStart + 1] = (byte)( length >>> 16 );
+        output[pduStart + 2] = (byte)( length >>> 8 );
+        output[pduStart + 3] = (byte)length;
+    }
+
+    private void putByte( byte value )
+    {
+        output[outputLength++] = value;
+    }
+
+    private void putShort( short value )
+    {
+        output[outputLength++] = (byte)( value >>> 8 );
+        output[outputLength++] = (byte)value;
+    }
+
+    private void putInt( int value )
+    {
+        output[outputLength++] = (byte)( value >>> 24 );
+        output[outputLength++] = (byte)( value >>> 16 );
+        output[outputLength++] = (byte)( value >>> 8 );
+        output[outputLength++] = (byte)value;
+    }
+
+    /**
+     * @param offset Offset in the request body
+     * @param length Number of bytes to copy from the request body
+     */
+    private void putBytes( int offset, int length )
+    {
+        System.arraycopy( body, offset, output, outputLength, length );
+        outputLength += length;
+    }
+
+    private void putAscii( String value )
+    {
+        for( int i = 0; i < value.length(); i++ )
+        {
+            output[outputLength++] = (byte)value.charAt( i );
+        }
+    }
+
+    private void putCString( String value )
+    {
+        putAscii( value );
+        putByte( (byte)0 );
+    }
+
+    /**
+     * Write a number in lower case hex without leading zeroes
+     * @param value Number to write, not negative
+     */
+    private void putHex( long value )
+    {
+        int shift = ( 63 - Long.numberOfLeadingZeros( value | 1 ) ) / 4 * 4;
+        for( ; shift >= 0; shift -= 4 )
+        {
+            output[outputLength++] = HEX_DIGITS[(int)( value >>> shift ) & 0x0F];
+        }
+    }
+
+    /**
+     * Write out the output buffer
+     * @throws IOException The connection failed
+     */
+    private void flush() throws IOException
+    {
+        if( outputLength > 0 )
+        {
+            out.write( output, 0, outputLength );
+            outputLength = 0;
+        }
+    }
+
+    /**
+     * Write out the output buffer while encoding a PDU. A failure is
+     * reported by the next read.
+     */
+    private void flushQuietly()
+    {
+        try
+        {
+            flush();
+        }
+        catch( IOException e )
+        {
+            outputLength = 0;
+        }
+    }
+}
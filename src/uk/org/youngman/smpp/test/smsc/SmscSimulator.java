@@ -0,0 +1,309 @@
+/**
+ * Original Author: Neil Youngman
+ * Released under the GNU General Public License version 2.0 or later.
+ *
+ * The SMSC simulator accepts binds from any number of ESMEs and answers
+ * their requests straight away, so the batch and GUI tools can be tested
+ * and benchmarked without a real SMSC or any network access.
+ */
+
+package uk.org.youngman.smpp.test.smsc;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import uk.org.youngman.smpp.test.batch.Batch.CommandID;
+import uk.org.youngman.smpp.test.batch.Batch.CommandStatus;
+
+
+/**
+ * A simple SMSC for load testing. Binds of any kind are accepted with any
+ * system id and password. SUBMIT_SM and DATA_SM are accepted with a new
+ * message id, QUERY_SM reports the message as delivered, and CANCEL_SM,
+ * REPLACE_SM, ENQUIRE_LINK and UNBIND succeed. Any other request gets a
+ * GENERIC_NACK.
+ * <p>
+ * Each session has its own thread, which writes responses into a buffer
+ * that is only sent when there are no more requests waiting to be read, so
+ * a busy session answers many requests in each write.
+ */
+public class SmscSimulator
+{
+    /**
+     * system_id returned in bind responses
+     */
+    static final String SYSTEM_ID = "SmscSimulator";
+
+    /**
+     * Time between reports of the PDUs received
+     */
+    private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+    private int port;
+
+    /**
+     * Send delivery receipts when they are requested
+     */
+    private boolean receipts = false;
+
+    /**
+     * Status for failed messages, and how often messages fail, or 0 if
+     * they never fail
+     */
+    private int failStatus = 0;
+    private int failEvery = 0;
+
+    /**
+     * Next message id to allocate
+     */
+    private final AtomicLong nextMessageId = new AtomicLong( 1 );
+
+    /**
+     * Open sessions
+     */
+    private final List<SmscSession> sessions =
+        new CopyOnWriteArrayList<SmscSession>();
+
+    /**
+     * PDUs received by sessions that have closed, indexed by
+     * CommandID.ordinal(), with unrecognised commands at the end
+     */
+    private final AtomicLongArray closedCounts =
+        new AtomicLongArray( CommandID.values().length + 1 );
+
+
+    /**
+     * Constructor
+     * @param port Port to listen on
+     */
+    public SmscSimulator( int port )
+    {
+        this.port = port;
+    }
+
+    /**
+     * @param receipts Send delivery receipts on receiver and transceiver
+     *                 sessions when registered_delivery asks for them
+     */
+    public void setReceipts( boolean receipts )
+    {
+        this.receipts = receipts;
+    }
+
+    /**
+     * Fail some messages
+     * @param status Status of the failed responses
+     * @param every  Fail every Nth SUBMIT_SM or DATA_SM on each session, or
+     *               0 to accept them all
+     */
+    public void setFailures( CommandStatus status, int every )
+    {
+        if( every < 0 )
+        {
+            throw new IllegalArgumentException( "Failure interval can't be negative" );
+        }
+        this.failStatus = status.getStatus();
+        this.failEvery = every;
+    }
+
+    /**
+     * @return true if delivery receipts are sent
+     */
+    boolean isReceipts()
+    {
+        return receipts;
+    }
+
+    /**
+     * @return Status of failed responses
+     */
+    int getFailStatus()
+    {
+        return failStatus;
+    }
+
+    /**
+     * @return Interval between failed messages, or 0 if none fail
+     */
+    int getFailEvery()
+    {
+        return failEvery;
+    }
+
+    /**
+     * @return A new message id
+     */
+    long allocateMessageId()
+    {
+        return nextMessageId.getAndIncrement();
+    }
+
+    /**
+     * Record the PDUs received by a session that has closed
+     * @param session Closed session
+     */
+    void closed( SmscSession session )
+    {
+        sessions.remove( session );
+        for( int i = 0; i < closedCounts.length(); i++ )
+        {
+            closedCounts.addAndGet( i, session.getCount( i ) );
+        }
+    }
+
+    /**
+     * Accept connections until the process is stopped
+     * @throws IOException The port can't be listened on
+     */
+    public void run() throws IOException
+    {
+        ServerSocket server = new ServerSocket( port );
+        System.out.println( "SMSC simulator listening on port " + port );
+
+        Thread reporter = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                report();
+            }
+        }, "SmscReport" );
+        reporter.setDaemon( true );
+        reporter.start();
+
+        int number = 0;
+        while( true )
+        {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay( true );
+            SmscSession session = new SmscSession( this, socket );
+            sessions.add( session );
+            Thread thread = new Thread( session, "SmscSession-" + ++number );
+            thread.setDaemon( true );
+            thread.start();
+        }
+    }
+
+    /**
+     * Print the number of PDUs of each type received, and the rate, at
+     * intervals while any are arriving
+     */
+    private void report()
+    {
+        final SimpleDateFormat format = new SimpleDateFormat( "HH:mm:ss" );
+        final CommandID[] ids = CommandID.values();
+        long lastTotal = 0;
+        long lastMillis = System.currentTimeMillis();
+        while( true )
+        {
+            try
+            {
+                Thread.sleep( REPORT_INTERVAL_MILLIS );
+            }
+            catch( InterruptedException e )
+            {
+                return;
+            }
+
+            long[] counts = new long[closedCounts.length()];
+            int open = 0;
+            for( SmscSession session: sessions )
+            {
+                open++;
+                for( int i = 0; i < counts.length; i++ )
+                {
+                    counts[i] += session.getCount( i );
+                }
+            }
+            long total = 0;
+            for( int i = 0; i < counts.length; i++ )
+            {
+                counts[i] += closedCounts.get( i );
+                total += counts[i];
+            }
+            final long now = System.currentTimeMillis();
+            if( total != lastTotal )
+            {
+                StringBuilder line = new StringBuilder( format.format( new Date( now ) ) );
+                line.append( " " ).append( open ).append( " sessions, " )
+                    .append( ( total - lastTotal ) * 1000 / Math.max( 1, now - lastMillis ) )
+                    .append( " PDUs/s received" );
+                for( int i = 0; i < ids.length; i++ )
+                {
+                    if( counts[i] != 0 )
+                    {
+                        line.append( ", " ).append( ids[i].name() ).append( " " ).append( counts[i] );
+                    }
+                }
+                if( counts[ids.length] != 0 )
+                {
+                    line.append( ", unrecognised " ).append( counts[ids.length] );
+                }
+                System.out.println( line );
+            }
+            lastTotal = total;
+            lastMillis = now;
+        }
+    }
+
+    /**
+     * The expected argument is the port to listen on, optionally preceded
+     * by -receipts to send delivery receipts and -fail STATUS N to fail
+     * every Nth message with a status such as ESME_RTHROTTLED.
+     * @param args calling arguments
+     */
+    public static void main( String args[] )
+    {
+        boolean receipts = false;
+        CommandStatus failStatus = null;
+        int failEvery = 0;
+        int arg = 0;
+        try
+        {
+            while( arg < args.length - 1 )
+            {
+                if( args[arg].equals( "-receipts" ) )
+                {
+                    receipts = true;
+                    arg++;
+                }
+                else if( args[arg].equals( "-fail" ) && arg + 2 < args.length )
+                {
+                    failStatus = CommandStatus.valueOf( args[arg + 1] );
+                    failEvery = Integer.parseInt( args[arg + 2] );
+                    arg += 3;
+                }
+                else
+                {
+                    break;
+                }
+            }
+            if( args.length - arg != 1 )
+            {
+                throw new IllegalArgumentException();
+            }
+
+            SmscSimulator simulator = new SmscSimulator( Integer.parseInt( args[arg] ) );
+            simulator.setReceipts( receipts );
+            if( failStatus != null )
+            {
+                simulator.setFailures( failStatus, failEvery );
+            }
+            simulator.run();
+        }
+        catch( IllegalArgumentException e )
+        {
+            System.err.println(
+                "Usage: java SmscSimulator [-receipts] [-fail STATUS N] port" );
+        }
+        catch( IOException e )
+        {
+            System.err.println( "SMSC simulator stopped: " + e.getMessage() );
+        }
+    }
+}